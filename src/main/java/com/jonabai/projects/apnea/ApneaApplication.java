@@ -8,6 +8,7 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import java.time.Instant;
+import java.util.Arrays;
 
 /**
  * Apnea Detector Application.
@@ -22,9 +23,13 @@ public class ApneaApplication implements CommandLineRunner {
             Usage: java -jar apnea.jar <inputFile.csv> <outputFile.csv>
 
             Arguments:
-              inputFile.csv  - CSV file containing paths to WAV files to analyze
+              inputFile.csv  - CSV file containing paths to WAV files to analyze, '-' to read it
+                               from stdin, or a directory or quoted glob pattern ("data/**/*.wav")
               outputFile.csv - Output CSV file for detected breathing pauses
 
+            An interrupted run is resumed by running it again with the same arguments.
+            Several processes share a batch when started with --apnea.batch.shared.enabled=true and the
+            same arguments, on one host or on hosts sharing the filesystem.
             For REST API mode, run without arguments.
             """;
 
@@ -40,6 +45,9 @@ public class ApneaApplication implements CommandLineRunner {
 
     @Override
     public void run(String... args) {
+        // Options (--property=value) are Spring properties, not arguments
+        args = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+
         // If no args provided, just run as web server (REST API mode)
         if (args.length == 0) {
             logger.info("Starting in REST API mode. Use POST /api/analyze to analyze WAV files.");
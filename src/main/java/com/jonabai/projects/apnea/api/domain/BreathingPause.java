@@ -2,33 +2,60 @@ package com.jonabai.projects.apnea.api.domain;
 
 /**
  * An immutable breathing pause record.
+ * Bounds are frame indices at the sample rate of the recording, so they stay exact however long it is;
+ * they are converted to seconds only when read as such.
  */
 public record BreathingPause(
         String filePath,
         int index,
-        float start,
-        float end,
+        long startFrame,
+        long endFrame,
+        long sampleRate,
         BreathingPauseType type
 ) {
+    /**
+     * Timeline of the pauses created from seconds: one frame per microsecond.
+     */
+    public static final long MICROSECOND_RATE = 1_000_000L;
+
     /**
      * Compact constructor with validation.
      */
     public BreathingPause {
-        if (start < 0 || end < 0) {
+        if (startFrame < 0 || endFrame < 0) {
             throw new IllegalArgumentException("Start and end times must be non-negative");
         }
-        if (end < start) {
+        if (endFrame < startFrame) {
             throw new IllegalArgumentException("End time must be >= start time");
         }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
         if (type == null) {
             type = BreathingPauseType.NOT_SET;
         }
     }
 
     /**
-     * Factory method to create an unclassified breathing pause.
+     * Creates a pause from its bounds in seconds, kept on a microsecond timeline.
+     */
+    public BreathingPause(String filePath, int index, double start, double end, BreathingPauseType type) {
+        this(filePath, index, Math.round(start * MICROSECOND_RATE), Math.round(end * MICROSECOND_RATE),
+                MICROSECOND_RATE, type);
+    }
+
+    /**
+     * Factory method to create an unclassified breathing pause between two frames.
+     */
+    public static BreathingPause unclassified(String filePath, int index, long startFrame, long endFrame,
+                                              long sampleRate) {
+        return new BreathingPause(filePath, index, startFrame, endFrame, sampleRate, BreathingPauseType.NOT_SET);
+    }
+
+    /**
+     * Factory method to create an unclassified breathing pause from its bounds in seconds.
      */
-    public static BreathingPause unclassified(String filePath, int index, float start, float end) {
+    public static BreathingPause unclassified(String filePath, int index, double start, double end) {
         return new BreathingPause(filePath, index, start, end, BreathingPauseType.NOT_SET);
     }
 
@@ -36,14 +63,35 @@ public record BreathingPause(
      * Returns a new BreathingPause with the specified type.
      */
     public BreathingPause withType(BreathingPauseType newType) {
-        return new BreathingPause(filePath, index, start, end, newType);
+        return new BreathingPause(filePath, index, startFrame, endFrame, sampleRate, newType);
+    }
+
+    /**
+     * Returns a new BreathingPause of the specified file, for a recording found under several paths.
+     */
+    public BreathingPause withFilePath(String newFilePath) {
+        return new BreathingPause(newFilePath, index, startFrame, endFrame, sampleRate, type);
+    }
+
+    /**
+     * Start of the pause in seconds.
+     */
+    public double start() {
+        return (double) startFrame / sampleRate;
+    }
+
+    /**
+     * End of the pause in seconds.
+     */
+    public double end() {
+        return (double) endFrame / sampleRate;
     }
 
     /**
      * Calculate the duration of the pause in seconds.
      */
-    public float duration() {
-        return end - start;
+    public double duration() {
+        return (double) (endFrame - startFrame) / sampleRate;
     }
 
     // Backward compatibility getters for existing code
@@ -55,12 +103,12 @@ public record BreathingPause(
         return index;
     }
 
-    public float getStart() {
-        return start;
+    public double getStart() {
+        return start();
     }
 
-    public float getEnd() {
-        return end;
+    public double getEnd() {
+        return end();
     }
 
     public BreathingPauseType getType() {
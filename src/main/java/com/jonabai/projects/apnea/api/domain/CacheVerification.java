@@ -0,0 +1,11 @@
+package com.jonabai.projects.apnea.api.domain;
+
+/**
+ * Check made before serving the cached pauses of a file
+ */
+public enum CacheVerification {
+    /** Same path, size and modification time */
+    STAT,
+    /** Same path, size and modification time, and same hash of the header and sampled blocks */
+    SAMPLED
+}
@@ -0,0 +1,13 @@
+package com.jonabai.projects.apnea.api.domain;
+
+/**
+ * Policy combining the per channel silence decisions of a block
+ */
+public enum ChannelFusion {
+    /** Silence when any channel is silent */
+    ANY,
+    /** Silence only when every channel is silent */
+    ALL,
+    /** Decision of the channel with the best signal to noise ratio so far */
+    BEST_SNR
+}
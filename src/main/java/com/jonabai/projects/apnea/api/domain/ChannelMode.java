@@ -0,0 +1,13 @@
+package com.jonabai.projects.apnea.api.domain;
+
+/**
+ * How the channels of a multichannel recording are analysed
+ */
+public enum ChannelMode {
+    /** All the interleaved samples measured together as a single signal */
+    MIXED,
+    /** Channels averaged into a mono signal before measuring */
+    DOWNMIX,
+    /** Every channel analysed by its own checker, decisions fused with a ChannelFusion policy */
+    PER_CHANNEL
+}
@@ -0,0 +1,13 @@
+package com.jonabai.projects.apnea.api.domain;
+
+/**
+ * How the files of a batch are recognised as copies of the same recording
+ */
+public enum DedupMode {
+    /** Every file is analysed */
+    OFF,
+    /** Same size and same hash of the header and sampled blocks */
+    SAMPLED,
+    /** Same size and same hash of the whole content */
+    FULL
+}
@@ -0,0 +1,13 @@
+package com.jonabai.projects.apnea.api.domain;
+
+/**
+ * Strategy used to read the samples of a wav file
+ */
+public enum WavFileReaderMode {
+    /** Buffered reads through a FileInputStream */
+    STREAM,
+    /** Memory mapped FileChannel */
+    MAPPED,
+    /** Memory mapped for files over the configured size, stream otherwise */
+    AUTO
+}
@@ -8,9 +8,9 @@ import com.jonabai.projects.apnea.api.domain.BreathingPauseType;
  */
 public record PauseDto(
         int index,
-        float start,
-        float end,
-        float duration,
+        double start,
+        double end,
+        double duration,
         BreathingPauseType type
 ) {
     /**
@@ -7,7 +7,8 @@ public interface ApneaDetectorService {
 
     /**
      * Process the contained files into the input csv file and writes the output into the output csv file
-     * @param inputCsvPath csv input file
+     * @param inputCsvPath csv input file, {@code -} to read it from the standard input, or a directory or glob
+     *                     pattern of wav files
      * @param outputCsvPath csv output file
      */
     void process(String inputCsvPath, String outputCsvPath);
@@ -15,4 +15,15 @@ public interface AudioFileSilenceDetectorService {
      * @return the list of breathing pauses
      */
     List<BreathingPause> processFile(String filePath);
+
+    /**
+     * Creates a detector for a stream of samples, with the same settings as the file processing
+     * @param sourceName name reported in the pauses
+     * @param sampleRate sample rate in Hz
+     * @param numChannels samples per frame
+     * @param listener receives the pauses as they are found
+     * @return a detector for one stream
+     */
+    StreamingPauseDetector newStreamingDetector(String sourceName, long sampleRate, int numChannels,
+                                                PauseListener listener);
 }
@@ -0,0 +1,37 @@
+package com.jonabai.projects.apnea.services;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs the per-file work of a batch on a dedicated, bounded set of workers
+ */
+public interface BatchExecutor {
+
+    /**
+     * Applies a task to every item, at most {@link #getParallelism()} at a time, and waits for all of them.
+     * The first task failing stops the batch and its exception is rethrown.
+     * @param items items to process
+     * @param task task applied to each item
+     * @return the results, in the order of the items
+     */
+    <T, R> List<R> map(List<T> items, Function<? super T, ? extends R> task);
+
+    /**
+     * Applies a task to every item of a lazy source, at most {@link #getParallelism()} at a time, and waits for
+     * all of them. Items are pulled from the source on the calling thread into a small bounded queue, so the
+     * first items are processed while the source is still being read and only a few are held at a time.
+     * The first task failing, or the source, stops the batch and its exception is rethrown.
+     * @param items source of the items, read on the calling thread only
+     * @param task task applied to each item
+     */
+    <T> void forEach(Iterator<? extends T> items, Consumer<? super T> task);
+
+    /**
+     * Gets the maximum number of items processed at the same time
+     * @return the number of workers
+     */
+    int getParallelism();
+}
@@ -0,0 +1,46 @@
+package com.jonabai.projects.apnea.services;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+
+import java.util.List;
+
+/**
+ * An output open while a batch runs, receiving the breathing pauses of each file as soon as it completes
+ */
+public interface BreathingPauseOutput extends AutoCloseable {
+
+    /**
+     * Adds the pauses of one file. Blocks while the output buffer is full.
+     * @param sequence position of the file in the input, starting at 0; every position is written once,
+     *                 also for files without pauses
+     * @param pauseList the pauses of the file
+     */
+    void write(int sequence, List<BreathingPause> pauseList);
+
+    /**
+     * Abandons the output once the pauses of a file cannot be produced. Nothing more is written, so callers
+     * waiting for the files before them do not wait forever; they and any later write fail instead.
+     * @param cause why the file failed
+     */
+    void abort(Throwable cause);
+
+    /**
+     * Writes the pauses still buffered and closes the output
+     */
+    @Override
+    void close();
+
+    /**
+     * Notified by the output every time it flushes
+     */
+    @FunctionalInterface
+    interface FlushListener {
+
+        /**
+         * The pauses of the given files are on disk
+         * @param sequences positions of the files written since the previous flush, as given to {@link #write}
+         * @param outputSize size of the output once they were written
+         */
+        void flushed(List<Integer> sequences, long outputSize);
+    }
+}
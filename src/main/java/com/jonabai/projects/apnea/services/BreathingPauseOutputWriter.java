@@ -4,6 +4,8 @@ package com.jonabai.projects.apnea.services;
 import com.jonabai.projects.apnea.api.domain.BreathingPause;
 
 import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
 
 /**
  * A breathing pause output writer
@@ -16,4 +18,40 @@ public interface BreathingPauseOutputWriter {
      * @param pauseList list of breathing pauses
      */
     void writeOutput(String outputPath, List<BreathingPause> pauseList);
+
+    /**
+     * Opens an output the pauses are appended to file by file while a batch runs
+     * @param outputPath output file path
+     * @return the open output, to be closed once every file has been written
+     */
+    BreathingPauseOutput openOutput(String outputPath);
+
+    /**
+     * Variant of {@link #openOutput(String)} resuming an output and reporting its flushes
+     * @param outputPath output file path
+     * @param resumeOffset size of the output already written, which is kept and appended to; 0 for a new output
+     * @param listener notified on every flush, may be null
+     * @return the open output, to be closed once every file has been written
+     */
+    BreathingPauseOutput openOutput(String outputPath, long resumeOffset, BreathingPauseOutput.FlushListener listener);
+
+    /**
+     * Opens a partial output of a batch shared by several processes, always written in sequence order: every row
+     * starts with a label of its file, so partial outputs can be merged later
+     * @param outputPath partial output file path
+     * @param label label of a file from the sequence it is written with, increasing with it
+     * @param listener notified on every flush, may be null
+     * @return the open output, to be closed once every file has been written
+     */
+    BreathingPauseOutput openPartialOutput(String outputPath, IntUnaryOperator label,
+                                           BreathingPauseOutput.FlushListener listener);
+
+    /**
+     * Merges partial outputs into the output, in label order. The rows of a label are taken from one partial
+     * output only, so a file written to several of them appears once
+     * @param partialPaths partial output file paths
+     * @param owner path of the partial output whose rows are kept for a label, null to drop them
+     * @param outputPath output file path
+     */
+    void mergePartialOutputs(List<String> partialPaths, IntFunction<String> owner, String outputPath);
 }
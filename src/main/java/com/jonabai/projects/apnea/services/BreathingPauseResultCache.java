@@ -0,0 +1,27 @@
+package com.jonabai.projects.apnea.services;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Persistent cache of the classified pauses of a file, valid as long as neither the file nor the detection
+ * configuration change
+ */
+public interface BreathingPauseResultCache {
+
+    /**
+     * Gets the pauses of a file computed by a previous run
+     * @param filePath path of the wav file
+     * @return the pauses, empty if the file is not cached or changed since
+     */
+    Optional<List<BreathingPause>> get(String filePath);
+
+    /**
+     * Stores the pauses of a file
+     * @param filePath path of the wav file
+     * @param pauseList its classified pauses
+     */
+    void put(String filePath, List<BreathingPause> pauseList);
+}
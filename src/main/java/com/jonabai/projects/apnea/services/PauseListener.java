@@ -0,0 +1,22 @@
+package com.jonabai.projects.apnea.services;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+
+/**
+ * Receives the pauses found by a {@link StreamingPauseDetector} as soon as they are confirmed
+ */
+public interface PauseListener {
+
+    /**
+     * A pause has started. It is followed by {@link #pauseEnded(BreathingPause)} once the sound comes back or the
+     * stream finishes, unless the pause turns out shorter than the minimum duration reported.
+     * @param startFrame first frame of the pause, counted from the start of the stream
+     */
+    void pauseStarted(long startFrame);
+
+    /**
+     * A pause has ended
+     * @param pause the complete pause
+     */
+    void pauseEnded(BreathingPause pause);
+}
@@ -14,6 +14,72 @@ public interface SilenceCheckerService {
      */
     boolean isSilence(double[] buffer);
 
+    /**
+     * Single precision variant of {@link #isSilence(double[])}.
+     * @param buffer audio frames buffer
+     * @return if the group represents silence
+     */
+    boolean isSilence(float[] buffer);
+
+    /**
+     * Variant of {@link #isSilence(double[])} checking a range of the buffer, so callers never need to copy.
+     * @param buffer audio frames buffer
+     * @param offset index of the first sample to check
+     * @param length number of samples to check
+     * @return if the group represents silence
+     */
+    boolean isSilence(double[] buffer, int offset, int length);
+
+    /**
+     * Single precision variant of {@link #isSilence(double[], int, int)}.
+     * @param buffer audio frames buffer
+     * @param offset index of the first sample to check
+     * @param length number of samples to check
+     * @return if the group represents silence
+     */
+    boolean isSilence(float[] buffer, int offset, int length);
+
+    /**
+     * Measures the RMS volume of a range of the buffer without touching the detection state.
+     * Together with {@link #isSilenceRms(double)} it splits {@link #isSilence(float[], int, int)} in two steps,
+     * so callers can keep a block level instead of its samples and decide later.
+     * @param buffer audio frames buffer
+     * @param offset index of the first sample to measure
+     * @param length number of samples to measure, greater than zero
+     * @return the RMS volume of the range
+     */
+    double measureRms(float[] buffer, int offset, int length);
+
+    /**
+     * Checks if a block with the given RMS volume represents silence, applying hysteresis and smoothing.
+     * @param rms RMS volume of the block, as returned by {@link #measureRms(float[], int, int)}
+     * @return if the block represents silence
+     */
+    boolean isSilenceRms(double rms);
+
+    /**
+     * Feeds a range of calibration samples into the running noise floor estimation.
+     * Samples can be fed block by block, only the running mean and variance are kept.
+     * The threshold is not updated until {@link #finishCalibration()} is called.
+     * @param buffer audio frames buffer
+     * @param offset index of the first sample
+     * @param length number of samples
+     */
+    void addCalibrationSamples(float[] buffer, int offset, int length);
+
+    /**
+     * Sets the threshold from the calibration samples fed since the last call and starts a new estimation.
+     * Does nothing if no samples were fed.
+     */
+    void finishCalibration();
+
+    /**
+     * Sets the threshold from a noise floor RMS estimated by the caller, as calibration does.
+     * Allows the threshold to follow a noise floor that drifts along the recording.
+     * @param noiseFloorRms the noise floor RMS volume
+     */
+    void updateNoiseFloor(double noiseFloorRms);
+
     /**
      * Calibrates the noise floor based on a buffer of audio samples.
      * Should be called with initial "quiet" samples to establish baseline.
@@ -21,6 +87,29 @@ public interface SilenceCheckerService {
      */
     void calibrate(double[] buffer);
 
+    /**
+     * Single precision variant of {@link #calibrate(double[])}.
+     * @param buffer audio frames to use for calibration
+     */
+    void calibrate(float[] buffer);
+
+    /**
+     * Describes the audio the checker receives, for measures depending on the frequency content.
+     * Buffers hold interleaved frames of the given number of channels.
+     * @param sampleRate sample rate in Hz
+     * @param numChannels samples per frame
+     */
+    void setAudioFormat(long sampleRate, int numChannels);
+
+    /**
+     * Tells whether the measured level only covers a frequency band. Such a level cannot be combined with
+     * levels computed from the samples outside the checker, like sliding windows, which cover the full band.
+     * @return true if the level is measured on a frequency band, false for the full band
+     */
+    default boolean measuresBand() {
+        return false;
+    }
+
     /**
      * Resets the internal state (smoothing history, hysteresis state).
      * Should be called when starting to process a new audio file.
@@ -33,6 +122,25 @@ public interface SilenceCheckerService {
      */
     double getCurrentThreshold();
 
+    /**
+     * Gets the level a block has to exceed to leave silence, the current threshold times the hysteresis multiplier.
+     * @return the threshold to exit silence
+     */
+    double getExitThreshold();
+
+    /**
+     * Sets the silence threshold directly, marking the service as calibrated.
+     * Allows several instances to share the threshold calibrated by one of them.
+     * @param threshold the silence threshold
+     */
+    void setCurrentThreshold(double threshold);
+
+    /**
+     * Forces the hysteresis state without touching the smoothing history.
+     * @param inSilence true to continue as if the previous frames were silence
+     */
+    void setSilenceState(boolean inSilence);
+
     /**
      * Checks if the service has been calibrated.
      * @return true if calibration has been performed
@@ -0,0 +1,30 @@
+package com.jonabai.projects.apnea.services;
+
+/**
+ * Pause detection over a stream of samples pushed in chunks of any size.
+ * Pauses are reported to a {@link PauseListener} while the samples arrive, and memory does not grow with the
+ * stream length, so the same detection serves files, uploads and live input.
+ * An instance analyses a single stream and is not thread safe.
+ */
+public interface StreamingPauseDetector {
+
+    /**
+     * Analyses the next samples of the stream
+     * @param buffer interleaved samples, normalised to [-1, 1]
+     * @param offset index of the first sample
+     * @param length number of samples, not necessarily whole frames
+     */
+    void accept(float[] buffer, int offset, int length);
+
+    /**
+     * Ends the stream: analyses the samples still pending and reports the trailing pause, if any.
+     * Further samples are rejected.
+     */
+    void finish();
+
+    /**
+     * Gets the number of whole frames received so far
+     * @return the frames received
+     */
+    long getFramesAccepted();
+}
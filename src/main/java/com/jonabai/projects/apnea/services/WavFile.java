@@ -63,6 +63,37 @@ public interface WavFile extends AutoCloseable {
 
     int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException;
 
+    /**
+     * Reads the number of frames from the current position to the provided single precision buffer.
+     * Samples up to 24 bits are represented exactly, with half the memory of the double variant
+     * @param sampleBuffer buffer to be written
+     * @param numFramesToRead number of frames to be read
+     * @return the final number of frames read
+     * @throws WavFileException in case something went wrong
+     */
+    int readFrames(float[] sampleBuffer, int numFramesToRead) throws WavFileException;
+
+    int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException;
+
+    /**
+     * Reads the number of frames from the current position as raw 16 bit signed samples, without normalisation.
+     * 8 bit samples are shifted into the 16 bit range and wider samples keep their 16 most significant bits
+     * @param sampleBuffer buffer to be written
+     * @param offset index of the first sample written into the buffer
+     * @param numFramesToRead number of frames to be read
+     * @return the final number of frames read
+     * @throws IOException in case the file cannot be read
+     * @throws WavFileException in case something went wrong
+     */
+    int readFramesRaw(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException;
+
+    /**
+     * Moves the read position to the given frame, so the next read starts at that frame
+     * @param frame index of the frame, from 0 to the number of frames
+     * @throws IOException in case the position cannot be changed
+     */
+    void seekFrame(long frame) throws IOException;
+
     /**
      * Closes the file for reading
      * @throws IOException in case something wen wrong
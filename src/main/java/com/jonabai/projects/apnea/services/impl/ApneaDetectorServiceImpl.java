@@ -2,27 +2,56 @@ package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
 import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.DedupMode;
 import com.jonabai.projects.apnea.services.ApneaDetectorService;
 import com.jonabai.projects.apnea.services.AudioFileSilenceDetectorService;
+import com.jonabai.projects.apnea.services.BatchExecutor;
 import com.jonabai.projects.apnea.services.BreathingPauseClassificationService;
+import com.jonabai.projects.apnea.services.BreathingPauseOutput;
 import com.jonabai.projects.apnea.services.BreathingPauseOutputWriter;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
+import com.jonabai.projects.apnea.services.BreathingPauseResultCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * ApneaDetectorService implementation for batch processing.
+ * Files are processed on the {@link BatchExecutor} workers. By default the input is read lazily (see
+ * {@link BatchManifest}) and fed to the workers as they take files, and the pauses of each file are streamed to the
+ * output as soon as it completes, so memory is bounded by the files in flight, not by the batch; otherwise the
+ * whole input is read first and the whole output written once the batch is done.
+ * A streamed batch keeps a {@link CheckpointJournal} of the files on disk next to the output: run again with the
+ * same arguments after an interruption, it skips them and appends the rest. The journal is removed once the batch
+ * completes.
+ * Optionally, with several workers, the batch is planned from the wav headers and the largest files processed
+ * first (see {@link BatchPlanner}), one window of the input at a time when streamed. A streamed output then
+ * follows the planned order, as files only wait for the ones before them in a small reorder buffer; the whole
+ * output is put back in input order.
+ * Several processes, on one host or on hosts sharing a filesystem, can share a batch: each one claims the files
+ * nobody holds and writes them to its own partial output, and the last one to finish merges them into the output
+ * (see {@link SharedBatch}). Such a batch is resumed by starting any of its processes again.
+ * Optionally copies of a recording listed under several paths are analysed once (see {@link BatchDeduplicator}).
+ * Files unchanged since a previous run with the same configuration are served from the
+ * {@link BreathingPauseResultCache} instead of being decoded again.
  */
 @Service
 public class ApneaDetectorServiceImpl implements ApneaDetectorService {
@@ -32,14 +61,44 @@ public class ApneaDetectorServiceImpl implements ApneaDetectorService {
     private final AudioFileSilenceDetectorService audioFileSilenceDetectorService;
     private final BreathingPauseClassificationService classificationService;
     private final BreathingPauseOutputWriter outputWriter;
+    private final BatchExecutor batchExecutor;
+    private final BreathingPauseResultCache resultCache;
+    private final boolean streamingOutput;
+    private final boolean checkpoint;
+    private final boolean planning;
+    private final int planWindow;
+    private final int walkThreads;
+    private final DedupMode dedupMode;
+    private final boolean sharedBatch;
+    private final Duration leaseTime;
 
     public ApneaDetectorServiceImpl(
             AudioFileSilenceDetectorService audioFileSilenceDetectorService,
             BreathingPauseClassificationService classificationService,
-            BreathingPauseOutputWriter outputWriter) {
+            BreathingPauseOutputWriter outputWriter,
+            BatchExecutor batchExecutor,
+            BreathingPauseResultCache resultCache,
+            @Value("${apnea.output.streaming:true}") boolean streamingOutput,
+            @Value("${apnea.checkpoint.enabled:true}") boolean checkpoint,
+            @Value("${apnea.batch.plan.enabled:false}") boolean planning,
+            @Value("${apnea.batch.plan.window:1024}") int planWindow,
+            @Value("${apnea.batch.manifest.walk.threads:4}") int walkThreads,
+            @Value("${apnea.batch.dedup:OFF}") DedupMode dedupMode,
+            @Value("${apnea.batch.shared.enabled:false}") boolean sharedBatch,
+            @Value("${apnea.batch.shared.lease.seconds:300}") long leaseSeconds) {
         this.audioFileSilenceDetectorService = audioFileSilenceDetectorService;
         this.classificationService = classificationService;
         this.outputWriter = outputWriter;
+        this.batchExecutor = batchExecutor;
+        this.resultCache = resultCache;
+        this.streamingOutput = streamingOutput;
+        this.checkpoint = checkpoint;
+        this.planning = planning;
+        this.planWindow = Math.max(1, planWindow);
+        this.walkThreads = walkThreads;
+        this.dedupMode = dedupMode;
+        this.sharedBatch = sharedBatch;
+        this.leaseTime = Duration.ofSeconds(Math.max(1, leaseSeconds));
     }
 
     @Override
@@ -47,18 +106,192 @@ public class ApneaDetectorServiceImpl implements ApneaDetectorService {
         validateInput(inputCsvPath, "Input file");
         validateInput(outputCsvPath, "Output file");
 
-        var filePaths = getFilePaths(inputCsvPath);
+        // Copies of a recording are analysed once per batch
+        var deduplicator = dedupMode != DedupMode.OFF ? new BatchDeduplicator(dedupMode) : null;
+        Function<String, List<BreathingPause>> analysis = deduplicator != null
+                ? filePath -> deduplicator.process(filePath, this::processFile)
+                : this::processFile;
 
-        // Use synchronized list for thread-safe parallel processing
-        List<BreathingPause> pauseList = Collections.synchronizedList(new ArrayList<>());
+        try (var manifest = BatchManifest.open(inputCsvPath, walkThreads)) {
+            if (sharedBatch) {
+                processShared(manifest, outputCsvPath, analysis);
+                return;
+            }
+            if (!streamingOutput) {
+                processAll(manifest, outputCsvPath, analysis);
+                return;
+            }
 
-        filePaths.parallelStream()
-                .map(this::processFile)
-                .forEach(pauseList::addAll);
+            var journal = checkpoint ? openJournal(manifest, outputCsvPath) : null;
+            try {
+                processStreaming(manifest, outputCsvPath, journal, analysis);
+            } catch (RuntimeException e) {
+                if (journal != null) {
+                    journal.close();
+                }
+                throw e;
+            }
+            if (journal != null) {
+                journal.delete();
+            }
+        } finally {
+            if (deduplicator != null && deduplicator.getDuplicates() > 0) {
+                logger.info("{} duplicate files not analysed again", deduplicator.getDuplicates());
+            }
+        }
+    }
+
+    /**
+     * Processes the files as the manifest is read, streaming each one to the output and, with a journal, skipping
+     * the files completed by a previous run and journaling the others as they are flushed
+     */
+    private void processStreaming(BatchManifest manifest, String outputCsvPath, CheckpointJournal journal,
+                                  Function<String, List<BreathingPause>> analysis) {
+        // Paths of the files dispatched and not flushed yet, by position in the output
+        Map<Integer, String> unflushed = journal != null ? new ConcurrentHashMap<>() : null;
+        var jobs = new Jobs(manifest, journal, unflushed);
+
+        try (var output = journal != null
+                ? outputWriter.openOutput(outputCsvPath, journal.getOutputOffset(),
+                        (tickets, outputSize) -> journal.append(tickets.stream().map(unflushed::remove).toList(),
+                                outputSize))
+                : outputWriter.openOutput(outputCsvPath)) {
+            batchExecutor.forEach(jobs, job -> write(output, job, analysis));
+        }
+    }
+
+    /**
+     * Processes the files of a batch shared with other processes. Every pass over the files fixed by the first
+     * process claims the files nobody holds, in input order, until a pass finds none left; the process completing
+     * the last file merges the partial outputs.
+     */
+    private void processShared(BatchManifest manifest, String outputCsvPath,
+                               Function<String, List<BreathingPause>> analysis) {
+        if (manifest.getIdentity() == null) {
+            throw new ApneaDetectorServiceException("A shared batch cannot read its input from the standard input");
+        }
+
+        try (var shared = SharedBatch.open(manifest.getIdentity(), Path.of(outputCsvPath), leaseTime)) {
+            // Positions name files across passes and processes, even if a walked directory changes meanwhile
+            var files = shared.snapshot(manifest).toString();
+            var pass = 0;
+            SharedJobs jobs;
+            do {
+                // Leases may have expired since the previous pass
+                try (var passManifest = BatchManifest.open(files, walkThreads)) {
+                    jobs = processPass(passManifest, shared, pass++, analysis);
+                }
+            } while (jobs.claimed > 0 && !shared.isMerged());
+
+            var done = shared.getDoneCount();
+            if (done < 0) {
+                logger.info("Another process merged {}", outputCsvPath);
+                return;
+            }
+            if (done < jobs.total) {
+                logger.info("{} of {} files of the shared batch done, the process completing the last one "
+                        + "merges {}", done, jobs.total, outputCsvPath);
+                return;
+            }
+            if (!shared.claimMerge()) {
+                logger.info("Another process merges {}", outputCsvPath);
+                return;
+            }
+            merge(shared, outputCsvPath);
+        }
+    }
+
+    /**
+     * Processes the files claimed in one pass over the input, writing them to the partial output of the pass
+     */
+    private SharedJobs processPass(BatchManifest manifest, SharedBatch shared, int pass,
+                                   Function<String, List<BreathingPause>> analysis) {
+        var jobs = new SharedJobs(manifest, shared);
+        var partialPath = shared.partialPath(pass);
+        try (var output = outputWriter.openPartialOutput(partialPath.toString(), jobs.sequences::get,
+                (tickets, outputSize) -> shared.completed(tickets.stream().map(jobs.sequences::remove).toList(),
+                        partialPath))) {
+            batchExecutor.forEach(jobs, job -> write(output, job, analysis));
+        }
+        return jobs;
+    }
+
+    /**
+     * Analyses the file of a job and writes its pauses, aborting the output if the analysis fails so the jobs
+     * waiting for its ticket do not wait forever
+     */
+    private static void write(BreathingPauseOutput output, Job job,
+                              Function<String, List<BreathingPause>> analysis) {
+        List<BreathingPause> pauseList;
+        try {
+            pauseList = analysis.apply(job.filePath());
+        } catch (RuntimeException | Error e) {
+            output.abort(e);
+            throw e;
+        }
+        output.write(job.ticket(), pauseList);
+    }
+
+    private void merge(SharedBatch shared, String outputCsvPath) {
+        var outputPath = Path.of(outputCsvPath);
+        var mergedPath = outputPath.resolveSibling(outputPath.getFileName() + ".merging");
+        outputWriter.mergePartialOutputs(shared.partialPaths(), shared::owner, mergedPath.toString());
+        try {
+            Files.move(mergedPath, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot write output " + outputCsvPath, e);
+        }
+        shared.delete();
+        logger.info("Merged the shared batch into {}", outputCsvPath);
+    }
+
+    /**
+     * Processes the whole manifest and writes the output once the batch is done
+     */
+    private void processAll(BatchManifest manifest, String outputCsvPath,
+                            Function<String, List<BreathingPause>> analysis) {
+        List<String> filePaths = new ArrayList<>();
+        manifest.forEachRemaining(filePaths::add);
+
+        // Every file gets its own result list, they are only joined once the batch is done, in input order
+        var order = plan(filePaths);
+        var results = batchExecutor.map(order.stream().map(filePaths::get).toList(), analysis);
+        List<List<BreathingPause>> byInput = new ArrayList<>(Collections.nCopies(filePaths.size(), null));
+        for (int i = 0; i < order.size(); i++) {
+            byInput.set(order.get(i), results.get(i));
+        }
+        var pauseList = byInput.stream()
+                .flatMap(Collection::stream)
+                .toList();
 
         outputWriter.writeOutput(outputCsvPath, pauseList);
     }
 
+    private CheckpointJournal openJournal(BatchManifest manifest, String outputCsvPath) {
+        if (manifest.getIdentity() == null) {
+            logger.info("No checkpoint for {}: the input cannot be read again", outputCsvPath);
+            return null;
+        }
+
+        var journal = CheckpointJournal.open(manifest.getIdentity(), Path.of(outputCsvPath));
+        if (journal.getCompletedCount() > 0) {
+            logger.info("Resuming {}: {} files already done", outputCsvPath, journal.getCompletedCount());
+        }
+        return journal;
+    }
+
+    /**
+     * Orders files longest first, when several workers share them
+     * @return the positions of the files in the list, in processing order
+     */
+    private List<Integer> plan(List<String> filePaths) {
+        var positions = IntStream.range(0, filePaths.size()).boxed().toList();
+        if (!planning || filePaths.size() < 2 || batchExecutor.getParallelism() < 2) {
+            return positions;
+        }
+        return BatchPlanner.plan(filePaths, positions, batchExecutor.getParallelism()).order();
+    }
+
     private void validateInput(String value, String fieldName) {
         if (value == null || value.isBlank()) {
             throw new ApneaDetectorServiceException("%s cannot be empty!".formatted(fieldName));
@@ -66,29 +299,109 @@ public class ApneaDetectorServiceImpl implements ApneaDetectorService {
     }
 
     private List<BreathingPause> processFile(String inputFilePath) {
+        var cached = resultCache.get(inputFilePath);
+        if (cached.isPresent()) {
+            logger.info("Cached: {} pauses in {}", cached.get().size(), inputFilePath);
+            return cached.get();
+        }
+
         var pauseList = audioFileSilenceDetectorService.processFile(inputFilePath);
         logger.info("Detected: {} pauses in {}", pauseList.size(), inputFilePath);
-        return classificationService.classify(pauseList);
+        var classified = classificationService.classify(pauseList);
+        resultCache.put(inputFilePath, classified);
+        return classified;
+    }
+
+    /**
+     * A file to process and its position in the output
+     */
+    private record Job(int ticket, String filePath) {
     }
 
-    private List<String> getFilePaths(String inputCsvPath) {
-        var inputPath = Path.of(inputCsvPath);
+    /**
+     * Files of the manifest still to process, in processing order. The manifest is read one planning window at a
+     * time, files completed by a previous run are skipped and every window is planned longest first.
+     */
+    private final class Jobs implements Iterator<Job> {
+        private final Iterator<String> manifest;
+        private final CheckpointJournal journal;
+        private final Map<Integer, String> dispatched;
+        private final Deque<String> window = new ArrayDeque<>();
+        private int nextTicket;
 
-        try (Reader reader = Files.newBufferedReader(inputPath);
-             CSVParser csvParser = CSVFormat.DEFAULT.builder()
-                     .setHeader()
-                     .setSkipHeaderRecord(true)
-                     .build()
-                     .parse(reader)) {
+        Jobs(Iterator<String> manifest, CheckpointJournal journal, Map<Integer, String> dispatched) {
+            this.manifest = manifest;
+            this.journal = journal;
+            this.dispatched = dispatched;
+        }
 
-            return csvParser.stream()
-                    .map(record -> record.get(0))
-                    .filter(Objects::nonNull)
-                    .filter(path -> !path.isBlank())
-                    .toList();
+        @Override
+        public boolean hasNext() {
+            if (window.isEmpty()) {
+                List<String> filePaths = new ArrayList<>();
+                while (filePaths.size() < planWindow && manifest.hasNext()) {
+                    var filePath = manifest.next();
+                    if (journal == null || !journal.claim(filePath)) {
+                        filePaths.add(filePath);
+                    }
+                }
+                plan(filePaths).forEach(position -> window.add(filePaths.get(position)));
+            }
+            return !window.isEmpty();
+        }
 
-        } catch (IOException e) {
-            throw new ApneaDetectorServiceException("Cannot open file " + inputCsvPath, e);
+        @Override
+        public Job next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var job = new Job(nextTicket++, window.removeFirst());
+            if (dispatched != null) {
+                dispatched.put(job.ticket(), job.filePath());
+            }
+            return job;
+        }
+    }
+
+    /**
+     * Files of the manifest claimed by this process, in input order
+     */
+    private static final class SharedJobs implements Iterator<Job> {
+        private final Iterator<String> manifest;
+        private final SharedBatch shared;
+        private final Map<Integer, Integer> sequences = new ConcurrentHashMap<>(); // Input position by ticket
+        private String next;
+        private int nextSequence;
+        private int total;
+        private int claimed;
+
+        SharedJobs(Iterator<String> manifest, SharedBatch shared) {
+            this.manifest = manifest;
+            this.shared = shared;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && manifest.hasNext()) {
+                var filePath = manifest.next();
+                var sequence = total++;
+                if (shared.claim(sequence)) {
+                    next = filePath;
+                    nextSequence = sequence;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Job next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var job = new Job(claimed++, next);
+            sequences.put(job.ticket(), nextSequence);
+            next = null;
+            return job;
         }
     }
 }
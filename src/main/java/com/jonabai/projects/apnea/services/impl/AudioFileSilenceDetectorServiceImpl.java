@@ -1,44 +1,68 @@
 package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.ChannelMode;
 import com.jonabai.projects.apnea.api.domain.SilenceDetectionException;
+import com.jonabai.projects.apnea.api.domain.WavFileException;
 import com.jonabai.projects.apnea.services.AudioFileSilenceDetectorService;
+import com.jonabai.projects.apnea.services.PauseListener;
 import com.jonabai.projects.apnea.services.SilenceCheckerService;
+import com.jonabai.projects.apnea.services.StreamingPauseDetector;
 import com.jonabai.projects.apnea.services.WavFile;
 import com.jonabai.projects.apnea.services.WavFileFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.LongStream;
 
 /**
  * Service for detecting silence pauses in audio files.
  * Supports adaptive calibration for noise floor detection.
+ * The sequential pass only reads the file and pushes its samples into a {@link StreamingPauseDetector}, the engine
+ * that {@link #newStreamingDetector} also provides for uploads and live input. By default the file is read and
+ * decoded ahead on another thread (see {@link FramePrefetcher}), overlapping the I/O with the detection.
+ * Samples are processed in single precision, which represents PCM samples of up to 24 bits exactly
+ * while halving the memory traffic of the double pipeline.
+ * Long recordings can optionally be analysed in parallel segments, giving the same result as a sequential pass.
+ * Audio is analysed in blocks of {@value #BUFFER_SIZE} frames by default. Alternatively the volume can be measured
+ * over windows configured in milliseconds, advancing by a hop which can be shorter than the window, so the time
+ * resolution does not depend on the sample rate. The blocks are then hops and the window RMS is merged from
+ * per-hop summaries instead of being recomputed from the samples.
+ * Block levels come from the silence checker, so a checker measuring a frequency band (see
+ * {@link BandEnergySilenceCheckerServiceImpl}) applies to fixed blocks and hops only; sliding windows measure the
+ * full band, so combining them with it is rejected.
+ * Multichannel recordings are measured as one interleaved signal by default. They can also be downmixed to mono,
+ * or analysed channel by channel with one checker each and the decisions fused (any, all, best SNR channel).
+ * Optionally the threshold follows a rolling noise floor, a low percentile of the block RMS over a sliding horizon,
+ * for recordings whose background noise drifts. Rolling mode is sequential, it takes precedence over segments.
+ * Pause edges are as precise as the blocks. Optionally they are refined afterwards to sub-blocks of a few
+ * milliseconds by re-reading only the neighbourhood of each edge (see {@link PauseEdgeRefiner}).
  */
 @Service
 public class AudioFileSilenceDetectorServiceImpl implements AudioFileSilenceDetectorService {
 
     private static final Logger logger = LoggerFactory.getLogger(AudioFileSilenceDetectorService.class);
-    private static final float SILENCE_MIN_DURATION = 0.001f; // seconds
     private static final int BUFFER_SIZE = 1024;
 
     private final ObjectProvider<SilenceCheckerService> silenceCheckerProvider;
     private final WavFileFactory wavFileFactory;
-    private final float calibrationDurationSeconds;
+    private final SilenceDetectorSettings settings;
 
     public AudioFileSilenceDetectorServiceImpl(
             ObjectProvider<SilenceCheckerService> silenceCheckerProvider,
             WavFileFactory wavFileFactory,
-            @Value("${apnea.silence.checker.calibration.duration:2.0}") float calibrationDurationSeconds) {
+            SilenceDetectorSettings settings) {
         this.silenceCheckerProvider = silenceCheckerProvider;
         this.wavFileFactory = wavFileFactory;
-        this.calibrationDurationSeconds = calibrationDurationSeconds;
+        this.settings = settings;
     }
 
     @Override
@@ -55,7 +79,15 @@ public class AudioFileSilenceDetectorServiceImpl implements AudioFileSilenceDete
             logFileInfo(wavFile);
             // Get a fresh instance of the silence checker for this file
             var silenceDetector = silenceCheckerProvider.getObject();
-            processWavFile(wavFile, pauseList, silenceDetector);
+            var windowing = windowing(wavFile.getSampleRate());
+            if (useSegments(wavFile, windowing)) {
+                processWavFileSegmented(wavFile, windowing, pauseList, silenceDetector);
+            } else {
+                processWavFile(wavFile, windowing, pauseList, silenceDetector);
+            }
+            if (useRefinement(wavFile) && !pauseList.isEmpty()) {
+                pauseList = refineEdges(wavFile, windowing, pauseList, silenceDetector);
+            }
         } catch (Exception e) {
             throw new SilenceDetectionException("Error processing file " + filePath, e);
         }
@@ -63,79 +95,244 @@ public class AudioFileSilenceDetectorServiceImpl implements AudioFileSilenceDete
         return pauseList;
     }
 
-    private void processWavFile(WavFile wavFile, List<BreathingPause> pauseList,
+    @Override
+    public StreamingPauseDetector newStreamingDetector(String sourceName, long sampleRate, int numChannels,
+                                                       PauseListener listener) {
+        return newStreamingDetector(sourceName, sampleRate, numChannels, windowing(sampleRate),
+                silenceCheckerProvider.getObject(), listener);
+    }
+
+    private StreamingPauseDetector newStreamingDetector(String sourceName, long sampleRate, int numChannels,
+                                                        Windowing windowing, SilenceCheckerService silenceDetector,
+                                                        PauseListener listener) {
+        return new StreamingPauseDetectorImpl(sourceName, sampleRate, numChannels, windowing, settings,
+                silenceDetector, silenceCheckerProvider::getObject, listener);
+    }
+
+    /**
+     * Sequential pass: streams the file through a {@link StreamingPauseDetector} block by block
+     */
+    private void processWavFile(WavFile wavFile, Windowing windowing, List<BreathingPause> pauseList,
                                  SilenceCheckerService silenceDetector) throws Exception {
         var numChannels = wavFile.getNumChannels();
-        var sampleRate = wavFile.getSampleRate();
-        var buffer = new double[BUFFER_SIZE * numChannels];
+        var detector = newStreamingDetector(wavFile.getFile().getName(), wavFile.getSampleRate(), numChannels,
+                windowing, silenceDetector, new PauseListener() {
+                    @Override
+                    public void pauseStarted(long startFrame) {
+                        // Only complete pauses are collected
+                    }
+
+                    @Override
+                    public void pauseEnded(BreathingPause pause) {
+                        pauseList.add(pause);
+                    }
+                });
+
+        if (settings.prefetchBlocks() > 0) {
+            // The detector takes any number of samples at a time, the result does not depend on the block size
+            try (var prefetcher = new FramePrefetcher(wavFile, settings.prefetchFrames(),
+                    settings.prefetchBlocks())) {
+                FramePrefetcher.Block block;
+                while ((block = prefetcher.take()) != null) {
+                    detector.accept(block.samples(), 0, block.frames() * numChannels);
+                    prefetcher.release(block);
+                }
+            }
+        } else {
+            var blockFrames = windowing.hopFrames();
+            var buffer = new float[blockFrames * numChannels];
+            int framesRead;
+            while ((framesRead = wavFile.readFrames(buffer, 0, blockFrames)) > 0) {
+                detector.accept(buffer, 0, framesRead * numChannels);
+            }
+        }
+        detector.finish();
+    }
 
-        // Calibration phase: read initial samples to establish noise floor
-        int calibrationFrames = (int) (calibrationDurationSeconds * sampleRate);
-        List<double[]> calibrationBuffers = new ArrayList<>();
+    /**
+     * Block layout for a file: fixed blocks of BUFFER_SIZE frames, or hops and windows converted from
+     * milliseconds at the file sample rate.
+     */
+    private Windowing windowing(long sampleRate) {
+        if (settings.windowMillis() <= 0) {
+            return new Windowing(BUFFER_SIZE, 1);
+        }
+
+        var windowFrames = (int) Math.max(1, Math.round(settings.windowMillis() * sampleRate / 1000.0));
+        var hopFrames = settings.hopMillis() > 0
+                ? Math.clamp(Math.round(settings.hopMillis() * sampleRate / 1000.0), 1, windowFrames)
+                : windowFrames;
+        return new Windowing(hopFrames, (int) Math.max(1, Math.round((double) windowFrames / hopFrames)));
+    }
+
+    /**
+     * Calibration phase: streams the initial samples into the noise floor estimation of the checker
+     */
+    private void calibrate(WavFile wavFile, BlockReader reader, SilenceCheckerService silenceDetector,
+                             int blockFrames) throws Exception {
+        int calibrationFrames = (int) (settings.calibrationDurationSeconds() * wavFile.getSampleRate());
         int framesCollected = 0;
 
         while (framesCollected < calibrationFrames) {
-            int framesRead = wavFile.readFrames(buffer, BUFFER_SIZE);
+            int framesRead = reader.read(blockFrames);
             if (framesRead <= 0) break;
-            calibrationBuffers.add(buffer.clone());
+            silenceDetector.addCalibrationSamples(reader.track(0), 0, framesRead * reader.trackChannels());
             framesCollected += framesRead;
         }
 
         // Perform calibration with collected samples
-        if (!calibrationBuffers.isEmpty()) {
-            // Combine all calibration buffers into one for noise floor estimation
-            double[] combinedBuffer = calibrationBuffers.stream()
-                    .flatMapToDouble(java.util.Arrays::stream)
-                    .toArray();
-            silenceDetector.calibrate(combinedBuffer);
+        if (framesCollected > 0) {
+            silenceDetector.finishCalibration();
             logger.info("Calibrated silence detector with {} frames, threshold: {}",
                     framesCollected, silenceDetector.getCurrentThreshold());
         }
+    }
 
-        // Reset detector state for main processing
-        silenceDetector.reset();
+    private boolean useSegments(WavFile wavFile, Windowing windowing) {
+        var singleTrack = settings.channelMode() != ChannelMode.PER_CHANNEL || wavFile.getNumChannels() == 1;
+        return settings.segmentedEnabled() && !settings.rollingEnabled() && singleTrack
+                && wavFile.getNumFrames() >= 2 * blocksPerSegment(wavFile, windowing) * windowing.hopFrames();
+    }
 
-        // Process calibration buffers first (they're part of the audio)
-        var state = new ProcessingState(false, 0f, 0);
-        for (double[] calibrationBuffer : calibrationBuffers) {
-            int framesRead = calibrationBuffer.length / numChannels;
-            state = processBuffer(calibrationBuffer, state, framesRead, wavFile, sampleRate, pauseList, silenceDetector);
-        }
+    private long blocksPerSegment(WavFile wavFile, Windowing windowing) {
+        return Math.max(1,
+                (long) (settings.segmentDurationSeconds() * wavFile.getSampleRate()) / windowing.hopFrames());
+    }
+
+    /**
+     * Analyses the file in parallel segments of whole blocks after a sequential calibration.
+     * Each segment replays the preceding window and smoothing history so its smoothed RMS values match the
+     * sequential pass exactly. The hysteresis state at a segment start depends on the previous segment, so each
+     * segment is run from both possible states until both runs agree, and the stitching picks the matching run.
+     */
+    private void processWavFileSegmented(WavFile wavFile, Windowing windowing, List<BreathingPause> pauseList,
+                                         SilenceCheckerService silenceDetector) throws Exception {
+        var blockFrames = windowing.hopFrames();
+        var reader = new BlockReader(wavFile, settings.channelMode(), blockFrames);
+        silenceDetector.setAudioFormat(wavFile.getSampleRate(), reader.trackChannels());
+        calibrate(wavFile, reader, silenceDetector, blockFrames);
+        var threshold = silenceDetector.getCurrentThreshold();
+
+        var numFrames = wavFile.getNumFrames();
+        var numBlocks = (numFrames + blockFrames - 1) / blockFrames;
+        var blocksPerSegment = blocksPerSegment(wavFile, windowing);
+        var numSegments = (numBlocks + blocksPerSegment - 1) / blocksPerSegment;
 
-        // Continue processing rest of the file
-        int framesRead;
-        while ((framesRead = wavFile.readFrames(buffer, BUFFER_SIZE)) > 0) {
-            state = processBuffer(buffer, state, framesRead, wavFile, sampleRate, pauseList, silenceDetector);
+        logger.info("Analysing {} in {} parallel segments", wavFile.getFile(), numSegments);
+
+        var segments = LongStream.range(0, numSegments)
+                .parallel()
+                .mapToObj(segment -> analyseSegment(wavFile.getFile(), windowing, segment * blocksPerSegment,
+                        Math.min(numBlocks, (segment + 1) * blocksPerSegment), threshold))
+                .toList();
+
+        // Stitch the segments: the state at the end of one segment selects the run of the next one
+        var sampleRate = wavFile.getSampleRate();
+        var inSilence = false;
+        var silenceInit = 0L;
+        var lastSilenceEnd = 0L;
+        for (var segment : segments) {
+            if (segment.convergedBlock() < 0) {
+                continue;
+            }
+            var block = segment.convergedBlock();
+            var silence = segment.convergedState();
+            var transitions = segment.transitions().iterator();
+            while (true) {
+                if (silence != inSilence) {
+                    if (silence) {
+                        silenceInit = Math.max(lastSilenceEnd, block * blockFrames - windowing.lookbackFrames());
+                    } else {
+                        lastSilenceEnd = Math.min(numFrames, (block + 1) * blockFrames);
+                        addPauseIfValid(pauseList, wavFile, sampleRate, silenceInit, lastSilenceEnd);
+                    }
+                    inSilence = silence;
+                }
+                if (!transitions.hasNext()) {
+                    break;
+                }
+                block = transitions.next();
+                silence = !silence;
+            }
         }
 
         // Handle trailing silence
-        if (state.inSilence()) {
-            addPauseIfValid(pauseList, wavFile, sampleRate, state.silenceInit(), state.currentOffset());
+        if (inSilence) {
+            addPauseIfValid(pauseList, wavFile, sampleRate, silenceInit, numFrames);
         }
     }
 
-    private ProcessingState processBuffer(
-            double[] buffer,
-            ProcessingState state,
-            int framesRead,
-            WavFile wavFile,
-            long sampleRate,
-            List<BreathingPause> pauseList,
-            SilenceCheckerService silenceDetector) {
+    private boolean useRefinement(WavFile wavFile) {
+        var singleTrack = settings.channelMode() != ChannelMode.PER_CHANNEL || wavFile.getNumChannels() == 1;
+        return settings.refineMillis() > 0 && singleTrack;
+    }
+
+    /**
+     * Fine stage: moves the pause edges to sub-blocks of refineMillis within the blocks that may have delayed
+     * the coarse decision, the smoothing window plus the analysis window around each edge.
+     */
+    private List<BreathingPause> refineEdges(WavFile wavFile, Windowing windowing, List<BreathingPause> pauseList,
+                                             SilenceCheckerService silenceDetector) throws Exception {
+        var fineFrames = Math.clamp(Math.round(settings.refineMillis() * wavFile.getSampleRate() / 1000.0),
+                1, windowing.hopFrames());
+        var radiusFrames = (settings.smoothingWindowSize() + windowing.hopsPerWindow()) * windowing.hopFrames();
+        var refiner = new PauseEdgeRefiner(wavFile, silenceDetector, fineFrames, radiusFrames,
+                settings.channelMode() == ChannelMode.DOWNMIX);
+        return refiner.refine(pauseList);
+    }
+
+    private SegmentResult analyseSegment(File file, Windowing windowing, long firstBlock, long endBlock,
+                                         double threshold) {
+        try (var segmentFile = wavFileFactory.newWavFile(file)) {
+            var blockFrames = windowing.hopFrames();
+            var reader = new BlockReader(segmentFile, settings.channelMode(), blockFrames);
+            var trackChannels = reader.trackChannels();
 
-        var newOffset = state.currentOffset() + framesRead;
+            var fromSound = silenceCheckerProvider.getObject();
+            var fromSilence = silenceCheckerProvider.getObject();
+            fromSound.setAudioFormat(segmentFile.getSampleRate(), trackChannels);
+            fromSilence.setAudioFormat(segmentFile.getSampleRate(), trackChannels);
+            fromSound.setCurrentThreshold(threshold);
+            fromSilence.setCurrentThreshold(threshold);
 
-        if (silenceDetector.isSilence(buffer)) {
-            if (!state.inSilence()) {
-                return new ProcessingState(true, state.currentOffset(), newOffset);
+            // Warm up the analysis window and then the smoothing window with the blocks preceding the segment
+            var smoothingBlock = Math.max(0, firstBlock - (settings.smoothingWindowSize() - 1));
+            var warmupBlock = windowing.warmupBlock(smoothingBlock);
+            var meter = new LevelMeter(fromSound, windowing, warmupBlock);
+            segmentFile.seekFrame(warmupBlock * blockFrames);
+            for (long block = warmupBlock; block < firstBlock; block++) {
+                var rms = meter.measure(reader.track(0), reader.read(blockFrames) * trackChannels);
+                if (block >= smoothingBlock) {
+                    fromSound.isSilenceRms(rms);
+                    fromSilence.isSilenceRms(rms);
+                }
             }
-            return state.withOffset(newOffset);
-        } else {
-            if (state.inSilence()) {
-                addPauseIfValid(pauseList, wavFile, sampleRate, state.silenceInit(), newOffset);
-                return new ProcessingState(false, 0f, newOffset);
+            fromSound.setSilenceState(false);
+            fromSilence.setSilenceState(true);
+
+            // Until both runs agree each one keeps its initial state. Once they agree they stay identical.
+            var convergedBlock = -1L;
+            var convergedState = false;
+            var state = false;
+            List<Long> transitions = new ArrayList<>();
+            for (long block = firstBlock; block < endBlock; block++) {
+                var rms = meter.measure(reader.track(0), reader.read(blockFrames) * trackChannels);
+                var silence = fromSound.isSilenceRms(rms);
+                if (convergedBlock < 0) {
+                    if (fromSilence.isSilenceRms(rms) == silence) {
+                        convergedBlock = block;
+                        convergedState = silence;
+                        state = silence;
+                    }
+                } else if (silence != state) {
+                    transitions.add(block);
+                    state = silence;
+                }
             }
-            return state.withOffset(newOffset);
+
+            return new SegmentResult(convergedBlock, convergedState, transitions);
+        } catch (Exception e) {
+            throw new SilenceDetectionException("Error processing segment of file " + file, e);
         }
     }
 
@@ -143,23 +340,13 @@ public class AudioFileSilenceDetectorServiceImpl implements AudioFileSilenceDete
             List<BreathingPause> pauseList,
             WavFile wavFile,
             long sampleRate,
-            float silenceInit,
-            float silenceEnd) {
-
-        var durationSeconds = (silenceEnd - silenceInit) / sampleRate;
-
-        if (durationSeconds > SILENCE_MIN_DURATION) {
-            var startSeconds = silenceInit / sampleRate;
-            var endSeconds = silenceEnd / sampleRate;
+            long silenceInit,
+            long silenceEnd) {
 
-            logger.debug("Silence from {} to {} seconds", startSeconds, endSeconds);
-
-            pauseList.add(BreathingPause.unclassified(
-                    wavFile.getFile().getName(),
-                    pauseList.size() + 1,
-                    startSeconds,
-                    endSeconds
-            ));
+        var pause = StreamingPauseDetectorImpl.newPause(wavFile.getFile().getName(), pauseList.size() + 1,
+                silenceInit, silenceEnd, sampleRate);
+        if (pause != null) {
+            pauseList.add(pause);
         }
     }
 
@@ -176,11 +363,39 @@ public class AudioFileSilenceDetectorServiceImpl implements AudioFileSilenceDete
     }
 
     /**
-     * Immutable processing state for silence detection.
+     * Reads blocks of frames from a file and splits them into the tracks analysed
      */
-    private record ProcessingState(boolean inSilence, float silenceInit, int currentOffset) {
-        ProcessingState withOffset(int newOffset) {
-            return new ProcessingState(inSilence, silenceInit, newOffset);
+    private static final class BlockReader {
+        private final WavFile wavFile;
+        private final ChannelSplitter splitter;
+
+        BlockReader(WavFile wavFile, ChannelMode mode, int blockFrames) {
+            this.wavFile = wavFile;
+            this.splitter = new ChannelSplitter(wavFile.getNumChannels(), mode, blockFrames);
+        }
+
+        /**
+         * @return samples per frame in every track
+         */
+        int trackChannels() {
+            return splitter.trackChannels();
         }
+
+        float[] track(int track) {
+            return splitter.track(track);
+        }
+
+        int read(int numFrames) throws IOException, WavFileException {
+            var framesRead = wavFile.readFrames(splitter.frames(), 0, numFrames);
+            splitter.split(framesRead);
+            return framesRead;
+        }
+    }
+
+    /**
+     * Result of analysing one segment: the first block where the runs from both initial states agree
+     * (-1 if they never do), the state at that block and the blocks where the state toggles afterwards.
+     */
+    private record SegmentResult(long convergedBlock, boolean convergedState, List<Long> transitions) {
     }
 }
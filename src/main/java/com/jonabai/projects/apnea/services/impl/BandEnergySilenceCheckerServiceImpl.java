@@ -0,0 +1,195 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+/**
+ * SilenceCheckerService measuring the energy in the breathing band only, so low frequency rumble
+ * (ventilation, traffic, handling noise) does not hide pauses.
+ * <p>
+ * Each block is downmixed to mono, weighted with a Hann window and analysed by a bank of Goertzel filters
+ * tuned to every DFT bin of the block between the band limits. The filters are one bin apart, so their Hann main
+ * lobes tile the band and a tone gets the same level wherever it falls in it. The level is the RMS equivalent of
+ * the mean filter power: for white noise it matches the full band RMS, for out of band noise it is close to zero.
+ * Hysteresis, smoothing and thresholds work as in {@link SilenceCheckerServiceImpl}, calibration uses the
+ * band level of the calibration blocks.
+ * <p>
+ * The bin width depends on the block length, so the filter coefficients and the window table are computed for
+ * the first block and reused while the block length does not change. Measuring then allocates nothing and costs
+ * one filter update per bin in the band per sample.
+ */
+@Service
+@Scope("prototype")
+@ConditionalOnProperty(name = "apnea.silence.checker.type", havingValue = "BAND_ENERGY")
+public class BandEnergySilenceCheckerServiceImpl extends SilenceCheckerServiceImpl {
+
+    private static final long DEFAULT_SAMPLE_RATE = 44100;
+
+    private final double lowFrequency;
+    private final double highFrequency;
+
+    private long sampleRate = DEFAULT_SAMPLE_RATE;
+    private int numChannels = 1;
+    private double[] coefficients = new double[0];
+    private double[] state1 = new double[0];
+    private double[] state2 = new double[0];
+    private int numFilters;
+    private double[] window = new double[0];
+    private int windowLength = -1;
+    private double windowEnergy;
+
+    // Band power of the calibration blocks
+    private double calibrationPower;
+    private int calibrationBlocks;
+
+    public BandEnergySilenceCheckerServiceImpl(
+            @Value("${apnea.silence.checker.threshold:0.00001}") double baseSilenceThreshold,
+            @Value("${apnea.silence.checker.hysteresis.multiplier:5.0}") double hysteresisMultiplier,
+            @Value("${apnea.silence.checker.smoothing.window:5}") int smoothingWindowSize,
+            @Value("${apnea.silence.checker.calibration.multiplier:2.0}") double calibrationMultiplier,
+            @Value("${apnea.silence.checker.band.low:150.0}") double lowFrequency,
+            @Value("${apnea.silence.checker.band.high:2000.0}") double highFrequency) {
+        super(baseSilenceThreshold, hysteresisMultiplier, smoothingWindowSize, calibrationMultiplier);
+        if (lowFrequency <= 0 || highFrequency < lowFrequency) {
+            throw new IllegalArgumentException("Invalid breathing band " + lowFrequency + "-" + highFrequency + " Hz");
+        }
+        this.lowFrequency = lowFrequency;
+        this.highFrequency = highFrequency;
+    }
+
+    @Override
+    public void setAudioFormat(long sampleRate, int numChannels) {
+        this.sampleRate = sampleRate;
+        this.numChannels = Math.max(1, numChannels);
+        // The bins depend on the sample rate, the filters are tuned again on the next block
+        this.windowLength = -1;
+    }
+
+    @Override
+    public boolean measuresBand() {
+        return true;
+    }
+
+    @Override
+    double volumeRMS(float[] buffer, int offset, int length) {
+        var frames = length / numChannels;
+        if (frames == 0) {
+            return Double.MAX_VALUE;
+        }
+
+        prepareBlock(frames);
+        clearFilters();
+        for (int f = 0, i = offset; f < frames; f++) {
+            double sample = 0;
+            for (int c = 0; c < numChannels; c++) {
+                sample += buffer[i++];
+            }
+            filter(sample / numChannels * window[f]);
+        }
+        return filterRms();
+    }
+
+    @Override
+    double volumeRMS(double[] buffer, int offset, int length) {
+        var frames = length / numChannels;
+        if (frames == 0) {
+            return Double.MAX_VALUE;
+        }
+
+        prepareBlock(frames);
+        clearFilters();
+        for (int f = 0, i = offset; f < frames; f++) {
+            double sample = 0;
+            for (int c = 0; c < numChannels; c++) {
+                sample += buffer[i++];
+            }
+            filter(sample / numChannels * window[f]);
+        }
+        return filterRms();
+    }
+
+    @Override
+    public void addCalibrationSamples(float[] buffer, int offset, int length) {
+        if (length / numChannels == 0) {
+            return;
+        }
+        var rms = volumeRMS(buffer, offset, length);
+        calibrationPower += rms * rms;
+        calibrationBlocks++;
+    }
+
+    @Override
+    public void finishCalibration() {
+        if (calibrationBlocks == 0) {
+            return;
+        }
+        updateNoiseFloor(Math.sqrt(calibrationPower / calibrationBlocks));
+        calibrationPower = 0;
+        calibrationBlocks = 0;
+    }
+
+    private void filter(double sample) {
+        for (int k = 0; k < numFilters; k++) {
+            var s = sample + coefficients[k] * state1[k] - state2[k];
+            state2[k] = state1[k];
+            state1[k] = s;
+        }
+    }
+
+    private void clearFilters() {
+        for (int k = 0; k < numFilters; k++) {
+            state1[k] = 0;
+            state2[k] = 0;
+        }
+    }
+
+    /**
+     * Mean Goertzel power normalised by the window energy, as an RMS value
+     */
+    private double filterRms() {
+        double power = 0;
+        for (int k = 0; k < numFilters; k++) {
+            power += state1[k] * state1[k] + state2[k] * state2[k] - coefficients[k] * state1[k] * state2[k];
+        }
+        return Math.sqrt(Math.max(0, power) / (numFilters * windowEnergy));
+    }
+
+    /**
+     * Tunes one filter to every DFT bin of a block of the given length in the band, and computes the window
+     */
+    private void prepareBlock(int frames) {
+        if (frames == windowLength) {
+            return;
+        }
+
+        // Bins up to the Nyquist frequency, at least the one closest to the band centre for narrow bands
+        var binWidth = (double) sampleRate / frames;
+        var maxBin = frames / 2;
+        var lowBin = (int) Math.min(maxBin, Math.ceil(lowFrequency / binWidth));
+        var highBin = (int) Math.min(maxBin, Math.floor(highFrequency / binWidth));
+        if (highBin < lowBin) {
+            lowBin = highBin = (int) Math.min(maxBin, Math.round((lowFrequency + highFrequency) / 2 / binWidth));
+        }
+        numFilters = highBin - lowBin + 1;
+        if (coefficients.length < numFilters) {
+            coefficients = new double[numFilters];
+            state1 = new double[numFilters];
+            state2 = new double[numFilters];
+        }
+        for (int k = 0; k < numFilters; k++) {
+            coefficients[k] = 2 * Math.cos(2 * Math.PI * (lowBin + k) / frames);
+        }
+
+        if (window.length < frames) {
+            window = new double[frames];
+        }
+        windowEnergy = 0;
+        for (int n = 0; n < frames; n++) {
+            window[n] = frames == 1 ? 1 : 0.5 - 0.5 * Math.cos(2 * Math.PI * n / (frames - 1));
+            windowEnergy += window[n] * window[n];
+        }
+        windowLength = frames;
+    }
+}
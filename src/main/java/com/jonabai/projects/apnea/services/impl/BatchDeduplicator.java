@@ -0,0 +1,154 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.DedupMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Analyses every recording of a batch once, however many paths it is listed under.
+ * Files are fingerprinted by size and content hash (see {@link ContentFingerprint}); the first file with a
+ * fingerprint is analysed and the others wait for its pauses, which are given their own path. A file that cannot
+ * be fingerprinted is simply analysed. One instance per batch.
+ * Only the pauses of the last {@value #KEPT_RECORDINGS} recordings completed are kept, least recently used first
+ * out, so memory does not grow with the batch; a copy listed after its recording was dropped is analysed again.
+ */
+final class BatchDeduplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchDeduplicator.class);
+
+    private static final int SAMPLE_BLOCKS = 16;
+    private static final int KEPT_RECORDINGS = 1024;
+
+    private final DedupMode mode;
+    private final Map<Fingerprint, Analysis> running = new HashMap<>();     // Guarded by this
+    private final Map<Fingerprint, Analysis> completed;                     // Guarded by this
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    /**
+     * @param mode how copies are recognised, not OFF
+     */
+    BatchDeduplicator(DedupMode mode) {
+        this(mode, KEPT_RECORDINGS);
+    }
+
+    /**
+     * @param keptRecordings completed recordings whose pauses are kept for their copies
+     */
+    BatchDeduplicator(DedupMode mode, int keptRecordings) {
+        this.mode = mode;
+        var capacity = Math.max(1, keptRecordings);
+        this.completed = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Fingerprint, Analysis> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the pauses of a file, analysing it only if no copy was analysed before
+     * @param filePath path of the file
+     * @param analysis analysis of a file
+     * @return the pauses of the file, under its own path
+     */
+    List<BreathingPause> process(String filePath, Function<String, List<BreathingPause>> analysis) {
+        Fingerprint fingerprint;
+        try {
+            fingerprint = fingerprint(Path.of(filePath));
+        } catch (IOException e) {
+            logger.debug("Cannot fingerprint {}: {}", filePath, e.toString());
+            return analysis.apply(filePath);
+        }
+
+        var created = new Analysis(filePath);
+        Analysis existing;
+        synchronized (this) {
+            existing = completed.get(fingerprint);
+            if (existing == null) {
+                existing = running.putIfAbsent(fingerprint, created);
+            }
+        }
+        if (existing == null) {
+            try {
+                var pauseList = analysis.apply(filePath);
+                created.result.complete(pauseList);
+                finished(fingerprint, created);
+                return pauseList;
+            } catch (RuntimeException | Error e) {
+                // The copies waiting get the failure, later ones are analysed again
+                created.result.completeExceptionally(e);
+                synchronized (this) {
+                    running.remove(fingerprint);
+                }
+                throw e;
+            }
+        }
+
+        List<BreathingPause> pauseList;
+        try {
+            pauseList = existing.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+        duplicates.incrementAndGet();
+        logger.info("Duplicate of {}: {} pauses in {}", existing.filePath, pauseList.size(), filePath);
+        return pauseList.stream().map(pause -> pause.withFilePath(filePath)).toList();
+    }
+
+    /**
+     * @return files served from a copy analysed before
+     */
+    int getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return recordings whose pauses are kept for their copies, completed or being analysed
+     */
+    synchronized int getKeptRecordings() {
+        return running.size() + completed.size();
+    }
+
+    private synchronized void finished(Fingerprint fingerprint, Analysis analysis) {
+        completed.put(fingerprint, analysis);
+        running.remove(fingerprint);
+    }
+
+    private Fingerprint fingerprint(Path path) throws IOException {
+        var size = Files.size(path);
+        return new Fingerprint(size, mode == DedupMode.FULL
+                ? ContentFingerprint.full(path)
+                : Long.toHexString(ContentFingerprint.sampled(path, SAMPLE_BLOCKS)));
+    }
+
+    private record Fingerprint(long size, String hash) {
+    }
+
+    /**
+     * Pauses of the first file with a fingerprint, completed once it is analysed
+     */
+    private static final class Analysis {
+        private final String filePath;
+        private final CompletableFuture<List<BreathingPause>> result = new CompletableFuture<>();
+
+        Analysis(String filePath) {
+            this.filePath = filePath;
+        }
+    }
+}
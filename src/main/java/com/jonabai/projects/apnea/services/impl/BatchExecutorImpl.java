@@ -0,0 +1,174 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import com.jonabai.projects.apnea.services.BatchExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * BatchExecutor on its own pool instead of the shared ForkJoin common pool, so blocking file reads never stall
+ * other users of the common pool and the concurrency is configurable.
+ * A batch starts at most parallelism workers, each one pulling the next item index from a shared counter and
+ * storing its result in the slot of that item, so there is no queue of tasks and no lock on the results.
+ * A lazy source is fed by the caller into a queue of twice the parallelism, so reading it overlaps the work
+ * without ever getting far ahead of it.
+ * Workers are platform threads by default, or virtual threads, which leave the carrier threads free while a
+ * read blocks.
+ */
+@Service
+public class BatchExecutorImpl implements BatchExecutor, AutoCloseable {
+
+    private static final Object END = new Object();          // Queued once per worker after the last item
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final int parallelism;
+    private final ExecutorService workers;
+
+    public BatchExecutorImpl(
+            @Value("${apnea.batch.parallelism:0}") int parallelism,
+            @Value("${apnea.batch.virtual.threads:false}") boolean virtualThreads) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.workers = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("apnea-batch-", 0).factory())
+                : Executors.newFixedThreadPool(this.parallelism,
+                        Thread.ofPlatform().name("apnea-batch-", 0).daemon().factory());
+    }
+
+    @Override
+    public <T, R> List<R> map(List<T> items, Function<? super T, ? extends R> task) {
+        var results = new Object[items.size()];
+        var next = new AtomicInteger();
+        var failure = new AtomicReference<Throwable>();
+
+        Runnable worker = () -> {
+            int index;
+            while (failure.get() == null && (index = next.getAndIncrement()) < results.length) {
+                try {
+                    results[index] = task.apply(items.get(index));
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0, n = Math.min(parallelism, results.length); i < n; i++) {
+                futures.add(workers.submit(worker));
+            }
+            // Completing the workers publishes the results they stored
+            for (var future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new ApneaDetectorServiceException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        }
+
+        rethrow(failure.get());
+
+        @SuppressWarnings("unchecked")
+        var list = (List<R>) Arrays.asList(results);
+        return list;
+    }
+
+    @Override
+    public <T> void forEach(Iterator<? extends T> items, Consumer<? super T> task) {
+        var queue = new ArrayBlockingQueue<Object>(2 * parallelism);
+        var failure = new AtomicReference<Throwable>();
+
+        Runnable worker = () -> {
+            try {
+                Object item;
+                while ((item = queue.take()) != END) {
+                    if (failure.get() != null) {
+                        continue;       // Drain until the end marker, the caller stops feeding
+                    }
+                    try {
+                        @SuppressWarnings("unchecked")
+                        var typed = (T) item;
+                        task.accept(typed);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                futures.add(workers.submit(worker));
+            }
+            try {
+                feed:
+                while (failure.get() == null && items.hasNext()) {
+                    Object item = items.next();
+                    while (!queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        if (failure.get() != null) {
+                            break feed;
+                        }
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+            for (int i = 0; i < parallelism; i++) {
+                queue.put(END);
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new ApneaDetectorServiceException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        }
+
+        rethrow(failure.get());
+    }
+
+    private static void rethrow(Throwable error) {
+        if (error instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (error instanceof Error fatal) {
+            throw fatal;
+        }
+        if (error != null) {
+            throw new ApneaDetectorServiceException("Batch task failed", error);
+        }
+    }
+
+    @Override
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,309 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Lazy source of the wav file paths of a batch, read as they are needed so a manifest of any length takes
+ * constant memory. The input can be:
+ * - a CSV file, with a header row and the paths in the first column
+ * - {@code -}, the same CSV read from the standard input
+ * - a directory, every wav file below it
+ * - a glob pattern, such as {@code recordings/**}{@code /*.wav}, every file matching it below its fixed prefix
+ * Directory trees are walked depth first with files and directories in name order, so the same tree always
+ * gives the same sequence; the directories coming next are listed ahead on a small pool, in parallel with the
+ * batch consuming the current ones.
+ */
+final class BatchManifest implements Iterator<String>, AutoCloseable {
+
+    static final String STDIN = "-";
+    private static final String GLOB_CHARACTERS = "*?[{";
+    private static final String WAV_EXTENSION = ".wav";
+
+    private final Iterator<String> paths;
+    private final AutoCloseable resource;
+    private final String identity;
+
+    private BatchManifest(Iterator<String> paths, AutoCloseable resource, String identity) {
+        this.paths = paths;
+        this.resource = resource;
+        this.identity = identity;
+    }
+
+    /**
+     * Opens the manifest of a batch
+     * @param input CSV file, {@code -} for the standard input, directory or glob pattern
+     * @param walkThreads threads listing directories ahead
+     * @return the manifest, to be closed
+     */
+    static BatchManifest open(String input, int walkThreads) {
+        if (STDIN.equals(input)) {
+            // The standard input is not ours to close
+            var parser = parseCsv(new InputStreamReader(System.in, StandardCharsets.UTF_8), input);
+            return new BatchManifest(csvPaths(parser), () -> { }, null);
+        }
+
+        if (isGlob(input)) {
+            var base = globBase(input);
+            var matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+            var walk = new DirectoryWalk(base, matcher::matches, walkThreads);
+            return new BatchManifest(walk, walk, "glob\t" + input);
+        }
+
+        var path = Path.of(input);
+        if (Files.isDirectory(path)) {
+            var walk = new DirectoryWalk(path,
+                    file -> file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(WAV_EXTENSION),
+                    walkThreads);
+            return new BatchManifest(walk, walk, "directory\t" + path.toAbsolutePath().normalize());
+        }
+
+        try {
+            var identity = path.toAbsolutePath().normalize() + "\t" + Files.size(path)
+                    + "\t" + Files.getLastModifiedTime(path).toMillis();
+            var parser = parseCsv(Files.newBufferedReader(path), input);
+            return new BatchManifest(csvPaths(parser), parser, identity);
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot open file " + input, e);
+        }
+    }
+
+    /**
+     * Gets what identifies the input across runs: the CSV path, size and modification time, or the directory
+     * or pattern walked
+     * @return the identity, null when the input cannot be read again (standard input)
+     */
+    String getIdentity() {
+        return identity;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return paths.hasNext();
+    }
+
+    @Override
+    public String next() {
+        return paths.next();
+    }
+
+    @Override
+    public void close() {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            throw new ApneaDetectorServiceException("Cannot close the batch input", e);
+        }
+    }
+
+    private static CSVParser parseCsv(Reader reader, String input) {
+        try {
+            return CSVFormat.DEFAULT.builder()
+                    .setHeader()
+                    .setSkipHeaderRecord(true)
+                    .build()
+                    .parse(reader);
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot open file " + input, e);
+        }
+    }
+
+    /**
+     * First column of every record, blank ones skipped
+     */
+    private static Iterator<String> csvPaths(CSVParser parser) {
+        Iterator<CSVRecord> records = parser.iterator();
+        return new Iterator<>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && records.hasNext()) {
+                    var path = records.next().get(0);
+                    if (path != null && !path.isBlank()) {
+                        next = path;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                var path = next;
+                next = null;
+                return path;
+            }
+        };
+    }
+
+    private static boolean isGlob(String input) {
+        for (int i = 0; i < GLOB_CHARACTERS.length(); i++) {
+            if (input.indexOf(GLOB_CHARACTERS.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Longest leading directory of a pattern without glob characters
+     */
+    private static Path globBase(String pattern) {
+        var separator = FileSystems.getDefault().getSeparator();
+        var end = pattern.length();
+        for (int i = 0; i < GLOB_CHARACTERS.length(); i++) {
+            var index = pattern.indexOf(GLOB_CHARACTERS.charAt(i));
+            if (index >= 0) {
+                end = Math.min(end, index);
+            }
+        }
+        var lastSeparator = pattern.lastIndexOf(separator, end);
+        if (lastSeparator < 0) {
+            return Path.of("");
+        }
+        return Path.of(lastSeparator == 0 ? separator : pattern.substring(0, lastSeparator));
+    }
+
+    /**
+     * Depth first walk of a directory tree in name order. The next directories to visit are listed ahead on a
+     * pool, at most a few at a time, while the files of the current one are consumed.
+     */
+    private static final class DirectoryWalk implements Iterator<String>, AutoCloseable {
+
+        private final Predicate<Path> filter;
+        private final ExecutorService listers;
+        private final int lookahead;
+        private final Deque<PendingDirectory> pending = new ArrayDeque<>();
+        private final Deque<Path> files = new ArrayDeque<>();
+
+        DirectoryWalk(Path root, Predicate<Path> filter, int walkThreads) {
+            this.filter = filter;
+            var threads = Math.max(1, walkThreads);
+            this.listers = Executors.newFixedThreadPool(threads,
+                    Thread.ofPlatform().name("apnea-manifest-walk-", 0).daemon().factory());
+            this.lookahead = 4 * threads;
+            pending.add(new PendingDirectory(root));
+            listAhead();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (files.isEmpty() && !pending.isEmpty()) {
+                visit(pending.removeFirst());
+            }
+            return !files.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return files.removeFirst().toString();
+        }
+
+        @Override
+        public void close() {
+            listers.shutdownNow();
+        }
+
+        private void visit(PendingDirectory directory) {
+            Listing listing;
+            try {
+                listing = directory.start(listers).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApneaDetectorServiceException("Interrupted listing " + directory.path, e);
+            } catch (ExecutionException e) {
+                throw new ApneaDetectorServiceException("Cannot list " + directory.path, e.getCause());
+            }
+
+            // Subdirectories come next, in order, before the directories pending after this one
+            var directories = listing.directories();
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                pending.addFirst(new PendingDirectory(directories.get(i)));
+            }
+            listAhead();
+            for (var file : listing.files()) {
+                if (filter.test(file)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        private void listAhead() {
+            var started = 0;
+            for (var directory : pending) {
+                if (started++ >= lookahead) {
+                    break;
+                }
+                directory.start(listers);
+            }
+        }
+
+        private static Listing list(Path directory) throws IOException {
+            List<Path> files = new ArrayList<>();
+            List<Path> directories = new ArrayList<>();
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var entry : entries) {
+                    // Linked directories are not followed, they could loop
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        directories.add(entry);
+                    } else if (Files.isRegularFile(entry)) {
+                        files.add(entry);
+                    }
+                }
+            }
+            Comparator<Path> byName = Comparator.comparing(path -> path.getFileName().toString());
+            files.sort(byName);
+            directories.sort(byName);
+            return new Listing(files, directories);
+        }
+
+        private record Listing(List<Path> files, List<Path> directories) {
+        }
+
+        private static final class PendingDirectory {
+            private final Path path;
+            private Future<Listing> listing;
+
+            PendingDirectory(Path path) {
+                this.path = path;
+            }
+
+            Future<Listing> start(ExecutorService listers) {
+                if (listing == null) {
+                    listing = listers.submit(() -> list(path));
+                }
+                return listing;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.services.impl.wav.WavFileHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+
+/**
+ * Plans the order of a batch from the wav headers only, probed in parallel on virtual threads (the batch workers
+ * may be busy with the files planned before).
+ * The work of a file is its number of samples (frames times channels), and files are scheduled longest
+ * processing time first: workers take the files in order, so the largest ones start early and the small ones
+ * fill the gaps at the end instead of a huge file running alone. Files whose header cannot be read go first,
+ * so a broken batch fails fast.
+ */
+final class BatchPlanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchPlanner.class);
+    private static final long UNREADABLE = Long.MAX_VALUE;
+
+    private BatchPlanner() {
+    }
+
+    /**
+     * Orders files of a batch by decreasing work, ties keeping their order
+     * @param filePaths paths of every file of the input
+     * @param sequences positions in the input of the files to plan
+     * @param workers files processed at the same time, also the headers probed at the same time
+     * @return the positions, in processing order
+     */
+    static Plan plan(List<String> filePaths, List<Integer> sequences, int workers) {
+        var work = probe(sequences.stream().map(filePaths::get).toList(), workers);
+
+        var order = IntStream.range(0, sequences.size()).boxed()
+                .sorted(Comparator.comparingLong(work::get).reversed())
+                .map(sequences::get)
+                .toList();
+
+        var plan = new Plan(order, work.stream().filter(w -> w != UNREADABLE).mapToLong(Long::longValue).sum(),
+                work.stream().filter(w -> w != UNREADABLE).mapToLong(Long::longValue).max().orElse(0),
+                (int) work.stream().filter(w -> w == UNREADABLE).count(), workers);
+        logger.info("Planned {} files: {} samples in total, largest {} samples, estimated makespan {} samples "
+                        + "per worker on {} workers{}", order.size(), plan.totalSamples(), plan.largestSamples(),
+                plan.estimatedMakespan(), plan.workers(),
+                plan.unreadable() > 0 ? ", " + plan.unreadable() + " unreadable headers scheduled first" : "");
+        return plan;
+    }
+
+    private static List<Long> probe(List<String> filePaths, int parallelism) {
+        var permits = new Semaphore(Math.max(1, parallelism));
+        try (var probes = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Long>> work = new ArrayList<>();
+            for (var filePath : filePaths) {
+                work.add(probes.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return samples(filePath);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            List<Long> samples = new ArrayList<>(work.size());
+            for (var future : work) {
+                samples.add(future.get());
+            }
+            return samples;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApneaDetectorServiceException("Interrupted planning the batch", e);
+        } catch (ExecutionException e) {
+            throw new ApneaDetectorServiceException("Cannot plan the batch", e.getCause());
+        }
+    }
+
+    private static long samples(String filePath) {
+        try {
+            var header = WavFileHeader.probe(new File(filePath));
+            return header.getNumFrames() * header.getNumChannels();
+        } catch (WavFileException e) {
+            logger.debug("Cannot probe {}: {}", filePath, e.getMessage());
+            return UNREADABLE;
+        }
+    }
+
+    /**
+     * Processing order of a batch and its estimated work
+     * @param order positions in the input of the files, in processing order
+     * @param totalSamples samples of every readable file
+     * @param largestSamples samples of the largest file
+     * @param unreadable files whose header could not be read
+     * @param workers files processed at the same time
+     */
+    record Plan(List<Integer> order, long totalSamples, long largestSamples, int unreadable, int workers) {
+
+        /**
+         * Lower bound of the samples the busiest worker processes: the work evenly shared, unless a single
+         * file is larger
+         */
+        long estimatedMakespan() {
+            return Math.max(largestSamples, (totalSamples + workers - 1) / Math.max(1, workers));
+        }
+    }
+}
@@ -37,7 +37,8 @@ public class BreathingPauseClassificationServiceImpl implements BreathingPauseCl
             return List.of();
         }
 
-        return pauses.parallelStream()
+        // Classifying a pause is a few comparisons, not worth leaving the caller's thread
+        return pauses.stream()
                 .map(this::classify)
                 .toList();
     }
@@ -2,53 +2,251 @@ package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.BreathingPause;
 import com.jonabai.projects.apnea.api.domain.SilenceDetectionException;
+import com.jonabai.projects.apnea.services.BreathingPauseOutput;
 import com.jonabai.projects.apnea.services.BreathingPauseOutputWriter;
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Writes the output to a CSV file using Apache Commons CSV.
+ * The output can be written at once, or streamed file by file while a batch runs (see {@link StreamingPauseOutput}).
+ * A batch shared by several processes writes partial outputs, the same CSV with a leading label column, merged
+ * into the output once every file is done.
  */
 @Service
 public class BreathingPauseOutputWriterImpl implements BreathingPauseOutputWriter {
 
+    private static final Logger logger = LoggerFactory.getLogger(BreathingPauseOutputWriterImpl.class);
+
     private static final String[] HEADERS = {
             "File Path", "Pause #", "start [secs]", "end [secs]", "duration [secs]", "type"
     };
 
+    private static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT.builder()
+            .setHeader(HEADERS)
+            .build();
+
+    private static final String LABEL_HEADER = "Sequence";
+
+    private static final CSVFormat PARTIAL_FORMAT = CSVFormat.DEFAULT.builder()
+            .setHeader(partialHeaders())
+            .build();
+
+    private final int bufferFiles;
+    private final int flushRecords;
+    private final boolean ordered;
+
+    public BreathingPauseOutputWriterImpl(
+            @Value("${apnea.output.buffer.files:64}") int bufferFiles,
+            @Value("${apnea.output.flush.records:1000}") int flushRecords,
+            @Value("${apnea.output.ordered:true}") boolean ordered) {
+        this.bufferFiles = bufferFiles;
+        this.flushRecords = flushRecords;
+        this.ordered = ordered;
+    }
+
     @Override
     public void writeOutput(String outputPath, List<BreathingPause> pauseList) {
         if (pauseList == null || outputPath == null || outputPath.isBlank()) {
             return;
         }
 
-        var csvFormat = CSVFormat.DEFAULT.builder()
-                .setHeader(HEADERS)
-                .build();
-
         try (Writer writer = Files.newBufferedWriter(Path.of(outputPath));
-             CSVPrinter csvPrinter = new CSVPrinter(writer, csvFormat)) {
+             CSVPrinter csvPrinter = new CSVPrinter(writer, CSV_FORMAT)) {
 
             for (var pause : pauseList) {
-                csvPrinter.printRecord(
-                        pause.filePath(),
-                        pause.index(),
-                        pause.start(),
-                        pause.end(),
-                        pause.duration(),
-                        pause.type().name()
-                );
+                printPause(csvPrinter, pause);
+            }
+
+        } catch (IOException e) {
+            throw new SilenceDetectionException("Error exporting results to " + outputPath, e);
+        }
+    }
+
+    @Override
+    public BreathingPauseOutput openOutput(String outputPath) {
+        return openOutput(outputPath, 0, null);
+    }
+
+    @Override
+    public BreathingPauseOutput openOutput(String outputPath, long resumeOffset,
+                                           BreathingPauseOutput.FlushListener listener) {
+        return open(outputPath, resumeOffset, CSV_FORMAT, ordered, listener, null);
+    }
+
+    @Override
+    public BreathingPauseOutput openPartialOutput(String outputPath, IntUnaryOperator label,
+                                                  BreathingPauseOutput.FlushListener listener) {
+        // Merging relies on every partial output being in label order
+        return open(outputPath, 0, PARTIAL_FORMAT, true, listener, label);
+    }
+
+    @Override
+    public void mergePartialOutputs(List<String> partialPaths, IntFunction<String> owner, String outputPath) {
+        List<PartialOutput> partials = new ArrayList<>();
+        try (Writer writer = Files.newBufferedWriter(Path.of(outputPath));
+             CSVPrinter csvPrinter = new CSVPrinter(writer, CSV_FORMAT)) {
+
+            var queue = new PriorityQueue<>(Comparator.comparingInt(PartialOutput::label)
+                    .thenComparingInt(PartialOutput::index));
+            for (var partialPath : partialPaths) {
+                var partial = new PartialOutput(partialPath, partials.size(),
+                        PARTIAL_FORMAT.builder().setSkipHeaderRecord(true).build()
+                                .parse(Files.newBufferedReader(Path.of(partialPath))));
+                partials.add(partial);
+                if (partial.advance()) {
+                    queue.add(partial);
+                }
+            }
+
+            var label = -1;
+            String labelOwner = null;
+            while (!queue.isEmpty()) {
+                var partial = queue.poll();
+                if (partial.label() != label) {
+                    label = partial.label();
+                    labelOwner = owner.apply(label);
+                }
+                if (partial.path.equals(labelOwner)) {
+                    csvPrinter.printRecord(partial.record.toList().subList(1, partial.record.size()));
+                }
+                if (partial.advance()) {
+                    queue.add(partial);
+                }
             }
 
         } catch (IOException e) {
             throw new SilenceDetectionException("Error exporting results to " + outputPath, e);
+        } finally {
+            partials.forEach(PartialOutput::close);
+        }
+    }
+
+    private BreathingPauseOutput open(String outputPath, long resumeOffset, CSVFormat csvFormat, boolean ordered,
+                                      BreathingPauseOutput.FlushListener listener, IntUnaryOperator label) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Path.of(outputPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Anything after the resumed part was written after the last flush reported
+            channel.truncate(resumeOffset);
+            channel.position(resumeOffset);
+            var format = resumeOffset > 0 ? csvFormat.builder().setSkipHeaderRecord(true).build() : csvFormat;
+            var csvPrinter = new CSVPrinter(
+                    new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8)), format);
+            return new StreamingPauseOutput(outputPath, csvPrinter, channel, bufferFiles, flushRecords, ordered,
+                    listener, label);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new SilenceDetectionException("Error exporting results to " + outputPath, e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already failing
+            }
+        }
+    }
+
+    static void printPause(CSVPrinter csvPrinter, BreathingPause pause) throws IOException {
+        csvPrinter.printRecord(
+                pause.filePath(),
+                pause.index(),
+                pause.start(),
+                pause.end(),
+                pause.duration(),
+                pause.type().name()
+        );
+    }
+
+    private static String[] partialHeaders() {
+        var headers = new String[HEADERS.length + 1];
+        headers[0] = LABEL_HEADER;
+        System.arraycopy(HEADERS, 0, headers, 1, HEADERS.length);
+        return headers;
+    }
+
+    /**
+     * Partial output being merged, positioned on its current row
+     */
+    private static final class PartialOutput {
+        private final String path;
+        private final int index;
+        private final CSVParser parser;
+        private final Iterator<CSVRecord> records;
+        private CSVRecord record;
+        private int label;
+
+        PartialOutput(String path, int index, CSVParser parser) {
+            this.path = path;
+            this.index = index;
+            this.parser = parser;
+            this.records = parser.iterator();
+        }
+
+        int label() {
+            return label;
+        }
+
+        int index() {
+            return index;
+        }
+
+        /**
+         * Moves to the next row. A partial output may end with a row torn by a process that died while writing
+         * it, never owned, so reading stops there.
+         * @return false at the end
+         */
+        boolean advance() {
+            try {
+                if (records.hasNext()) {
+                    record = records.next();
+                    if (record.size() == HEADERS.length + 1) {
+                        label = Integer.parseInt(record.get(0));
+                        return true;
+                    }
+                    logger.warn("Ignoring the rest of {} from row {}", path, record.getRecordNumber());
+                }
+            } catch (UncheckedIOException | NumberFormatException e) {
+                logger.warn("Ignoring the rest of {}: {}", path, e.toString());
+            }
+            record = null;
+            return false;
+        }
+
+        void close() {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // Only read
+            }
         }
     }
 }
@@ -0,0 +1,279 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.BreathingPauseType;
+import com.jonabai.projects.apnea.api.domain.CacheVerification;
+import com.jonabai.projects.apnea.services.BreathingPauseResultCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * BreathingPauseResultCache storing one file per wav file and configuration in a cache directory.
+ * An entry is named after the hash of the wav file path and of the configuration fingerprint, a hash of every
+ * property changing the pauses (detection and classification). It records the size and modification time of the
+ * wav file and, in SAMPLED verification, a CRC32C of its first bytes (the header) and of blocks sampled evenly
+ * along it (see {@link ContentFingerprint}), so a file rewritten with the same size and time is not served from
+ * the cache.
+ * The directory is bounded in size: once over the limit the least recently used entries are evicted, a hit
+ * refreshing the time of its entry. Cache failures are logged and never fail the processing.
+ * Disabled when no directory is configured.
+ */
+@Service
+public class BreathingPauseResultCacheImpl implements BreathingPauseResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BreathingPauseResultCacheImpl.class);
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".pauses";
+    private static final String[] FINGERPRINT_PREFIXES = {
+            "apnea.silence.", "apnea.classification.", "apnea.simd."
+    };
+
+    private final Path cacheDir;
+    private final String configFingerprint;
+    private final long maxBytes;
+    private final CacheVerification verification;
+    private final int sampleBlocks;
+    private long totalBytes = -1;       // Size of the entries, unknown until the directory is first listed
+
+    @Autowired
+    public BreathingPauseResultCacheImpl(
+            Environment environment,
+            @Value("${apnea.cache.dir:}") String cacheDir,
+            @Value("${apnea.cache.max.bytes:268435456}") long maxBytes,
+            @Value("${apnea.cache.verification:STAT}") CacheVerification verification,
+            @Value("${apnea.cache.sample.blocks:16}") int sampleBlocks) {
+        this(cacheDir.isBlank() ? null : Path.of(cacheDir), configFingerprint(environment), maxBytes,
+                verification, sampleBlocks);
+    }
+
+    /**
+     * @param cacheDir cache directory, null to disable the cache
+     * @param configFingerprint fingerprint of the configuration the pauses are computed with
+     */
+    BreathingPauseResultCacheImpl(Path cacheDir, String configFingerprint, long maxBytes,
+                                  CacheVerification verification, int sampleBlocks) {
+        this.cacheDir = cacheDir;
+        this.configFingerprint = configFingerprint;
+        this.maxBytes = maxBytes;
+        this.verification = verification;
+        this.sampleBlocks = Math.max(0, sampleBlocks);
+    }
+
+    @Override
+    public Optional<List<BreathingPause>> get(String filePath) {
+        if (cacheDir == null) {
+            return Optional.empty();
+        }
+
+        var entryPath = entryPath(filePath);
+        if (!Files.exists(entryPath)) {
+            return Optional.empty();
+        }
+        try {
+            var wavPath = Path.of(filePath);
+            var size = Files.size(wavPath);
+            var modified = Files.getLastModifiedTime(wavPath).toMillis();
+
+            List<BreathingPause> pauseList;
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entryPath)))) {
+                if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(filePath)
+                        || !in.readUTF().equals(configFingerprint)
+                        || in.readLong() != size || in.readLong() != modified) {
+                    return Optional.empty();
+                }
+                var sampled = in.readBoolean();
+                var sampleHash = in.readLong();
+                if (verification == CacheVerification.SAMPLED
+                        && (!sampled || sampleHash != ContentFingerprint.sampled(wavPath, sampleBlocks))) {
+                    return Optional.empty();
+                }
+
+                var count = in.readInt();
+                pauseList = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    pauseList.add(new BreathingPause(filePath, in.readInt(), in.readLong(), in.readLong(),
+                            in.readLong(), BreathingPauseType.valueOf(in.readUTF())));
+                }
+            }
+
+            // Most recently used
+            Files.setLastModifiedTime(entryPath, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(pauseList);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring cached pauses of {}: {}", filePath, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void put(String filePath, List<BreathingPause> pauseList) {
+        if (cacheDir == null) {
+            return;
+        }
+
+        Path tempPath = null;
+        try {
+            var wavPath = Path.of(filePath);
+            Files.createDirectories(cacheDir);
+            tempPath = Files.createTempFile(cacheDir, "entry", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(filePath);
+                out.writeUTF(configFingerprint);
+                out.writeLong(Files.size(wavPath));
+                out.writeLong(Files.getLastModifiedTime(wavPath).toMillis());
+                var sampled = verification == CacheVerification.SAMPLED;
+                out.writeBoolean(sampled);
+                out.writeLong(sampled ? ContentFingerprint.sampled(wavPath, sampleBlocks) : 0);
+
+                out.writeInt(pauseList.size());
+                for (var pause : pauseList) {
+                    out.writeInt(pause.index());
+                    out.writeLong(pause.startFrame());
+                    out.writeLong(pause.endFrame());
+                    out.writeLong(pause.sampleRate());
+                    out.writeUTF(pause.type().name());
+                }
+            }
+            var entryPath = entryPath(filePath);
+            var replaced = Files.exists(entryPath) ? Files.size(entryPath) : 0;
+            var added = Files.size(tempPath);
+            Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tempPath = null;
+
+            added(added - replaced);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot cache the pauses of {}: {}", filePath, e.toString());
+        } finally {
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException e) {
+                    // Left for the next eviction
+                }
+            }
+        }
+    }
+
+    private synchronized void added(long bytes) throws IOException {
+        if (totalBytes < 0) {
+            evict();
+            return;
+        }
+        totalBytes += bytes;
+        if (totalBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Lists the entries and removes the least recently used while the cache is over its size limit
+     */
+    private void evict() throws IOException {
+        record Entry(Path path, long size, long lastUsed) {
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        var total = 0L;
+        try (var stream = Files.newDirectoryStream(cacheDir, "*" + ENTRY_SUFFIX)) {
+            for (var path : stream) {
+                try {
+                    var entry = new Entry(path, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+                    entries.add(entry);
+                    total += entry.size();
+                } catch (IOException e) {
+                    // Evicted meanwhile
+                }
+            }
+        }
+        totalBytes = total;
+        if (total <= maxBytes) {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        var evicted = 0;
+        for (var entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.path());
+            total -= entry.size();
+            evicted++;
+        }
+        totalBytes = total;
+        logger.debug("Evicted {} entries from the pause cache {}", evicted, cacheDir);
+    }
+
+    private Path entryPath(String filePath) {
+        return cacheDir.resolve(sha256(Path.of(filePath).toAbsolutePath().normalize() + "\n" + configFingerprint)
+                + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Hash of the properties changing the pauses: every detection and classification property of the
+     * environment, whatever its source
+     */
+    static String configFingerprint(Environment environment) {
+        var properties = new TreeMap<String, String>();
+        if (environment instanceof ConfigurableEnvironment configurable) {
+            for (var source : configurable.getPropertySources()) {
+                if (source instanceof EnumerablePropertySource<?> enumerable) {
+                    for (var name : enumerable.getPropertyNames()) {
+                        if (isFingerprinted(name)) {
+                            properties.put(name, environment.getProperty(name));
+                        }
+                    }
+                }
+            }
+        }
+
+        var text = new StringBuilder();
+        properties.forEach((name, value) -> text.append(name).append('=').append(value).append('\n'));
+        return sha256(text.toString());
+    }
+
+    private static boolean isFingerprinted(String name) {
+        for (var prefix : FINGERPRINT_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String sha256(String text) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
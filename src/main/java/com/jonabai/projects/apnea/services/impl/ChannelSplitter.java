@@ -0,0 +1,77 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ChannelMode;
+
+/**
+ * Splits blocks of interleaved frames into the tracks analysed: the interleaved frames themselves (MIXED),
+ * their mono downmix (DOWNMIX) or one deinterleaved buffer per channel (PER_CHANNEL)
+ */
+final class ChannelSplitter {
+
+    private final int numChannels;
+    private final ChannelMode mode;
+    private final float[] frames;
+    private final float[][] tracks;
+
+    ChannelSplitter(int numChannels, ChannelMode mode, int blockFrames) {
+        this.numChannels = numChannels;
+        this.mode = numChannels == 1 ? ChannelMode.MIXED : mode;
+        this.frames = new float[blockFrames * numChannels];
+        this.tracks = switch (this.mode) {
+            case MIXED -> new float[][]{frames};
+            case DOWNMIX -> new float[1][blockFrames];
+            case PER_CHANNEL -> new float[numChannels][blockFrames];
+        };
+    }
+
+    /**
+     * @return the buffer the interleaved frames of a block are written to
+     */
+    float[] frames() {
+        return frames;
+    }
+
+    int numTracks() {
+        return tracks.length;
+    }
+
+    /**
+     * @return samples per frame in every track
+     */
+    int trackChannels() {
+        return mode == ChannelMode.MIXED ? numChannels : 1;
+    }
+
+    float[] track(int track) {
+        return tracks[track];
+    }
+
+    /**
+     * Fills the tracks from the first frames of the block buffer
+     */
+    void split(int numFrames) {
+        switch (mode) {
+            case MIXED -> {
+                // The interleaved frames are the track
+            }
+            case DOWNMIX -> {
+                var mono = tracks[0];
+                var scale = 1f / numChannels;
+                for (int f = 0, i = 0; f < numFrames; f++) {
+                    float sum = 0;
+                    for (int c = 0; c < numChannels; c++) {
+                        sum += frames[i++];
+                    }
+                    mono[f] = sum * scale;
+                }
+            }
+            case PER_CHANNEL -> {
+                for (int f = 0, i = 0; f < numFrames; f++) {
+                    for (int c = 0; c < numChannels; c++) {
+                        tracks[c][f] = frames[i++];
+                    }
+                }
+            }
+        }
+    }
+}
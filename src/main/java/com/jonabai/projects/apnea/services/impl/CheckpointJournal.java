@@ -0,0 +1,185 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the files of a batch whose pauses are in the output, kept next to it as {@code <output>.journal}
+ * so an interrupted batch can be resumed.
+ * The first line identifies the input (see {@link BatchManifest#getIdentity()}). Every other line records one
+ * file: the output size once its pauses were flushed and its path, behind a CRC32 so a line torn by a crash is
+ * detected. Lines are only appended, the journal is read up to the first torn line and rewritten atomically
+ * (temporary file and move) when opened.
+ * Files are recognised by path, not position, as a walked directory may have changed between runs; a path
+ * listed several times is completed as many times as it was journaled.
+ */
+final class CheckpointJournal implements AutoCloseable {
+
+    static final String SUFFIX = ".journal";
+    private static final String FORMAT = "apnea-journal-2";
+    private static final String SEPARATOR = "\t";
+
+    private final Path journalPath;
+    private final Map<String, Integer> completed;        // Occurrences of every path not claimed yet
+    private final int completedCount;
+    private final long outputOffset;
+    private final BufferedWriter writer;
+
+    private CheckpointJournal(Path journalPath, Map<String, Integer> completed, int completedCount,
+                              long outputOffset, BufferedWriter writer) {
+        this.journalPath = journalPath;
+        this.completed = completed;
+        this.completedCount = completedCount;
+        this.outputOffset = outputOffset;
+        this.writer = writer;
+    }
+
+    /**
+     * Opens the journal of an output, resuming it when it was left by a run over the same input
+     * @param inputIdentity identity of the input of the batch
+     * @param outputPath output of the batch
+     * @return the journal, empty when the batch starts over
+     */
+    static CheckpointJournal open(String inputIdentity, Path outputPath) {
+        var journalPath = outputPath.resolveSibling(outputPath.getFileName() + SUFFIX);
+        try {
+            var header = FORMAT + SEPARATOR + inputIdentity;
+            List<String> lines = new ArrayList<>();
+            Map<String, Integer> completed = new HashMap<>();
+            var outputOffset = 0L;
+
+            if (Files.exists(journalPath) && Files.exists(outputPath)) {
+                var existing = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+                if (!existing.isEmpty() && existing.getFirst().equals(header)) {
+                    for (var line : existing.subList(1, existing.size())) {
+                        var fields = parse(line);
+                        if (fields == null) {
+                            break;
+                        }
+                        outputOffset = Long.parseLong(fields[0]);
+                        completed.merge(fields[1], 1, Integer::sum);
+                        lines.add(line);
+                    }
+                }
+                // The output does not hold what the journal says, start over
+                if (outputOffset > Files.size(outputPath)) {
+                    lines.clear();
+                    completed.clear();
+                    outputOffset = 0;
+                }
+            }
+
+            lines.addFirst(header);
+            var tempPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+            Files.write(tempPath, lines, StandardCharsets.UTF_8);
+            Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            var writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            return new CheckpointJournal(journalPath, completed, lines.size() - 1, outputOffset, writer);
+        } catch (IOException | RuntimeException e) {
+            throw new ApneaDetectorServiceException("Cannot open checkpoint journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * @return size of the output holding the completed files, 0 when the batch starts over
+     */
+    long getOutputOffset() {
+        return outputOffset;
+    }
+
+    /**
+     * @return number of completed files
+     */
+    int getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * Checks if a file of the input has already been written to the output, once per time it was journaled.
+     * Called once for every file of the input, in order.
+     * @param filePath path of the file
+     * @return true if it is completed
+     */
+    boolean claim(String filePath) {
+        var count = completed.get(filePath);
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            completed.put(filePath, count - 1);
+        } else {
+            completed.remove(filePath);
+        }
+        return true;
+    }
+
+    /**
+     * Records files whose pauses are on disk
+     * @param filePaths paths of the files
+     * @param outputSize size of the output holding them
+     */
+    synchronized void append(List<String> filePaths, long outputSize) {
+        try {
+            for (var filePath : filePaths) {
+                var record = outputSize + SEPARATOR + filePath;
+                writer.write(checksum(record) + SEPARATOR + record);
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot write checkpoint journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Closes and removes the journal once the batch is complete
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot delete checkpoint journal " + journalPath, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot close checkpoint journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * @return output size and path of a journal line, null if it is torn
+     */
+    private static String[] parse(String line) {
+        var split = line.indexOf(SEPARATOR);
+        if (split < 0 || !line.substring(0, split).equals(checksum(line.substring(split + 1)))) {
+            return null;
+        }
+        var fields = line.substring(split + 1).split(SEPARATOR, 2);
+        return fields.length == 2 ? fields : null;
+    }
+
+    private static String checksum(String record) {
+        var crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
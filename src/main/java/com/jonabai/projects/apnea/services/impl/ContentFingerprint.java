@@ -0,0 +1,81 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Hashes of the content of a file: a cheap one over its first bytes, where the wav header is, and blocks sampled
+ * evenly along it, and a full one over every byte
+ */
+final class ContentFingerprint {
+
+    static final int SAMPLE_BYTES = 4096;
+    private static final int FULL_BUFFER_BYTES = 1 << 16;
+
+    private ContentFingerprint() {
+    }
+
+    /**
+     * CRC32C of the first bytes of the file and of blocks sampled evenly along it, and of its size
+     * @param path file to hash
+     * @param sampleBlocks blocks sampled after the first one
+     * @return the hash
+     */
+    static long sampled(Path path, int sampleBlocks) throws IOException {
+        var crc = new CRC32C();
+        var buffer = ByteBuffer.allocate(SAMPLE_BYTES);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var size = channel.size();
+            readBlock(channel, 0, buffer, crc);
+            for (int block = 1; block <= sampleBlocks; block++) {
+                readBlock(channel, size * block / (sampleBlocks + 1), buffer, crc);
+            }
+            crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * SHA-256 of every byte of the file
+     * @param path file to hash
+     * @return the hash, in hexadecimal
+     */
+    static String full(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var buffer = ByteBuffer.allocate(FULL_BUFFER_BYTES);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void readBlock(FileChannel channel, long position, ByteBuffer buffer, CRC32C crc)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        crc.update(buffer);
+    }
+}
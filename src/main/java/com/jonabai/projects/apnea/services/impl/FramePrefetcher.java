@@ -0,0 +1,130 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.services.WavFile;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads and decodes a wav file ahead of its analysis, on a virtual thread, into a bounded ring of sample blocks.
+ * Blocks cycle between two queues: the reader takes a free block, fills it and hands it over, the analysis gives
+ * it back once consumed. The reader waits while every block is full, so at most the ring is decoded ahead, and no
+ * block is allocated after construction. Reading overlaps the analysis, so a file takes about the longer of the two
+ * instead of their sum.
+ * The file belongs to the reader until the prefetcher is closed.
+ */
+final class FramePrefetcher implements AutoCloseable {
+
+    private static final Block END = new Block(new float[0]);
+
+    private final WavFile wavFile;
+    private final int blockFrames;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private final Thread reader;
+    private volatile Throwable failure;
+    private boolean ended;
+
+    /**
+     * @param blockFrames frames decoded into each block
+     * @param ringBlocks blocks in the ring, how far the reader gets ahead
+     */
+    FramePrefetcher(WavFile wavFile, int blockFrames, int ringBlocks) {
+        this.wavFile = wavFile;
+        this.blockFrames = Math.max(1, blockFrames);
+        var blocks = Math.max(1, ringBlocks);
+        this.free = new ArrayBlockingQueue<>(blocks);
+        // Room for the end as well as every block
+        this.filled = new ArrayBlockingQueue<>(blocks + 1);
+        for (int i = 0; i < blocks; i++) {
+            free.add(new Block(new float[this.blockFrames * wavFile.getNumChannels()]));
+        }
+        this.reader = Thread.ofVirtual().name("apnea-prefetch-" + wavFile.getFile().getName()).start(this::readLoop);
+    }
+
+    /**
+     * Takes the next block decoded, waiting for the reader if needed. It has to be released once consumed.
+     * @return the block, null at the end of the file
+     */
+    Block take() throws WavFileException, InterruptedException {
+        if (ended) {
+            return null;
+        }
+        var block = filled.take();
+        if (block == END) {
+            ended = true;
+            if (failure != null) {
+                throw new WavFileException("Error reading frames!", failure);
+            }
+            return null;
+        }
+        return block;
+    }
+
+    /**
+     * Gives a consumed block back to the reader
+     */
+    void release(Block block) {
+        free.add(block);
+    }
+
+    /**
+     * Stops the reader and waits for it, handing the file back
+     */
+    @Override
+    public void close() {
+        reader.interrupt();
+        var interrupted = false;
+        while (true) {
+            try {
+                reader.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                var block = free.take();
+                block.frames = wavFile.readFrames(block.samples, 0, blockFrames);
+                if (block.frames <= 0) {
+                    break;
+                }
+                filled.put(block);
+            }
+        } catch (InterruptedException e) {
+            // Closed before the end
+            return;
+        } catch (Exception | Error e) {
+            failure = e;
+        }
+        filled.add(END);
+    }
+
+    /**
+     * Interleaved samples of up to a block of frames
+     */
+    static final class Block {
+        private final float[] samples;
+        private int frames;
+
+        private Block(float[] samples) {
+            this.samples = samples;
+        }
+
+        float[] samples() {
+            return samples;
+        }
+
+        int frames() {
+            return frames;
+        }
+    }
+}
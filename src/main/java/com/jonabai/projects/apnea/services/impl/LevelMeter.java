@@ -0,0 +1,38 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.services.SilenceCheckerService;
+
+/**
+ * Measures the volume of consecutive blocks: the block RMS, or the RMS of the sliding window ending with it
+ */
+final class LevelMeter {
+
+    private final SilenceCheckerService silenceDetector;
+    private final SlidingRms window;
+
+    /**
+     * @param firstBlock absolute index of the first block that will be measured
+     * @throws IllegalArgumentException if the checker measures a frequency band and the level is a sliding window,
+     * which measures the full band while the threshold is calibrated on the band
+     */
+    LevelMeter(SilenceCheckerService silenceDetector, Windowing windowing, long firstBlock) {
+        if (silenceDetector.measuresBand() && windowing.hopsPerWindow() > 1) {
+            throw new IllegalArgumentException("A silence checker measuring a frequency band only supports fixed"
+                    + " blocks and hops, not sliding windows");
+        }
+        this.silenceDetector = silenceDetector;
+        this.window = windowing.hopsPerWindow() > 1 ? new SlidingRms(windowing.hopsPerWindow(), firstBlock)
+                : null;
+    }
+
+    /**
+     * @return true if the level is the RMS of the block samples, as measured by the silence checker
+     */
+    boolean isDirect() {
+        return window == null;
+    }
+
+    double measure(float[] buffer, int samples) {
+        return window != null ? window.add(buffer, 0, samples) : silenceDetector.measureRms(buffer, 0, samples);
+    }
+}
@@ -0,0 +1,122 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile estimator based on the P² algorithm (Jain and Chlamtac, 1985).
+ * Keeps five markers whose heights approximate the minimum, the target quantile, the maximum and two
+ * intermediate quantiles, adjusted with a piecewise parabolic prediction on every observation.
+ * Memory and cost per observation are constant, however many values are added.
+ */
+final class P2QuantileEstimator {
+
+    private final double quantile;
+    private final double[] heights = new double[5];       // Marker heights
+    private final long[] positions = new long[5];         // Actual marker positions
+    private final double[] desired = new double[5];       // Desired marker positions
+    private final double[] increments;                    // Desired position increment per observation
+    private long count;
+
+    P2QuantileEstimator(double quantile) {
+        if (quantile <= 0 || quantile >= 1) {
+            throw new IllegalArgumentException("Quantile must be in (0, 1): " + quantile);
+        }
+        this.quantile = quantile;
+        this.increments = new double[]{0, quantile / 2, quantile, (1 + quantile) / 2, 1};
+        reset();
+    }
+
+    void add(double value) {
+        if (count < 5) {
+            heights[(int) count++] = value;
+            if (count == 5) {
+                Arrays.sort(heights);
+            }
+            return;
+        }
+        count++;
+
+        // Find the cell containing the value, extending the extreme markers if needed
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = Math.max(heights[4], value);
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+
+        for (int i = cell + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+
+        // Move the middle markers towards their desired positions
+        for (int i = 1; i < 4; i++) {
+            var offset = desired[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int step = offset > 0 ? 1 : -1;
+                var height = parabolic(i, step);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] = linear(i, step);
+                }
+                positions[i] += step;
+            }
+        }
+    }
+
+    /**
+     * Current estimation of the quantile, exact while fewer than five values have been added
+     * @return the estimated quantile, NaN if no value has been added
+     */
+    double getQuantile() {
+        if (count >= 5) {
+            return heights[2];
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        var sorted = Arrays.copyOf(heights, (int) count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.round(quantile * (count - 1))];
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    void reset() {
+        count = 0;
+        for (int i = 0; i < 5; i++) {
+            positions[i] = i + 1;
+        }
+        desired[0] = 1;
+        desired[1] = 1 + 2 * quantile;
+        desired[2] = 1 + 4 * quantile;
+        desired[3] = 3 + 2 * quantile;
+        desired[4] = 5;
+    }
+
+    private double parabolic(int i, int step) {
+        double n = positions[i];
+        double nPrev = positions[i - 1];
+        double nNext = positions[i + 1];
+        return heights[i] + step / (nNext - nPrev)
+                * ((n - nPrev + step) * (heights[i + 1] - heights[i]) / (nNext - n)
+                + (nNext - n - step) * (heights[i] - heights[i - 1]) / (n - nPrev));
+    }
+
+    private double linear(int i, int step) {
+        return heights[i] + step * (heights[i + step] - heights[i]) / (positions[i + step] - positions[i]);
+    }
+}
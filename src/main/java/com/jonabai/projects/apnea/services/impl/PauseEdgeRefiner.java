@@ -0,0 +1,134 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.services.SilenceCheckerService;
+import com.jonabai.projects.apnea.services.WavFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second, fine stage of the pause detection: moves the edges of the pauses found by the coarse pass to the
+ * resolution of short sub-blocks.
+ * <p>
+ * Only a neighbourhood of each edge is read again. A pause starts after the last loud sub-block around its coarse
+ * start and ends at the first loud sub-block around its coarse end, a sub-block being loud when its level exceeds
+ * the threshold needed to leave silence. An edge without loud sub-blocks around it keeps its coarse position,
+ * and edges never cross the neighbouring pauses. The cost grows with the number of pauses, not with the file length.
+ */
+final class PauseEdgeRefiner {
+
+    private final WavFile wavFile;
+    private final SilenceCheckerService silenceDetector;
+    private final int fineFrames;
+    private final int radiusFrames;
+    private final boolean downmix;
+    private final int numChannels;
+    private final float[] frames;
+    private final float[] mono;
+
+    /**
+     * @param wavFile file to read the neighbourhoods from, positioned anywhere
+     * @param silenceDetector calibrated checker measuring the sub-blocks
+     * @param fineFrames frames per sub-block
+     * @param radiusFrames frames read on each side of a coarse edge
+     * @param downmix true to measure the mono downmix instead of the interleaved frames
+     */
+    PauseEdgeRefiner(WavFile wavFile, SilenceCheckerService silenceDetector, int fineFrames, int radiusFrames,
+                     boolean downmix) {
+        this.wavFile = wavFile;
+        this.silenceDetector = silenceDetector;
+        this.fineFrames = Math.max(1, fineFrames);
+        this.radiusFrames = Math.max(this.fineFrames, radiusFrames);
+        this.numChannels = wavFile.getNumChannels();
+        this.downmix = downmix && numChannels > 1;
+        this.frames = new float[2 * this.radiusFrames * numChannels];
+        this.mono = this.downmix ? new float[2 * this.radiusFrames] : frames;
+    }
+
+    List<BreathingPause> refine(List<BreathingPause> pauses) throws IOException, WavFileException {
+        var sampleRate = wavFile.getSampleRate();
+        var numFrames = wavFile.getNumFrames();
+        var loudLevel = silenceDetector.getExitThreshold();
+
+        List<BreathingPause> refined = new ArrayList<>(pauses.size());
+        var previousEnd = 0L;
+        for (int i = 0; i < pauses.size(); i++) {
+            var pause = pauses.get(i);
+            var start = toFrame(pause.startFrame(), pause.sampleRate(), sampleRate);
+            var end = toFrame(pause.endFrame(), pause.sampleRate(), sampleRate);
+            var nextStart = i + 1 < pauses.size()
+                    ? toFrame(pauses.get(i + 1).startFrame(), pauses.get(i + 1).sampleRate(), sampleRate)
+                    : numFrames;
+
+            // Start: right after the last loud sub-block
+            var from = Math.max(previousEnd, start - radiusFrames);
+            var to = Math.min(end, start + radiusFrames);
+            var lastLoud = -1;
+            var subBlocks = read(from, to);
+            for (int b = 0; b < subBlocks; b++) {
+                if (level(b, from, to) > loudLevel) lastLoud = b;
+            }
+            var refinedStart = lastLoud < 0 ? start : Math.min(to, from + (long) (lastLoud + 1) * fineFrames);
+
+            // End: at the first loud sub-block
+            from = Math.max(refinedStart, end - radiusFrames);
+            to = Math.min(nextStart, end + radiusFrames);
+            var firstLoud = -1;
+            subBlocks = read(from, to);
+            for (int b = 0; b < subBlocks && firstLoud < 0; b++) {
+                if (level(b, from, to) > loudLevel) firstLoud = b;
+            }
+            var refinedEnd = firstLoud < 0 ? end : from + (long) firstLoud * fineFrames;
+
+            if (refinedEnd <= refinedStart) {
+                // Nothing left between the refined edges, keep the coarse pause
+                refinedStart = start;
+                refinedEnd = end;
+            }
+            refined.add(BreathingPause.unclassified(pause.filePath(), pause.index(), refinedStart, refinedEnd,
+                    sampleRate));
+            previousEnd = refinedEnd;
+        }
+        return refined;
+    }
+
+    /**
+     * Converts a frame index between sample rates
+     */
+    private static long toFrame(long frame, long fromRate, long toRate) {
+        return fromRate == toRate ? frame : Math.round((double) frame * toRate / fromRate);
+    }
+
+    /**
+     * Reads the frames between two positions
+     * @return number of sub-blocks read
+     */
+    private int read(long from, long to) throws IOException, WavFileException {
+        if (to <= from) {
+            return 0;
+        }
+        wavFile.seekFrame(from);
+        var framesRead = wavFile.readFrames(frames, 0, (int) (to - from));
+        if (downmix) {
+            var scale = 1f / numChannels;
+            for (int f = 0, i = 0; f < framesRead; f++) {
+                float sum = 0;
+                for (int c = 0; c < numChannels; c++) {
+                    sum += frames[i++];
+                }
+                mono[f] = sum * scale;
+            }
+        }
+        return (framesRead + fineFrames - 1) / fineFrames;
+    }
+
+    private double level(int subBlock, long from, long to) {
+        var channels = downmix ? 1 : numChannels;
+        var first = subBlock * fineFrames;
+        var length = (int) Math.min(fineFrames, to - from - first);
+        return silenceDetector.measureRms(mono, first * channels, length * channels);
+    }
+}
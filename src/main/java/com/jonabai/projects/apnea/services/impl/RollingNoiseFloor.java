@@ -0,0 +1,50 @@
+package com.jonabai.projects.apnea.services.impl;
+
+/**
+ * Tracks a low percentile of the block RMS over a sliding horizon, used as a drifting noise floor.
+ * <p>
+ * P² estimators are cumulative, so the horizon is covered by two of them in staggered epochs: the current one
+ * has seen between half and the whole horizon, the next one starts half a horizon later and takes over when the
+ * current one completes its epoch. The estimate therefore always reflects the last horizon/2 to horizon blocks,
+ * in constant memory.
+ */
+final class RollingNoiseFloor {
+
+    private final int horizonBlocks;
+    private final int halfHorizonBlocks;
+    private final P2QuantileEstimator[] estimators;
+    private int current;
+
+    RollingNoiseFloor(double percentile, int horizonBlocks) {
+        this.horizonBlocks = Math.max(2, horizonBlocks);
+        this.halfHorizonBlocks = this.horizonBlocks / 2;
+        this.estimators = new P2QuantileEstimator[]{
+                new P2QuantileEstimator(percentile), new P2QuantileEstimator(percentile)};
+        this.current = 0;
+    }
+
+    void add(double rms) {
+        var currentEstimator = estimators[current];
+        currentEstimator.add(rms);
+        if (currentEstimator.getCount() > horizonBlocks - halfHorizonBlocks) {
+            estimators[1 - current].add(rms);
+        }
+
+        if (currentEstimator.getCount() >= horizonBlocks) {
+            // The next estimator has seen the last half horizon and takes over
+            currentEstimator.reset();
+            current = 1 - current;
+        }
+    }
+
+    /**
+     * @return true once at least half a horizon has been observed
+     */
+    boolean isReady() {
+        return estimators[current].getCount() >= halfHorizonBlocks;
+    }
+
+    double getNoiseFloor() {
+        return estimators[current].getQuantile();
+    }
+}
@@ -0,0 +1,365 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Work directory of a batch shared by several processes, on one host or on hosts sharing a filesystem, kept next
+ * to the output as {@code <output>.work}. Every process reads the same input and claims its files one by one,
+ * with no other coordination than the directory:
+ * - the first process fixes the paths of the input in {@code manifest.csv}, and every pass of every process reads
+ *   them from there, so a position names the same file even if a walked directory changes meanwhile
+ * - a claim is a lease file {@code claims/<sequence>}, created only if it does not exist so a single process gets
+ *   it. Its holder touches it while the file is processed; a lease left untouched for the lease time belongs to a
+ *   dead process and is taken over: it is renamed away and checked again, and put back if another process took it
+ *   over meanwhile. Two processes can still end up holding a lease in a narrow race, the file is then processed
+ *   twice and kept once
+ * - every process writes the pauses of its files to its own partial outputs in {@code parts}
+ * - once the rows of a file are flushed, {@code done/<sequence>} is created naming the partial output holding
+ *   them. The first one wins, so a file processed twice (a lease taken over from a slow process) is kept once
+ * The process completing the last file merges the partial outputs into the output and removes the directory,
+ * renamed away first so the other processes find the batch gone at once.
+ * The first line of {@code batch} identifies the input (see {@link BatchManifest#getIdentity()}), every process
+ * has to name it the same way. Host clocks have to agree well within the lease time.
+ */
+final class SharedBatch implements AutoCloseable {
+
+    static final String SUFFIX = ".work";
+    private static final Logger logger = LoggerFactory.getLogger(SharedBatch.class);
+    private static final String FORMAT = "apnea-shared-1";
+    private static final String PART_SUFFIX = ".csv";
+
+    private final Path workDir;
+    private final Path claimsDir;
+    private final Path doneDir;
+    private final Path partsDir;
+    private final String workerId;
+    private final long leaseMillis;
+    private final Set<Path> leases = ConcurrentHashMap.newKeySet();     // Leases held, touched by the heartbeat
+    private final ScheduledExecutorService heartbeat;
+
+    private SharedBatch(Path workDir, String workerId, Duration lease) {
+        this.workDir = workDir;
+        this.claimsDir = workDir.resolve("claims");
+        this.doneDir = workDir.resolve("done");
+        this.partsDir = workDir.resolve("parts");
+        this.workerId = workerId;
+        this.leaseMillis = lease.toMillis();
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("apnea-lease-heartbeat").daemon().factory());
+        var period = Math.max(1, leaseMillis / 4);
+        heartbeat.scheduleAtFixedRate(this::touchLeases, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Joins the shared batch of an output, creating its work directory when this process is the first one
+     * @param inputIdentity identity of the input of the batch
+     * @param outputPath output of the batch
+     * @param lease time after which a lease not touched is taken over
+     * @return the shared batch, to be closed
+     */
+    static SharedBatch open(String inputIdentity, Path outputPath, Duration lease) {
+        var workDir = outputPath.resolveSibling(outputPath.getFileName() + SUFFIX);
+        try {
+            var header = FORMAT + "\t" + inputIdentity;
+            var batchPath = workDir.resolve("batch");
+            Files.createDirectories(workDir);
+            if (!Files.exists(batchPath)) {
+                var tempPath = Files.createTempFile(workDir, "batch", ".tmp");
+                Files.writeString(tempPath, header + "\n", StandardCharsets.UTF_8);
+                Files.move(tempPath, batchPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            var existing = Files.readAllLines(batchPath, StandardCharsets.UTF_8);
+            if (existing.isEmpty() || !existing.getFirst().equals(header)) {
+                throw new ApneaDetectorServiceException("Work directory " + workDir
+                        + " belongs to another batch, remove it to start over");
+            }
+
+            var batch = new SharedBatch(workDir, workerId(), lease);
+            Files.createDirectories(batch.claimsDir);
+            Files.createDirectories(batch.doneDir);
+            Files.createDirectories(batch.partsDir);
+            logger.info("Joined shared batch {} as {}", workDir, batch.workerId);
+            return batch;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot open work directory " + workDir, e);
+        }
+    }
+
+    /**
+     * Fixes the files of the batch. The first process writes the paths of its input to a copy and links it as the
+     * snapshot; when several start at once only the first link succeeds, so they all read the same files.
+     * @param paths paths of the input, only read when there is no snapshot yet
+     * @return path of the snapshot, a CSV manifest read by every pass
+     */
+    Path snapshot(Iterator<String> paths) {
+        var snapshotPath = workDir.resolve("manifest.csv");
+        if (Files.exists(snapshotPath)) {
+            return snapshotPath;
+        }
+        try {
+            var tempPath = Files.createTempFile(workDir, "manifest", ".tmp");
+            try (var printer = new CSVPrinter(Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8),
+                    CSVFormat.DEFAULT.builder().setHeader("FILE PATH").build())) {
+                while (paths.hasNext()) {
+                    printer.printRecord(paths.next());
+                }
+            }
+            try {
+                Files.createLink(snapshotPath, tempPath);
+            } catch (FileAlreadyExistsException e) {
+                logger.debug("Another process fixed the files of {} first", workDir);
+            }
+            Files.delete(tempPath);
+            return snapshotPath;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot fix the files of the batch in " + workDir, e);
+        }
+    }
+
+    /**
+     * Claims a file of the input, unless it is done, another process holds its lease or the batch was merged
+     * @param sequence position of the file in the input
+     * @return true if this process now holds it
+     */
+    boolean claim(int sequence) {
+        var name = Integer.toString(sequence);
+        var lease = claimsDir.resolve(name);
+        try {
+            if (Files.exists(doneDir.resolve(name)) || !acquire(lease)) {
+                return false;
+            }
+            // Completed by the holder this lease was taken over from
+            if (Files.exists(doneDir.resolve(name))) {
+                leases.remove(lease);
+                return false;
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot claim file " + sequence + " in " + workDir, e);
+        }
+    }
+
+    /**
+     * Records files whose pauses are flushed to a partial output, releasing their leases
+     * @param sequences positions of the files in the input
+     * @param partialPath partial output holding their rows
+     */
+    void completed(List<Integer> sequences, Path partialPath) {
+        for (var sequence : sequences) {
+            var name = Integer.toString(sequence);
+            try {
+                Files.writeString(doneDir.resolve(name), partialPath.getFileName().toString(),
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                logger.debug("File {} was completed by another process first", sequence);
+            } catch (NoSuchFileException e) {
+                logger.debug("File {} was completed by another process, which merged the batch", sequence);
+            } catch (IOException e) {
+                throw new ApneaDetectorServiceException("Cannot complete file " + sequence + " in " + workDir, e);
+            }
+            leases.remove(claimsDir.resolve(name));
+        }
+    }
+
+    /**
+     * @param pass pass of this process over the input
+     * @return path of the partial output of the pass, a new one every pass so each is in input order
+     */
+    Path partialPath(int pass) {
+        return partsDir.resolve(workerId + "-" + pass + PART_SUFFIX);
+    }
+
+    /**
+     * @return paths of the partial outputs of every process
+     */
+    List<String> partialPaths() {
+        try (Stream<Path> parts = Files.list(partsDir)) {
+            return parts.filter(path -> path.getFileName().toString().endsWith(PART_SUFFIX))
+                    .map(Path::toString)
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot list partial outputs in " + workDir, e);
+        }
+    }
+
+    /**
+     * @param sequence position of a file in the input
+     * @return path of the partial output holding its rows, null if it is not done
+     */
+    String owner(int sequence) {
+        try {
+            return partsDir.resolve(Files.readString(doneDir.resolve(Integer.toString(sequence)),
+                    StandardCharsets.UTF_8)).toString();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot read completion of file " + sequence + " in " + workDir,
+                    e);
+        }
+    }
+
+    /**
+     * @return number of files done, by any process; -1 once another process merged the batch
+     */
+    int getDoneCount() {
+        try (Stream<Path> done = Files.list(doneDir)) {
+            return (int) done.count();
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot list completed files in " + workDir, e);
+        }
+    }
+
+    /**
+     * Takes the lease of the merge, so a single process merges
+     * @return true if this process merges
+     */
+    boolean claimMerge() {
+        try {
+            return acquire(workDir.resolve("merge"));
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot claim the merge of " + workDir, e);
+        }
+    }
+
+    /**
+     * @return true once another process merged the batch
+     */
+    boolean isMerged() {
+        return !Files.exists(workDir);
+    }
+
+    /**
+     * Closes and removes the work directory once the output is merged
+     */
+    void delete() {
+        close();
+        var merged = workDir.resolveSibling(workDir.getFileName() + ".merged-" + workerId);
+        try {
+            Files.move(workDir, merged, StandardCopyOption.ATOMIC_MOVE);
+            try (Stream<Path> paths = Files.walk(merged)) {
+                for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new ApneaDetectorServiceException("Cannot delete work directory " + workDir, e);
+        }
+    }
+
+    /**
+     * Stops touching the leases held, they expire unless completed
+     */
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+
+    /**
+     * Creates a lease, or takes it over once expired
+     */
+    private boolean acquire(Path lease) throws IOException {
+        if (create(lease)) {
+            return true;
+        }
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis() <= leaseMillis) {
+                return false;
+            }
+            // Only one process renames it away, the others find it gone
+            var expired = claimsDir.resolve(lease.getFileName() + ".expired-" + workerId);
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+            var holder = Files.readString(expired, StandardCharsets.UTF_8);
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(expired).toMillis() <= leaseMillis) {
+                // Another process took it over since it was checked, this is its fresh lease
+                restore(expired, lease);
+                return false;
+            }
+            logger.info("Taking over expired lease {} held by {}", lease, holder);
+            Files.deleteIfExists(expired);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return create(lease);
+    }
+
+    /**
+     * Puts back a lease renamed away by mistake, unless yet another process created it meanwhile
+     */
+    private void restore(Path renamed, Path lease) throws IOException {
+        try {
+            // Not an atomic move, which would replace a lease created meanwhile
+            Files.move(renamed, lease);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(renamed);
+        }
+    }
+
+    private boolean create(Path lease) throws IOException {
+        try {
+            Files.writeString(lease, workerId, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        leases.add(lease);
+        return true;
+    }
+
+    private void touchLeases() {
+        var now = FileTime.fromMillis(System.currentTimeMillis());
+        for (var lease : leases) {
+            try {
+                Files.setLastModifiedTime(lease, now);
+            } catch (IOException e) {
+                logger.warn("Cannot renew lease {}: {}", lease, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Host name and process id, unique across the hosts sharing the batch and across runs
+     */
+    private static String workerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid() + "-"
+                + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
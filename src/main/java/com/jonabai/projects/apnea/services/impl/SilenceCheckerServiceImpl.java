@@ -1,35 +1,46 @@
 package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.services.SilenceCheckerService;
+import com.jonabai.projects.apnea.services.impl.simd.SampleKernels;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayDeque;
-import java.util.Arrays;
-import java.util.Deque;
-
 /**
  * Enhanced SilenceCheckerService implementation with:
  * - RMS (Root Mean Square) calculation for volume measurement
  * - Hysteresis (dual thresholds) to prevent state flutter
  * - Moving average smoothing to reduce noise sensitivity
- * - Adaptive threshold calibration based on initial noise floor
+ * - Adaptive threshold calibration based on initial noise floor, estimated incrementally
+ *   with Welford's running mean and variance
+ * The detection path allocates nothing: smoothing uses a primitive ring buffer with a running sum
+ * and the RMS is computed in a single pass over the caller's buffer.
+ * Single precision RMS goes through {@link SampleKernels}, vectorised when SIMD is enabled.
  */
 @Service
 @Scope("prototype")
+@ConditionalOnProperty(name = "apnea.silence.checker.type", havingValue = "RMS", matchIfMissing = true)
 public class SilenceCheckerServiceImpl implements SilenceCheckerService {
 
     private final double baseSilenceThreshold;
     private final double hysteresisMultiplier;
-    private final int smoothingWindowSize;
     private final double calibrationMultiplier;
+    private final SampleKernels kernels = SampleKernels.get();
 
-    private final Deque<Double> rmsHistory;
+    private final double[] rmsHistory;
+    private int rmsHistoryCount;
+    private int rmsHistoryNext;
+    private double rmsHistorySum;
     private double adaptiveThreshold;
     private boolean inSilenceState;
     private boolean calibrated;
 
+    // Running calibration statistics (Welford)
+    private long calibrationCount;
+    private double calibrationMean;
+    private double calibrationM2;
+
     public SilenceCheckerServiceImpl(
             @Value("${apnea.silence.checker.threshold:0.00001}") double baseSilenceThreshold,
             @Value("${apnea.silence.checker.hysteresis.multiplier:5.0}") double hysteresisMultiplier,
@@ -37,9 +48,8 @@ public class SilenceCheckerServiceImpl implements SilenceCheckerService {
             @Value("${apnea.silence.checker.calibration.multiplier:2.0}") double calibrationMultiplier) {
         this.baseSilenceThreshold = baseSilenceThreshold;
         this.hysteresisMultiplier = hysteresisMultiplier;
-        this.smoothingWindowSize = smoothingWindowSize;
         this.calibrationMultiplier = calibrationMultiplier;
-        this.rmsHistory = new ArrayDeque<>(smoothingWindowSize);
+        this.rmsHistory = new double[Math.max(1, smoothingWindowSize)];
         this.adaptiveThreshold = baseSilenceThreshold;
         this.inSilenceState = false;
         this.calibrated = false;
@@ -47,11 +57,39 @@ public class SilenceCheckerServiceImpl implements SilenceCheckerService {
 
     @Override
     public boolean isSilence(double[] buffer) {
-        if (buffer == null || buffer.length == 0) {
+        return buffer != null && isSilence(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public boolean isSilence(double[] buffer, int offset, int length) {
+        if (buffer == null || length == 0) {
+            return false;
+        }
+
+        return isSilenceRms(volumeRMS(buffer, offset, length));
+    }
+
+    @Override
+    public boolean isSilence(float[] buffer) {
+        return buffer != null && isSilence(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public boolean isSilence(float[] buffer, int offset, int length) {
+        if (buffer == null || length == 0) {
             return false;
         }
 
-        double currentRms = volumeRMS(buffer);
+        return isSilenceRms(volumeRMS(buffer, offset, length));
+    }
+
+    @Override
+    public double measureRms(float[] buffer, int offset, int length) {
+        return volumeRMS(buffer, offset, length);
+    }
+
+    @Override
+    public boolean isSilenceRms(double currentRms) {
         double smoothedRms = updateAndGetSmoothedRms(currentRms);
 
         // Hysteresis: use different thresholds for entering vs exiting silence
@@ -79,17 +117,64 @@ public class SilenceCheckerServiceImpl implements SilenceCheckerService {
             return;
         }
 
-        double noiseFloorRms = volumeRMS(buffer);
+        calibrateNoiseFloor(volumeRMS(buffer));
+    }
+
+    @Override
+    public void calibrate(float[] buffer) {
+        if (buffer == null || buffer.length == 0) {
+            return;
+        }
 
+        addCalibrationSamples(buffer, 0, buffer.length);
+        finishCalibration();
+    }
+
+    @Override
+    public void addCalibrationSamples(float[] buffer, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            calibrationCount++;
+            double delta = buffer[i] - calibrationMean;
+            calibrationMean += delta / calibrationCount;
+            calibrationM2 += delta * (buffer[i] - calibrationMean);
+        }
+    }
+
+    @Override
+    public void finishCalibration() {
+        if (calibrationCount == 0) {
+            return;
+        }
+
+        // Population standard deviation, the RMS of the deviation from the mean
+        calibrateNoiseFloor(Math.sqrt(Math.max(0, calibrationM2) / calibrationCount));
+        calibrationCount = 0;
+        calibrationMean = 0;
+        calibrationM2 = 0;
+    }
+
+    @Override
+    public void updateNoiseFloor(double noiseFloorRms) {
+        calibrateNoiseFloor(noiseFloorRms);
+    }
+
+    private void calibrateNoiseFloor(double noiseFloorRms) {
         // Set adaptive threshold based on noise floor
         // Use calibration multiplier to set threshold above the noise floor
         adaptiveThreshold = Math.max(baseSilenceThreshold, noiseFloorRms * calibrationMultiplier);
         calibrated = true;
     }
 
+    @Override
+    public void setAudioFormat(long sampleRate, int numChannels) {
+        // The full band RMS does not depend on the sample rate nor on the channel layout
+    }
+
     @Override
     public void reset() {
-        rmsHistory.clear();
+        rmsHistoryCount = 0;
+        rmsHistoryNext = 0;
+        rmsHistorySum = 0;
         inSilenceState = false;
         // Keep calibrated threshold if already calibrated
     }
@@ -99,37 +184,90 @@ public class SilenceCheckerServiceImpl implements SilenceCheckerService {
         return adaptiveThreshold;
     }
 
+    @Override
+    public double getExitThreshold() {
+        return adaptiveThreshold * hysteresisMultiplier;
+    }
+
+    @Override
+    public void setCurrentThreshold(double threshold) {
+        adaptiveThreshold = threshold;
+        calibrated = true;
+    }
+
+    @Override
+    public void setSilenceState(boolean inSilence) {
+        inSilenceState = inSilence;
+    }
+
     @Override
     public boolean isCalibrated() {
         return calibrated;
     }
 
     private double updateAndGetSmoothedRms(double currentRms) {
-        rmsHistory.addLast(currentRms);
+        if (rmsHistoryCount == rmsHistory.length) {
+            // Window is full: the oldest value leaves the running sum
+            rmsHistorySum -= rmsHistory[rmsHistoryNext];
+        } else {
+            rmsHistoryCount++;
+        }
+        rmsHistory[rmsHistoryNext] = currentRms;
+        rmsHistorySum += currentRms;
 
-        // Keep only the last N values
-        while (rmsHistory.size() > smoothingWindowSize) {
-            rmsHistory.removeFirst();
+        rmsHistoryNext++;
+        if (rmsHistoryNext == rmsHistory.length) {
+            rmsHistoryNext = 0;
+            // Recompute the sum once per lap so rounding errors cannot accumulate
+            rmsHistorySum = 0;
+            for (int i = 0; i < rmsHistoryCount; i++) {
+                rmsHistorySum += rmsHistory[i];
+            }
         }
 
         // Calculate moving average
-        return rmsHistory.stream()
-                .mapToDouble(Double::doubleValue)
-                .average()
-                .orElse(currentRms);
+        return rmsHistorySum / rmsHistoryCount;
     }
 
     double volumeRMS(double[] buffer) {
-        if (buffer.length == 0) {
+        return volumeRMS(buffer, 0, buffer.length);
+    }
+
+    double volumeRMS(float[] buffer) {
+        return volumeRMS(buffer, 0, buffer.length);
+    }
+
+    /**
+     * RMS of the deviation from the mean in a single pass. Sums are taken around the first sample
+     * (shifted data), so a DC offset does not cause cancellation in sum of squares minus squared sum.
+     */
+    double volumeRMS(double[] buffer, int offset, int length) {
+        if (length == 0) {
             return Double.MAX_VALUE;
         }
 
-        var average = Arrays.stream(buffer).average().orElse(0.0);
+        double shift = buffer[offset];
+        double sum = 0;
+        double squareSum = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            double value = buffer[i] - shift;
+            sum += value;
+            squareSum += value * value;
+        }
+
+        return rms(sum, squareSum, length);
+    }
+
+    double volumeRMS(float[] buffer, int offset, int length) {
+        if (length == 0) {
+            return Double.MAX_VALUE;
+        }
 
-        var meanSquareSum = Arrays.stream(buffer)
-                .map(value -> Math.pow(value - average, 2))
-                .sum();
+        return kernels.volumeRms(buffer, offset, length);
+    }
 
-        return Math.sqrt(meanSquareSum / buffer.length);
+    private static double rms(double sum, double squareSum, int length) {
+        double meanSquareSum = squareSum - sum * sum / length;
+        return Math.sqrt(Math.max(0, meanSquareSum) / length);
     }
 }
@@ -0,0 +1,91 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ChannelFusion;
+import com.jonabai.projects.apnea.api.domain.ChannelMode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings of the silence detection of a file or stream, bound from {@code apnea.silence.detector.*} and the
+ * calibration and smoothing settings of the checker. See application.properties for their meaning.
+ * {@link #defaults()} gives the values used when a property is not set, the {@code with} methods change one group.
+ */
+@Component
+public record SilenceDetectorSettings(
+        @Value("${apnea.silence.checker.calibration.duration:2.0}") float calibrationDurationSeconds,
+        @Value("${apnea.silence.checker.smoothing.window:5}") int smoothingWindowSize,
+        @Value("${apnea.silence.detector.segmented.enabled:false}") boolean segmentedEnabled,
+        @Value("${apnea.silence.detector.segment.duration:300.0}") float segmentDurationSeconds,
+        @Value("${apnea.silence.detector.rolling.enabled:false}") boolean rollingEnabled,
+        @Value("${apnea.silence.detector.rolling.percentile:0.1}") double rollingPercentile,
+        @Value("${apnea.silence.detector.rolling.horizon:600.0}") float rollingHorizonSeconds,
+        @Value("${apnea.silence.detector.window.ms:0}") float windowMillis,
+        @Value("${apnea.silence.detector.hop.ms:10.0}") float hopMillis,
+        @Value("${apnea.silence.detector.channels.mode:MIXED}") ChannelMode channelMode,
+        @Value("${apnea.silence.detector.channels.fusion:ALL}") ChannelFusion channelFusion,
+        @Value("${apnea.silence.detector.refine.ms:0}") float refineMillis,
+        @Value("${apnea.silence.detector.prefetch.blocks:2}") int prefetchBlocks,
+        @Value("${apnea.silence.detector.prefetch.frames:16384}") int prefetchFrames) {
+
+    /**
+     * @return the settings used when no property is set
+     */
+    public static SilenceDetectorSettings defaults() {
+        return new SilenceDetectorSettings(2.0f, 5, false, 300f, false, 0.1, 600f, 0f, 10f,
+                ChannelMode.MIXED, ChannelFusion.ALL, 0f, 2, 16384);
+    }
+
+    /**
+     * @return these settings analysing long recordings in parallel segments of the given duration
+     */
+    public SilenceDetectorSettings withSegments(float segmentDurationSeconds) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, true,
+                segmentDurationSeconds, rollingEnabled, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+
+    /**
+     * @return these settings following a rolling noise floor
+     */
+    public SilenceDetectorSettings withRolling(double rollingPercentile, float rollingHorizonSeconds) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, segmentedEnabled,
+                segmentDurationSeconds, true, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+
+    /**
+     * @return these settings measuring windows of the given duration, advancing by the given hop
+     */
+    public SilenceDetectorSettings withWindow(float windowMillis, float hopMillis) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, segmentedEnabled,
+                segmentDurationSeconds, rollingEnabled, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+
+    /**
+     * @return these settings analysing multichannel recordings in the given mode
+     */
+    public SilenceDetectorSettings withChannels(ChannelMode channelMode, ChannelFusion channelFusion) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, segmentedEnabled,
+                segmentDurationSeconds, rollingEnabled, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+
+    /**
+     * @return these settings refining the pause edges to sub-blocks of the given duration
+     */
+    public SilenceDetectorSettings withRefinement(float refineMillis) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, segmentedEnabled,
+                segmentDurationSeconds, rollingEnabled, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+
+    /**
+     * @return these settings reading ahead the given number of blocks of frames, 0 blocks to read inline
+     */
+    public SilenceDetectorSettings withPrefetch(int prefetchBlocks, int prefetchFrames) {
+        return new SilenceDetectorSettings(calibrationDurationSeconds, smoothingWindowSize, segmentedEnabled,
+                segmentDurationSeconds, rollingEnabled, rollingPercentile, rollingHorizonSeconds, windowMillis,
+                hopMillis, channelMode, channelFusion, refineMillis, prefetchBlocks, prefetchFrames);
+    }
+}
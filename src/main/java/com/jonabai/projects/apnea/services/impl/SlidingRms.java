@@ -0,0 +1,125 @@
+package com.jonabai.projects.apnea.services.impl;
+
+/**
+ * RMS volume over a sliding window made of consecutive hops.
+ * <p>
+ * Every hop is summarised once, when it is added, by its sample count, mean and sum of squared deviations.
+ * The window keeps the merged summary of the hops it contains (Chan et al. parallel variance): a new hop is
+ * merged in and the oldest one is taken out with the inverse update, so overlapping windows never touch a sample
+ * twice and the cost per hop does not depend on the window length.
+ * <p>
+ * Taking summaries out accumulates rounding, so the window is merged again from its hops, oldest first, whenever
+ * the hop ending it has an absolute index one less than a multiple of the window length. That bounds the drift
+ * to one window of updates, and makes the result depend only on the hops since the last merge: two readers that
+ * start at a merge boundary (see {@link Windowing#warmupBlock(long)}) agree exactly.
+ */
+final class SlidingRms {
+
+    private final long[] counts;
+    private final double[] means;
+    private final double[] deviations;
+    private int size;
+    private int next;
+    private long hop;
+
+    // Merged summary of the hops in the window
+    private long count;
+    private double mean;
+    private double deviation;
+
+    /**
+     * @param hopsPerWindow number of hops in the window
+     * @param firstHop absolute index of the first hop that will be added
+     */
+    SlidingRms(int hopsPerWindow, long firstHop) {
+        var length = Math.max(1, hopsPerWindow);
+        this.counts = new long[length];
+        this.means = new double[length];
+        this.deviations = new double[length];
+        this.hop = firstHop;
+    }
+
+    /**
+     * Adds a hop and returns the RMS of the deviation from the mean over the window ending with it.
+     * Until the window is full the value covers the hops seen so far.
+     * @param buffer samples buffer
+     * @param offset index of the first sample of the hop
+     * @param length number of samples of the hop, greater than zero
+     * @return the window RMS value
+     */
+    double add(float[] buffer, int offset, int length) {
+        // Sums around the first sample (shifted data) avoid cancellation with a DC offset
+        double shift = buffer[offset];
+        double sum = 0;
+        double squareSum = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            double value = buffer[i] - shift;
+            sum += value;
+            squareSum += value * value;
+        }
+        var hopMean = shift + sum / length;
+        var hopDeviation = Math.max(0, squareSum - sum * sum / length);
+
+        if (size == counts.length) {
+            remove(counts[next], means[next], deviations[next]);
+        }
+        counts[next] = length;
+        means[next] = hopMean;
+        deviations[next] = hopDeviation;
+        next = (next + 1) % counts.length;
+        size = Math.min(size + 1, counts.length);
+
+        if (++hop % counts.length == 0) {
+            mergeAll();
+        } else {
+            merge(length, hopMean, hopDeviation);
+        }
+        return Math.sqrt(Math.max(0, deviation) / count);
+    }
+
+    void reset() {
+        size = 0;
+        next = 0;
+        count = 0;
+        mean = 0;
+        deviation = 0;
+    }
+
+    private void merge(long hopCount, double hopMean, double hopDeviation) {
+        var total = count + hopCount;
+        var delta = hopMean - mean;
+        mean += delta * hopCount / total;
+        deviation += hopDeviation + delta * delta * count * hopCount / total;
+        count = total;
+    }
+
+    private void remove(long hopCount, double hopMean, double hopDeviation) {
+        var rest = count - hopCount;
+        if (rest == 0) {
+            count = 0;
+            mean = 0;
+            deviation = 0;
+            return;
+        }
+        var restMean = (count * mean - hopCount * hopMean) / rest;
+        var delta = hopMean - restMean;
+        deviation -= hopDeviation + delta * delta * rest * hopCount / count;
+        mean = restMean;
+        count = rest;
+    }
+
+    /**
+     * Merges the window again from the hop summaries, oldest first so the rounding does not depend on the ring
+     * position
+     */
+    private void mergeAll() {
+        var first = next - size + counts.length;
+        count = 0;
+        mean = 0;
+        deviation = 0;
+        for (int h = 0; h < size; h++) {
+            var i = (first + h) % counts.length;
+            merge(counts[i], means[i], deviations[i]);
+        }
+    }
+}
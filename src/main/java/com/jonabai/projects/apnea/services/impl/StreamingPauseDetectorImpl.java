@@ -0,0 +1,318 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.ChannelFusion;
+import com.jonabai.projects.apnea.services.PauseListener;
+import com.jonabai.projects.apnea.services.SilenceCheckerService;
+import com.jonabai.projects.apnea.services.StreamingPauseDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Supplier;
+
+/**
+ * Sequential pause detection engine fed with chunks of interleaved samples.
+ * Samples are gathered into blocks (hops) and every block updates the silence state, so the chunk sizes never
+ * change the result. The first blocks calibrate the checkers: only their RMS is kept, and they are replayed
+ * through the detection once the calibration is done. Memory is bounded by the block and calibration sizes.
+ * Multichannel streams are analysed as configured (see {@link ChannelSplitter}), one checker per track and the
+ * decisions fused. Optionally every track threshold follows a rolling noise floor.
+ */
+final class StreamingPauseDetectorImpl implements StreamingPauseDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingPauseDetector.class);
+    private static final double SILENCE_MIN_DURATION = 0.001; // seconds
+    private static final double SNR_SMOOTHING = 0.01; // weight of a block in the running signal level
+
+    private final String sourceName;
+    private final long sampleRate;
+    private final int numChannels;
+    private final int blockFrames;
+    private final int lookbackFrames;
+    private final ChannelFusion channelFusion;
+    private final PauseListener listener;
+    private final ChannelSplitter splitter;
+    private final ChannelTrack[] tracks;
+    private final boolean[] decisions;
+    private int blockSamples;               // Samples gathered in the current block
+    private long framesAccepted;
+    private boolean finished;
+
+    // Calibration lookbehind: the RMS of every calibration block, per track
+    private final int calibrationFrames;
+    private final double[][] calibrationRms;
+    private int calibrationBlocks;
+    private int calibrationFramesCollected;
+    private boolean calibrating;
+
+    // Silence state
+    private boolean inSilence;
+    private long silenceInit;
+    private long currentOffset;
+    private long lastSilenceEnd;
+    private int pauseCount;
+
+    /**
+     * @param silenceDetector checker of the first track
+     * @param checkers supplies a fresh checker for every other track
+     */
+    StreamingPauseDetectorImpl(String sourceName, long sampleRate, int numChannels, Windowing windowing,
+                               SilenceDetectorSettings settings, SilenceCheckerService silenceDetector,
+                               Supplier<SilenceCheckerService> checkers, PauseListener listener) {
+        this.sourceName = sourceName;
+        this.sampleRate = sampleRate;
+        this.numChannels = numChannels;
+        this.blockFrames = windowing.hopFrames();
+        this.lookbackFrames = windowing.lookbackFrames();
+        this.channelFusion = settings.channelFusion();
+        this.listener = listener;
+        this.splitter = new ChannelSplitter(numChannels, settings.channelMode(), blockFrames);
+        this.tracks = new ChannelTrack[splitter.numTracks()];
+        for (int t = 0; t < tracks.length; t++) {
+            var checker = t == 0 ? silenceDetector : checkers.get();
+            checker.setAudioFormat(sampleRate, splitter.trackChannels());
+            var noiseFloor = settings.rollingEnabled() ? new RollingNoiseFloor(settings.rollingPercentile(),
+                    (int) (settings.rollingHorizonSeconds() * sampleRate / blockFrames)) : null;
+            tracks[t] = new ChannelTrack(checker, new LevelMeter(checker, windowing, 0),
+                    noiseFloor, tracks.length > 1 && channelFusion == ChannelFusion.BEST_SNR);
+        }
+        this.decisions = new boolean[tracks.length];
+
+        this.calibrationFrames = (int) (settings.calibrationDurationSeconds() * sampleRate);
+        this.calibrationRms = new double[tracks.length][Math.max(0, (calibrationFrames + blockFrames - 1) / blockFrames)];
+        this.calibrating = true;
+        if (calibrationFrames <= 0) {
+            endCalibration();
+        }
+    }
+
+    @Override
+    public void accept(float[] buffer, int offset, int length) {
+        if (finished) {
+            throw new IllegalStateException("The stream of " + sourceName + " has already finished");
+        }
+
+        var frames = splitter.frames();
+        while (length > 0) {
+            var samples = Math.min(length, frames.length - blockSamples);
+            System.arraycopy(buffer, offset, frames, blockSamples, samples);
+            blockSamples += samples;
+            offset += samples;
+            length -= samples;
+            if (blockSamples == frames.length) {
+                blockSamples = 0;
+                processBlock(blockFrames);
+            }
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        // Short final block, a trailing partial frame is dropped
+        var frames = blockSamples / numChannels;
+        blockSamples = 0;
+        if (frames > 0) {
+            processBlock(frames);
+        }
+        if (calibrating) {
+            endCalibration();
+        }
+
+        // Handle trailing silence
+        if (inSilence) {
+            addPauseIfValid(silenceInit, currentOffset);
+        }
+    }
+
+    @Override
+    public long getFramesAccepted() {
+        return framesAccepted + blockSamples / numChannels;
+    }
+
+    private void processBlock(int frames) {
+        framesAccepted += frames;
+        splitter.split(frames);
+        var samples = frames * splitter.trackChannels();
+
+        if (calibrating) {
+            // Calibration phase: stream the samples into the noise floor estimation, keep only the block RMS
+            for (int t = 0; t < tracks.length; t++) {
+                tracks[t].checker.addCalibrationSamples(splitter.track(t), 0, samples);
+                calibrationRms[t][calibrationBlocks] = tracks[t].meter.measure(splitter.track(t), samples);
+            }
+            calibrationBlocks++;
+            calibrationFramesCollected += frames;
+            if (calibrationFramesCollected >= calibrationFrames) {
+                endCalibration();
+            }
+            return;
+        }
+
+        // Only the frames actually received are checked, a short final block is never mixed with stale samples
+        for (int t = 0; t < tracks.length; t++) {
+            decisions[t] = tracks[t].isSilence(splitter.track(t), samples);
+        }
+        updateState(fuse(), frames);
+    }
+
+    /**
+     * Sets the thresholds from the calibration samples, then replays the calibration blocks (they're part of
+     * the audio) from their recorded volume
+     */
+    private void endCalibration() {
+        calibrating = false;
+        if (calibrationBlocks > 0) {
+            for (int t = 0; t < tracks.length; t++) {
+                tracks[t].checker.finishCalibration();
+                logger.info("Calibrated silence detector{} with {} frames, threshold: {}",
+                        tracks.length > 1 ? " of channel " + t : "", calibrationFramesCollected,
+                        tracks[t].checker.getCurrentThreshold());
+            }
+        }
+
+        // Reset detector state for main processing
+        for (var track : tracks) {
+            track.checker.reset();
+        }
+
+        for (int block = 0; block < calibrationBlocks; block++) {
+            int frames = Math.min(blockFrames, calibrationFramesCollected - block * blockFrames);
+            for (int t = 0; t < tracks.length; t++) {
+                decisions[t] = tracks[t].isSilenceRms(calibrationRms[t][block]);
+            }
+            updateState(fuse(), frames);
+        }
+    }
+
+    private boolean fuse() {
+        if (tracks.length == 1) {
+            return decisions[0];
+        }
+
+        return switch (channelFusion) {
+            case ANY -> {
+                for (var silence : decisions) {
+                    if (silence) yield true;
+                }
+                yield false;
+            }
+            case ALL -> {
+                for (var silence : decisions) {
+                    if (!silence) yield false;
+                }
+                yield true;
+            }
+            case BEST_SNR -> {
+                var best = 0;
+                for (int t = 1; t < tracks.length; t++) {
+                    if (tracks[t].snr() > tracks[best].snr()) best = t;
+                }
+                yield decisions[best];
+            }
+        };
+    }
+
+    /**
+     * Updates the silence state with the decision for one block. With overlapping windows a window becomes
+     * silent only once it is entirely silent, so a pause starts where its first silent window starts
+     * (never before the end of the previous pause).
+     */
+    private void updateState(boolean silence, int frames) {
+        var newOffset = currentOffset + frames;
+
+        if (silence) {
+            if (!inSilence) {
+                inSilence = true;
+                silenceInit = Math.max(lastSilenceEnd, currentOffset - lookbackFrames);
+                listener.pauseStarted(silenceInit);
+            }
+        } else if (inSilence) {
+            addPauseIfValid(silenceInit, newOffset);
+            inSilence = false;
+            silenceInit = 0;
+            lastSilenceEnd = newOffset;
+        }
+        currentOffset = newOffset;
+    }
+
+    private void addPauseIfValid(long silenceInit, long silenceEnd) {
+        var pause = newPause(sourceName, pauseCount + 1, silenceInit, silenceEnd, sampleRate);
+        if (pause != null) {
+            pauseCount++;
+            listener.pauseEnded(pause);
+        }
+    }
+
+    /**
+     * Converts a silence between two frames into a pause
+     * @return the pause, null if it is shorter than the minimum duration
+     */
+    static BreathingPause newPause(String sourceName, int index, long silenceInit, long silenceEnd,
+                                   long sampleRate) {
+        var pause = BreathingPause.unclassified(sourceName, index, silenceInit, silenceEnd, sampleRate);
+        if (pause.duration() <= SILENCE_MIN_DURATION) {
+            return null;
+        }
+
+        logger.debug("Silence from {} to {} seconds", pause.start(), pause.end());
+        return pause;
+    }
+
+    /**
+     * Feeds the block volume into the rolling noise floor, if enabled, and moves the threshold with it
+     * once half a horizon has been observed. Until then the calibrated threshold is used.
+     */
+    private static void updateNoiseFloor(RollingNoiseFloor noiseFloor, double rms, SilenceCheckerService silenceDetector) {
+        if (noiseFloor == null) {
+            return;
+        }
+        noiseFloor.add(rms);
+        if (noiseFloor.isReady()) {
+            silenceDetector.updateNoiseFloor(noiseFloor.getNoiseFloor());
+        }
+    }
+
+    /**
+     * Detection state of one track: its checker, level meter, optional rolling noise floor and, when the
+     * best SNR channel is fused, a running average of its level
+     */
+    private static final class ChannelTrack {
+        private final SilenceCheckerService checker;
+        private final LevelMeter meter;
+        private final RollingNoiseFloor noiseFloor;
+        private final boolean trackSignal;
+        private final boolean direct;
+        private double signalLevel;
+
+        ChannelTrack(SilenceCheckerService checker, LevelMeter meter, RollingNoiseFloor noiseFloor,
+                     boolean trackSignal) {
+            this.checker = checker;
+            this.meter = meter;
+            this.noiseFloor = noiseFloor;
+            this.trackSignal = trackSignal;
+            // Nothing needs the level: let the checker measure and decide in one call
+            this.direct = noiseFloor == null && !trackSignal && meter.isDirect();
+        }
+
+        boolean isSilence(float[] buffer, int samples) {
+            return direct ? checker.isSilence(buffer, 0, samples) : isSilenceRms(meter.measure(buffer, samples));
+        }
+
+        boolean isSilenceRms(double rms) {
+            updateNoiseFloor(noiseFloor, rms, checker);
+            if (trackSignal) {
+                signalLevel += (rms - signalLevel) * SNR_SMOOTHING;
+            }
+            return checker.isSilenceRms(rms);
+        }
+
+        double snr() {
+            return signalLevel / checker.getCurrentThreshold();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.SilenceDetectionException;
+import com.jonabai.projects.apnea.services.BreathingPauseOutput;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Asynchronous CSV output: the pauses of each file are handed over to a writer thread, which appends them in
+ * batches and flushes every few records and whenever it runs out of work.
+ * <p>
+ * Files are queued by ticket: their input position when the order is kept, their arrival otherwise. The writer
+ * takes them in ticket order, so in ordered mode a file finishing early waits in a small reorder buffer for the
+ * files before it. Callers block while their ticket is a whole buffer ahead of the next one to write, which bounds
+ * the memory by the buffer size, not by the output.
+ * Flushes happen between files only, so the output size reported to the flush listener always ends with a
+ * complete file.
+ * A file that fails aborts the output: its ticket never arrives, so the writer stops once the files ready before it
+ * are written, and the callers waiting behind it fail instead of waiting for it.
+ * A partial output (see {@link BreathingPauseOutputWriterImpl#openPartialOutput}) starts every row with a label
+ * of the file, given by the sequence it was written with.
+ */
+final class StreamingPauseOutput implements BreathingPauseOutput {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingPauseOutput.class);
+
+    private final String outputPath;
+    private final CSVPrinter csvPrinter;
+    private final FileChannel channel;
+    private final int bufferFiles;
+    private final int flushRecords;
+    private final boolean ordered;
+    private final BreathingPauseOutput.FlushListener listener;
+    private final IntUnaryOperator label;
+    private final Thread writerThread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();    // The next ticket arrived, closing or failed
+    private final Condition space = lock.newCondition();    // The next ticket advanced, or failed
+    private final Map<Integer, Written> pending = new HashMap<>();
+    private int nextTicket;
+    private int arrivals;
+    private boolean closing;
+    private Throwable failure;
+
+    /**
+     * @param channel channel the printer writes to, giving the output size
+     * @param listener notified after every flush, may be null
+     */
+    StreamingPauseOutput(String outputPath, CSVPrinter csvPrinter, FileChannel channel, int bufferFiles,
+                         int flushRecords, boolean ordered, BreathingPauseOutput.FlushListener listener) {
+        this(outputPath, csvPrinter, channel, bufferFiles, flushRecords, ordered, listener, null);
+    }
+
+    /**
+     * @param label first column of the rows of a file, from its sequence; null for no label column
+     */
+    StreamingPauseOutput(String outputPath, CSVPrinter csvPrinter, FileChannel channel, int bufferFiles,
+                         int flushRecords, boolean ordered, BreathingPauseOutput.FlushListener listener,
+                         IntUnaryOperator label) {
+        this.outputPath = outputPath;
+        this.csvPrinter = csvPrinter;
+        this.channel = channel;
+        this.listener = listener;
+        this.bufferFiles = Math.max(1, bufferFiles);
+        this.flushRecords = Math.max(1, flushRecords);
+        this.ordered = ordered;
+        this.label = label;
+        this.writerThread = Thread.ofPlatform().name("apnea-output-writer").daemon().start(this::writeLoop);
+    }
+
+    @Override
+    public void write(int sequence, List<BreathingPause> pauseList) {
+        lock.lock();
+        try {
+            checkFailure();
+            if (closing) {
+                throw new IllegalStateException("Output " + outputPath + " already closed");
+            }
+            var ticket = ordered ? sequence : arrivals++;
+            while (ticket - nextTicket >= bufferFiles && failure == null) {
+                space.await();
+            }
+            checkFailure();
+            pending.put(ticket, new Written(sequence, pauseList));
+            if (ticket == nextTicket) {
+                ready.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SilenceDetectionException("Interrupted writing to " + outputPath, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abort(Throwable cause) {
+        fail(cause);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closing = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writerThread.join();
+            csvPrinter.close(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SilenceDetectionException("Interrupted closing " + outputPath, e);
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        lock.lock();
+        try {
+            if (!pending.isEmpty()) {
+                logger.warn("{} files not written to {}, the files before them did not complete",
+                        pending.size(), outputPath);
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<Written> batch = new ArrayList<>();
+        List<Integer> unflushedSequences = new ArrayList<>();
+        var unflushed = 0;
+        try {
+            while (true) {
+                boolean idle;
+                lock.lock();
+                try {
+                    while (!pending.containsKey(nextTicket) && !closing && failure == null) {
+                        ready.await();
+                    }
+                    // Take every file ready to be written in one go
+                    Written written;
+                    while ((written = pending.remove(nextTicket)) != null) {
+                        batch.add(written);
+                        nextTicket++;
+                    }
+                    space.signalAll();
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for (var written : batch) {
+                    for (var pause : written.pauseList()) {
+                        if (label != null) {
+                            csvPrinter.print(label.applyAsInt(written.sequence()));
+                        }
+                        BreathingPauseOutputWriterImpl.printPause(csvPrinter, pause);
+                    }
+                    unflushed += written.pauseList().size();
+                    unflushedSequences.add(written.sequence());
+                    if (unflushed >= flushRecords) {
+                        flush(unflushedSequences);
+                        unflushed = 0;
+                    }
+                }
+                batch.clear();
+
+                lock.lock();
+                try {
+                    idle = !pending.containsKey(nextTicket);
+                } finally {
+                    lock.unlock();
+                }
+                if (idle && !unflushedSequences.isEmpty()) {
+                    flush(unflushedSequences);
+                    unflushed = 0;
+                }
+            }
+        } catch (InterruptedException | IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void flush(List<Integer> sequences) throws IOException {
+        csvPrinter.flush();
+        if (listener != null) {
+            listener.flushed(List.copyOf(sequences), channel.position());
+        }
+        sequences.clear();
+    }
+
+    private void fail(Throwable e) {
+        lock.lock();
+        try {
+            failure = failure != null ? failure : e;
+            ready.signalAll();
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new SilenceDetectionException("Error exporting results to " + outputPath, failure);
+        }
+    }
+
+    /**
+     * Pauses of a file waiting to be written, with the sequence it was given
+     */
+    private record Written(int sequence, List<BreathingPause> pauseList) {
+    }
+}
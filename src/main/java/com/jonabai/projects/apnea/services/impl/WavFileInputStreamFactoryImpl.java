@@ -1,21 +1,55 @@
 package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.api.domain.WavFileReaderMode;
 import com.jonabai.projects.apnea.services.WavFile;
 import com.jonabai.projects.apnea.services.WavFileFactory;
+import com.jonabai.projects.apnea.services.impl.wav.DeviceReadScheduler;
 import com.jonabai.projects.apnea.services.impl.wav.WavFileInputStream;
+import com.jonabai.projects.apnea.services.impl.wav.WavFileMappedBuffer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 
 /**
- * WavFile Factory implementation returning WavFileInputStream
+ * WavFile Factory implementation returning a WavFileInputStream or, depending on the configured
+ * reader mode and the file size, a memory mapped WavFileMappedBuffer.
+ * Streams read through a {@link DeviceReadScheduler} shared by every file, unless readers per device are 0.
  */
 @Service
 public class WavFileInputStreamFactoryImpl implements WavFileFactory {
 
+    private final WavFileReaderMode readerMode;
+    private final long mappedThresholdBytes;
+    private final DeviceReadScheduler readScheduler;
+
+    public WavFileInputStreamFactoryImpl(
+            @Value("${apnea.wav.reader.mode:AUTO}") WavFileReaderMode readerMode,
+            @Value("${apnea.wav.reader.mapped.threshold:16777216}") long mappedThresholdBytes,
+            @Value("${apnea.wav.reader.device.readers:2}") int readersPerDevice,
+            @Value("${apnea.wav.reader.read.bytes:4194304}") int readBytes,
+            @Value("${apnea.wav.reader.pooled.buffers:16}") int pooledBuffers) {
+        this.readerMode = readerMode;
+        this.mappedThresholdBytes = mappedThresholdBytes;
+        this.readScheduler = readersPerDevice > 0
+                ? new DeviceReadScheduler(readersPerDevice, readBytes, pooledBuffers)
+                : null;
+    }
+
     @Override
     public WavFile newWavFile(File file) throws WavFileException {
-        return new WavFileInputStream(file);
+        if (useMappedReader(file)) {
+            return new WavFileMappedBuffer(file);
+        }
+        return new WavFileInputStream(file, readScheduler);
+    }
+
+    private boolean useMappedReader(File file) {
+        return switch (readerMode) {
+            case STREAM -> false;
+            case MAPPED -> true;
+            case AUTO -> file.length() >= mappedThresholdBytes;
+        };
     }
 }
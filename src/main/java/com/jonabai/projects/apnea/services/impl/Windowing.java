@@ -0,0 +1,24 @@
+package com.jonabai.projects.apnea.services.impl;
+
+/**
+ * Analysis block layout: blocks (hops) of hopFrames frames, volume measured over windows of hopsPerWindow hops
+ */
+record Windowing(int hopFrames, int hopsPerWindow) {
+
+    /**
+     * @return frames covered by a window before the block it is attributed to
+     */
+    int lookbackFrames() {
+        return (hopsPerWindow - 1) * hopFrames;
+    }
+
+    /**
+     * First block to read so the level of the given block is the same as in a pass from the start of the file:
+     * the start of the window ending at the last merge boundary of the sliding window (see {@link SlidingRms})
+     * @param block index of the first block whose level is needed
+     * @return index of the first block to read
+     */
+    long warmupBlock(long block) {
+        return Math.max(0, ((block + 1) / hopsPerWindow - 1) * hopsPerWindow);
+    }
+}
@@ -0,0 +1,56 @@
+package com.jonabai.projects.apnea.services.impl.simd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data parallel kernels used on the per-sample hot paths (PCM conversion and RMS).
+ * <p>
+ * The default implementation is plain scalar code. When the application is built with the {@code simd}
+ * Maven profile, started with {@code --add-modules jdk.incubator.vector} and the
+ * {@value #SIMD_PROPERTY} system property is {@code true}, an implementation based on the JDK Vector API is
+ * used instead. It falls back to the scalar kernels whenever the module or the class is not available.
+ * <p>
+ * Tolerance: PCM conversion results are identical. Vectorised RMS values agree with the scalar ones
+ * within a relative error of {@value #RMS_RELATIVE_TOLERANCE}, since the deviations from the mean of chunks of at
+ * most 4096 samples are accumulated in single precision before the chunks are merged in double precision.
+ */
+public interface SampleKernels {
+
+    /**
+     * JVM system property enabling the vectorised kernels
+     */
+    String SIMD_PROPERTY = "apnea.simd.enabled";
+
+    /**
+     * Maximum relative difference between the vectorised and the scalar RMS
+     */
+    double RMS_RELATIVE_TOLERANCE = 1e-5;
+
+    /**
+     * RMS of the deviation from the mean of a range of samples
+     * @param buffer samples buffer
+     * @param offset index of the first sample
+     * @param length number of samples, greater than zero
+     * @return the RMS value
+     */
+    double volumeRms(float[] buffer, int offset, int length);
+
+    /**
+     * Converts little endian 16 bit PCM samples into floats
+     * @param src little endian source buffer, read with absolute indexes
+     * @param srcIndex byte index of the first sample in the source buffer
+     * @param dst destination buffer
+     * @param dstOffset index of the first sample written into the destination buffer
+     * @param numSamples number of samples to convert
+     * @param scale factor applied to every sample
+     */
+    void decodePcm16(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples, float scale);
+
+    /**
+     * Gets the kernels selected for this JVM
+     * @return the vectorised kernels when enabled and available, the scalar ones otherwise
+     */
+    static SampleKernels get() {
+        return SampleKernelsLoader.INSTANCE;
+    }
+}
@@ -0,0 +1,38 @@
+package com.jonabai.projects.apnea.services.impl.simd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the SampleKernels implementation once per JVM.
+ */
+final class SampleKernelsLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampleKernelsLoader.class);
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNELS_CLASS = SampleKernelsLoader.class.getPackageName() + ".VectorSampleKernels";
+
+    static final SampleKernels INSTANCE = load();
+
+    private SampleKernelsLoader() {
+    }
+
+    private static SampleKernels load() {
+        if (!Boolean.getBoolean(SampleKernels.SIMD_PROPERTY)) {
+            return new ScalarSampleKernels();
+        }
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            logger.warn("SIMD kernels requested but module {} is not available, using scalar kernels", VECTOR_MODULE);
+            return new ScalarSampleKernels();
+        }
+
+        try {
+            var kernels = (SampleKernels) Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+            logger.info("Using SIMD sample kernels: {}", kernels);
+            return kernels;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.warn("SIMD kernels not available in this build (enable the 'simd' Maven profile), using scalar kernels");
+            return new ScalarSampleKernels();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.jonabai.projects.apnea.services.impl.simd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scalar SampleKernels implementation, always available.
+ */
+public final class ScalarSampleKernels implements SampleKernels {
+
+    @Override
+    public double volumeRms(float[] buffer, int offset, int length) {
+        // Accumulate in double precision around the first sample (shifted data), so a DC offset
+        // does not cause cancellation in sum of squares minus squared sum
+        double shift = buffer[offset];
+        double sum = 0;
+        double squareSum = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            double value = buffer[i] - shift;
+            sum += value;
+            squareSum += value * value;
+        }
+
+        return rms(sum, squareSum, length);
+    }
+
+    @Override
+    public void decodePcm16(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples, float scale) {
+        for (int s = 0; s < numSamples; s++) {
+            dst[dstOffset + s] = src.getShort(srcIndex + 2 * s) * scale;
+        }
+    }
+
+    /**
+     * RMS from the sum and the sum of squares of shifted samples
+     */
+    static double rms(double sum, double squareSum, int length) {
+        double meanSquareSum = squareSum - sum * sum / length;
+        return Math.sqrt(Math.max(0, meanSquareSum) / length);
+    }
+}
@@ -0,0 +1,114 @@
+package com.jonabai.projects.apnea.services.impl.simd;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SampleKernels implementation based on the JDK Vector API (jdk.incubator.vector).
+ * Only compiled with the {@code simd} Maven profile and loaded reflectively by SampleKernelsLoader.
+ */
+public final class VectorSampleKernels implements SampleKernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    // Half the width of the float species: its bytes hold one short per float lane
+    private static final VectorSpecies<Byte> PCM16_BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(FLOATS.vectorBitSize() / 2));
+    private static final int CHUNK_SIZE = 4096;
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final ScalarSampleKernels scalar = new ScalarSampleKernels();
+    private final ThreadLocal<byte[]> pcmScratch = ThreadLocal.withInitial(() -> new byte[2 * CHUNK_SIZE]);
+
+    @Override
+    public double volumeRms(float[] buffer, int offset, int length) {
+        long count = 0;
+        double mean = 0;
+        double deviation = 0;
+
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            // Single precision lanes sum the deviations from the chunk mean, so they stay small whatever the
+            // offset of the samples, and the chunks are merged in double precision (Chan et al.)
+            int chunkEnd = Math.min(end, i + CHUNK_SIZE);
+            int chunkLength = chunkEnd - i;
+            var chunkMean = (float) (sum(buffer, i, chunkEnd) / chunkLength);
+            var meanVector = FloatVector.broadcast(FLOATS, chunkMean);
+            var sumVector = FloatVector.zero(FLOATS);
+            var squareSumVector = FloatVector.zero(FLOATS);
+            for (int upper = i + FLOATS.loopBound(chunkLength); i < upper; i += FLOATS.length()) {
+                var value = FloatVector.fromArray(FLOATS, buffer, i).sub(meanVector);
+                sumVector = sumVector.add(value);
+                squareSumVector = value.fma(value, squareSumVector);
+            }
+            double sum = sumVector.reduceLanes(VectorOperators.ADD);
+            double squareSum = squareSumVector.reduceLanes(VectorOperators.ADD);
+            for (; i < chunkEnd; i++) {
+                double value = buffer[i] - (double) chunkMean;
+                sum += value;
+                squareSum += value * value;
+            }
+
+            var total = count + chunkLength;
+            var delta = chunkMean + sum / chunkLength - mean;
+            mean += delta * chunkLength / total;
+            deviation += Math.max(0, squareSum - sum * sum / chunkLength) + delta * delta * count * chunkLength / total;
+            count = total;
+        }
+
+        return Math.sqrt(deviation / length);
+    }
+
+    private static double sum(float[] buffer, int from, int to) {
+        var sumVector = FloatVector.zero(FLOATS);
+        int i = from;
+        for (int upper = from + FLOATS.loopBound(to - from); i < upper; i += FLOATS.length()) {
+            sumVector = sumVector.add(FloatVector.fromArray(FLOATS, buffer, i));
+        }
+        double sum = sumVector.reduceLanes(VectorOperators.ADD);
+        for (; i < to; i++) {
+            sum += buffer[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void decodePcm16(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples, float scale) {
+        if (!LITTLE_ENDIAN) {
+            // Reinterpreting bytes as shorts uses the native order
+            scalar.decodePcm16(src, srcIndex, dst, dstOffset, numSamples, scale);
+            return;
+        }
+
+        var bytes = pcmScratch.get();
+        int done = 0;
+        while (done < numSamples) {
+            int count = Math.min(CHUNK_SIZE, numSamples - done);
+            src.get(srcIndex + 2 * done, bytes, 0, 2 * count);
+
+            int s = 0;
+            for (int upper = FLOATS.loopBound(count); s < upper; s += FLOATS.length()) {
+                var shorts = (ShortVector) ByteVector.fromArray(PCM16_BYTES, bytes, 2 * s).reinterpretAsShorts();
+                var floats = (FloatVector) shorts.convertShape(VectorOperators.S2F, FLOATS, 0);
+                floats.mul(scale).intoArray(dst, dstOffset + done + s);
+            }
+            for (; s < count; s++) {
+                dst[dstOffset + done + s] = (short) ((bytes[2 * s] & 0xFF) | bytes[2 * s + 1] << 8) * scale;
+            }
+
+            done += count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VectorSampleKernels[" + FLOATS + "]";
+    }
+}
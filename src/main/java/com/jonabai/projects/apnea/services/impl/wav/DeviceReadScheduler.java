@@ -0,0 +1,138 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Schedules the reads of the wav files processed at the same time by the storage device they are on.
+ * Many workers each reading a few KiB at a time from the same spinning disk or network mount make it seek between
+ * files instead of streaming them; here at most a few readers per device read at the same time, each one a large
+ * contiguous chunk into a buffer taken from a shared pool, and the workers decode from that buffer without touching
+ * the device again.
+ * Devices are told apart by the device id of the file where the platform gives one, by its file store otherwise.
+ */
+public final class DeviceReadScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceReadScheduler.class);
+
+    private final int readersPerDevice;
+    private final int readBytes;
+    private final BlockingQueue<byte[]> buffers;
+    private final Map<Object, Device> devices = new ConcurrentHashMap<>();
+
+    /**
+     * @param readersPerDevice reads running at the same time on a device
+     * @param readBytes size of the buffers, the largest single read
+     * @param pooledBuffers buffers kept for reuse once released
+     */
+    public DeviceReadScheduler(int readersPerDevice, int readBytes, int pooledBuffers) {
+        this.readersPerDevice = Math.max(1, readersPerDevice);
+        this.readBytes = Math.max(1, readBytes);
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, pooledBuffers));
+    }
+
+    /**
+     * @return size of the buffers
+     */
+    public int getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Takes a read buffer from the pool, or allocates one when every pooled buffer is in use
+     */
+    byte[] acquireBuffer() {
+        var buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[readBytes];
+    }
+
+    /**
+     * Gives a buffer back to the pool, dropped if the pool is full
+     */
+    void releaseBuffer(byte[] buffer) {
+        if (buffer.length == readBytes) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * @return the device a file is read from
+     */
+    Device device(File file) {
+        var key = deviceKey(file.toPath());
+        return devices.computeIfAbsent(key, k -> {
+            logger.debug("Reading device {} with at most {} readers", k, readersPerDevice);
+            return new Device(k, new Semaphore(readersPerDevice, true));
+        });
+    }
+
+    private static Object deviceKey(Path path) {
+        try {
+            return "dev " + Files.getAttribute(path, "unix:dev");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // Not a unix file system
+        }
+        try {
+            var store = Files.getFileStore(path);
+            return "store " + store.name() + " " + store;
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * A storage device and the readers allowed on it
+     */
+    static final class Device {
+        private final Object key;
+        private final Semaphore readers;
+
+        Device(Object key, Semaphore readers) {
+            this.key = key;
+            this.readers = readers;
+        }
+
+        /**
+         * Reads up to len bytes in one turn on the device, waiting for a turn first
+         * @return bytes read, less than len only at the end of the stream, -1 if it was already reached
+         */
+        int read(InputStream in, byte[] buffer, int offset, int len) throws IOException {
+            try {
+                readers.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to read device " + key);
+            }
+            try {
+                var total = 0;
+                while (total < len) {
+                    var read = in.read(buffer, offset + total, len - total);
+                    if (read < 0) {
+                        break;
+                    }
+                    total += read;
+                }
+                return total == 0 && len > 0 ? -1 : total;
+            } finally {
+                readers.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key.toString();
+        }
+    }
+}
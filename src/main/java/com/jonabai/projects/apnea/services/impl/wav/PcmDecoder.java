@@ -0,0 +1,264 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import com.jonabai.projects.apnea.services.impl.simd.SampleKernels;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Block decoder converting little endian PCM samples into normalised doubles or floats, or into raw 16 bit samples.
+ * There is a specialised kernel for each common sample width, so the inner loops have no
+ * per-byte assembly, no buffer refill checks and no division.
+ */
+abstract class PcmDecoder {
+
+    /**
+     * Decodes a block of consecutive samples
+     * @param src little endian source buffer, read with absolute indexes so its position is left untouched
+     * @param srcIndex byte index of the first sample in the source buffer
+     * @param dst destination buffer
+     * @param dstOffset index of the first sample written into the destination buffer
+     * @param numSamples number of samples (not frames) to decode
+     */
+    abstract void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples);
+
+    /**
+     * Decodes a block of consecutive samples in single precision.
+     * Each value equals the double precision result rounded to float
+     * @see #decode(ByteBuffer, int, double[], int, int)
+     */
+    abstract void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples);
+
+    /**
+     * Decodes a block of consecutive samples as raw 16 bit signed values
+     * @see #decode(ByteBuffer, int, double[], int, int)
+     */
+    abstract void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples);
+
+    /**
+     * Decodes a block of consecutive samples into a double[], float[] or short[] (raw) buffer
+     * @see #decode(ByteBuffer, int, double[], int, int)
+     */
+    final void decodeInto(ByteBuffer src, int srcIndex, Object dst, int dstOffset, int numSamples) {
+        switch (dst) {
+            case double[] d -> decode(src, srcIndex, d, dstOffset, numSamples);
+            case float[] f -> decode(src, srcIndex, f, dstOffset, numSamples);
+            case short[] r -> decodeRaw(src, srcIndex, r, dstOffset, numSamples);
+            default -> throw new IllegalArgumentException("Unsupported sample buffer " + dst.getClass());
+        }
+    }
+
+    /**
+     * Returns the decoder matching the sample format of the header
+     * @param header parsed wav header
+     * @return the decoder for that sample format
+     */
+    static PcmDecoder forHeader(WavFileHeader header) {
+        return forFormat(header.getBytesPerSample(), header.getFloatScale(), header.getFloatOffset());
+    }
+
+    /**
+     * Returns the decoder for the given sample format
+     * @param bytesPerSample bytes used to store each sample
+     * @param floatScale scaling factor used for int to normalised double conversion
+     * @param floatOffset offset used for int to normalised double conversion
+     * @return the decoder for that sample format
+     */
+    static PcmDecoder forFormat(int bytesPerSample, double floatScale, double floatOffset) {
+        // Sample widths over 8 bits use a power of two scale, so its reciprocal is exact
+        var scale = 1.0 / floatScale;
+        return switch (bytesPerSample) {
+            case 1 -> new Pcm8(floatScale, floatOffset);
+            case 2 -> new Pcm16(scale);
+            case 3 -> new Pcm24(scale);
+            case 4 -> new Pcm32(scale);
+            default -> new PcmGeneric(bytesPerSample, floatScale, floatOffset);
+        };
+    }
+
+    /**
+     * Wraps a byte array as a little endian buffer usable by the decoders
+     * @param bytes byte array
+     * @return the little endian view over the array
+     */
+    static ByteBuffer littleEndian(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 8 bit samples are unsigned: a 256 entry table holds every possible result
+     */
+    private static final class Pcm8 extends PcmDecoder {
+        private final double[] table = new double[256];
+        private final float[] floatTable = new float[256];
+
+        Pcm8(double floatScale, double floatOffset) {
+            for (int v = 0; v < table.length; v++) {
+                table[v] = floatOffset + v / floatScale;
+                floatTable[v] = (float) table[v];
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = table[src.get(srcIndex + s) & 0xFF];
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = floatTable[src.get(srcIndex + s) & 0xFF];
+            }
+        }
+
+        @Override
+        void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = (short) (((src.get(srcIndex + s) & 0xFF) - 128) << 8);
+            }
+        }
+    }
+
+    private static final class Pcm16 extends PcmDecoder {
+        private final SampleKernels kernels = SampleKernels.get();
+        private final double scale;
+        private final float floatScale;
+
+        Pcm16(double scale) {
+            this.scale = scale;
+            this.floatScale = (float) scale;
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getShort(srcIndex + 2 * s) * scale;
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples) {
+            // Single precision is the detection path, the only one worth vectorising
+            kernels.decodePcm16(src, srcIndex, dst, dstOffset, numSamples, floatScale);
+        }
+
+        @Override
+        void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getShort(srcIndex + 2 * s);
+            }
+        }
+    }
+
+    private static final class Pcm24 extends PcmDecoder {
+        private final double scale;
+        private final float floatScale;
+
+        Pcm24(double scale) {
+            this.scale = scale;
+            this.floatScale = (float) scale;
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                var i = srcIndex + 3 * s;
+                // Most significant byte keeps its sign
+                var v = (src.get(i) & 0xFF) | (src.get(i + 1) & 0xFF) << 8 | src.get(i + 2) << 16;
+                dst[dstOffset + s] = v * scale;
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                var i = srcIndex + 3 * s;
+                var v = (src.get(i) & 0xFF) | (src.get(i + 1) & 0xFF) << 8 | src.get(i + 2) << 16;
+                dst[dstOffset + s] = v * floatScale;
+            }
+        }
+
+        @Override
+        void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getShort(srcIndex + 3 * s + 1);
+            }
+        }
+    }
+
+    private static final class Pcm32 extends PcmDecoder {
+        private final double scale;
+        private final float floatScale;
+
+        Pcm32(double scale) {
+            this.scale = scale;
+            this.floatScale = (float) scale;
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getInt(srcIndex + 4 * s) * scale;
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getInt(srcIndex + 4 * s) * floatScale;
+            }
+        }
+
+        @Override
+        void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getShort(srcIndex + 4 * s + 2);
+            }
+        }
+    }
+
+    /**
+     * Fallback for uncommon sample widths (5 to 8 bytes)
+     */
+    private static final class PcmGeneric extends PcmDecoder {
+        private final int bytesPerSample;
+        private final double floatScale;
+        private final double floatOffset;
+
+        PcmGeneric(int bytesPerSample, double floatScale, double floatOffset) {
+            this.bytesPerSample = bytesPerSample;
+            this.floatScale = floatScale;
+            this.floatOffset = floatOffset;
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, double[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                var i = srcIndex + s * bytesPerSample;
+                // Most significant byte keeps its sign
+                long val = src.get(i + bytesPerSample - 1);
+                for (int b = bytesPerSample - 2; b >= 0; b--) val = (val << 8) | (src.get(i + b) & 0xFF);
+                dst[dstOffset + s] = floatOffset + val / floatScale;
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int srcIndex, float[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                var i = srcIndex + s * bytesPerSample;
+                long val = src.get(i + bytesPerSample - 1);
+                for (int b = bytesPerSample - 2; b >= 0; b--) val = (val << 8) | (src.get(i + b) & 0xFF);
+                dst[dstOffset + s] = (float) (floatOffset + val / floatScale);
+            }
+        }
+
+        @Override
+        void decodeRaw(ByteBuffer src, int srcIndex, short[] dst, int dstOffset, int numSamples) {
+            for (int s = 0; s < numSamples; s++) {
+                dst[dstOffset + s] = src.getShort(srcIndex + s * bytesPerSample + bytesPerSample - 2);
+            }
+        }
+    }
+}
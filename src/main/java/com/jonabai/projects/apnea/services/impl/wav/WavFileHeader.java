@@ -0,0 +1,269 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parsed RIFF/fmt/data header of a PCM wav file.
+ * Shared by the {@link com.jonabai.projects.apnea.services.WavFile} implementations so that
+ * all of them validate the header in exactly the same way.
+ */
+public final class WavFileHeader {
+
+    private static final int FMT_CHUNK_ID = 0x20746D66;
+    private static final int DATA_CHUNK_ID = 0x61746164;
+    private static final int RIFF_CHUNK_ID = 0x46464952;
+    private static final int RIFF_TYPE_ID = 0x45564157;
+    private static final int HEADER_INFO_SIZE = 16;
+
+    private int numChannels;				// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
+    private long sampleRate;				// 4 bytes unsigned, 0x00000001 (1) to 0xFFFFFFFF (4,294,967,295)
+    private int blockAlign;					// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
+    private int validBits;					// 2 bytes unsigned, 0x0002 (2) to 0xFFFF (65,535)
+    private int bytesPerSample;			// Number of bytes required to store a single sample
+    private long numFrames;					// Number of frames within the data section
+    private long dataOffset;				// Byte offset of the first sample within the file
+
+    private final byte[] buffer = new byte[HEADER_INFO_SIZE];
+    private long position;					// Bytes consumed from the stream so far
+
+    private WavFileHeader() {
+    }
+
+    /**
+     * Reads the header from the current position of the stream, which must be the beginning of the file.
+     * On return the stream is positioned at the first byte of the data chunk.
+     * @param iStream stream to read the header from
+     * @param file file the stream belongs to, used to validate the RIFF chunk size
+     * @return the parsed header
+     * @throws WavFileException in case the header is not a supported PCM wav header
+     */
+    public static WavFileHeader read(InputStream iStream, File file) throws WavFileException {
+        var header = new WavFileHeader();
+
+        // Read the first 12 bytes of the file
+        header.readRiffHeader(iStream, file);
+
+        // Search for the Format and Data Chunks
+        try {
+            header.readMetadata(iStream);
+        } catch (IOException e) {
+            throw new WavFileException("Error reading the Format and Data Chunks!", e);
+        }
+        return header;
+    }
+
+    /**
+     * Reads only the header of a file, without preparing it for decoding.
+     * @param file file to probe
+     * @return the parsed header
+     * @throws WavFileException in case the file cannot be read or the header is not a supported PCM wav header
+     */
+    public static WavFileHeader probe(File file) throws WavFileException {
+        // Small reads: the header chunks are a few dozen bytes unless unknown chunks are skipped
+        try (var iStream = new BufferedInputStream(new FileInputStream(file), 512)) {
+            return read(iStream, file);
+        } catch (IOException e) {
+            throw new WavFileException("Error reading the header of " + file, e);
+        }
+    }
+
+    public int getNumChannels() {
+        return numChannels;
+    }
+
+    public long getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    public int getValidBits() {
+        return validBits;
+    }
+
+    public int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Gets the scaling factor used for int to normalised double conversion
+     * @return the scaling factor
+     */
+    public double getFloatScale() {
+        // If more than 8 validBits, data is signed
+        // Conversion required dividing by magnitude of max negative value
+        // Else if 8 or less validBits, data is unsigned
+        // Conversion required dividing by max positive value
+        return validBits > 8 ? 1 << (validBits - 1) : 0.5 * ((1 << validBits) - 1);
+    }
+
+    /**
+     * Gets the offset used for int to normalised double conversion
+     * @return the offset
+     */
+    public double getFloatOffset() {
+        return validBits > 8 ? 0 : -1;
+    }
+
+    private void readRiffHeader(InputStream iStream, File file) throws WavFileException {
+        int bytesReadHeader;
+        try {
+            bytesReadHeader = iStream.readNBytes(buffer, 0, 12);
+        } catch (IOException e) {
+            throw new WavFileException("Error reading the header of the file!", e);
+        }
+        if (bytesReadHeader != 12)
+            throw new WavFileException("Not enough wav file bytes for header");
+        position += 12;
+
+        // Extract parts from the header
+        long riffChunkID = getLE(buffer, 0, 4);
+        long chunkSize = getLE(buffer, 4, 4);
+        long riffTypeID = getLE(buffer, 8, 4);
+
+        // Check the header bytes contains the correct signature
+        if (riffChunkID != RIFF_CHUNK_ID)
+            throw new WavFileException("Invalid Wav Header data, incorrect riff chunk ID");
+        if (riffTypeID != RIFF_TYPE_ID)
+            throw new WavFileException("Invalid Wav Header data, incorrect riff type ID");
+
+        // Check that the file size matches the number of bytes listed in header
+        if (file.length() != chunkSize+8) {
+            throw new WavFileException("Header chunk size (" + chunkSize + ") does not match file size (" + file.length() + ")");
+        }
+    }
+
+    private void readMetadata(InputStream iStream) throws IOException, WavFileException {
+        long chunkSize;
+        boolean foundFormat = false;
+        while (true)
+        {
+            // Read the first 8 bytes of the chunk (ID and chunk size)
+            int bytesReadMetadata = iStream.readNBytes(buffer, 0, 8);
+            if (bytesReadMetadata == 0)
+                throw new WavFileException("Reached end of file without finding format chunk");
+            if (bytesReadMetadata != 8)
+                throw new WavFileException("Could not read chunk header");
+            position += 8;
+
+            // Extract the chunk ID and Size
+            long chunkID = getLE(buffer, 0, 4);
+            chunkSize = getLE(buffer, 4, 4);
+
+            // Word align the chunk size
+            // chunkSize specifies the number of bytes holding data. However,
+            // the data should be word aligned (2 bytes) so we need to calculate
+            // the actual number of bytes in the chunk
+            long numChunkBytes = (chunkSize%2 == 1) ? chunkSize+1 : chunkSize;
+
+            if (chunkID == FMT_CHUNK_ID)
+            {
+                // Flag that the format chunk has been found
+                foundFormat = true;
+                extractFormatChunkValues(iStream, numChunkBytes);
+            }
+            else if (chunkID == DATA_CHUNK_ID)
+            {
+                extractDataChunk(chunkSize, foundFormat);
+                break;
+            }
+            else
+            {
+                // If an unknown chunk ID is found, just skip over the chunk data
+                skip(iStream, numChunkBytes, "Extract data chunk: Not enough bytes in the file!");
+            }
+        }
+
+        this.dataOffset = position;
+    }
+
+    private void extractDataChunk(long chunkSize, boolean foundFormat) throws WavFileException {
+        // Check if we've found the format chunk,
+        // If not, throw an exception as we need the format information
+        // before we can read the data chunk
+        if (!foundFormat)
+            throw new WavFileException("Data chunk found before Format chunk");
+
+        // Check that the chunkSize (wav data length) is a multiple of the
+        // block align (bytes per frame)
+        if (chunkSize % this.blockAlign != 0)
+            throw new WavFileException("Data Chunk size is not multiple of Block Align");
+
+        // Calculate the number of frames
+        this.numFrames = chunkSize / this.blockAlign;
+    }
+
+    private void extractFormatChunkValues(InputStream iStream, long numChunkBytes) throws IOException, WavFileException {
+        // Read in the header info
+        if (iStream.readNBytes(buffer, 0, HEADER_INFO_SIZE) != HEADER_INFO_SIZE)
+            throw new WavFileException("Header is not long enough!");
+        position += HEADER_INFO_SIZE;
+
+        // Check this is uncompressed data
+        int compressionCode = (int) getLE(buffer, 0, 2);
+        if (compressionCode != 1) throw new WavFileException("Compression Code " + compressionCode + " not supported");
+
+        // Extract the format information
+        this.numChannels = (int) getLE(buffer, 2, 2);
+        this.sampleRate = getLE(buffer, 4, 4);
+        this.blockAlign = (int) getLE(buffer, 12, 2);
+        this.validBits = (int) getLE(buffer, 14, 2);
+
+        if (this.numChannels == 0)
+            throw new WavFileException("Number of channels specified in header is equal to zero");
+        if (this.blockAlign == 0)
+            throw new WavFileException("Block Align specified in header is equal to zero");
+        if (this.validBits < 2)
+            throw new WavFileException("Valid Bits specified in header is less than 2");
+        if (this.validBits > 64)
+            throw new WavFileException("Valid Bits specified in header is greater than 64, this is greater than a long can hold");
+
+        // Calculate the number of bytes required to hold 1 sample
+        this.bytesPerSample = (this.validBits + 7) / 8;
+        if (this.bytesPerSample * this.numChannels != this.blockAlign)
+            throw new WavFileException("Block Align does not agree with bytes required for validBits and number of channels");
+
+        // Account for number of format bytes and then skip over
+        // any extra format bytes
+        numChunkBytes -= HEADER_INFO_SIZE;
+        if (numChunkBytes > 0) {
+            skip(iStream, numChunkBytes, "Extract format: Not enough bytes in the file!");
+        }
+    }
+
+    private void skip(InputStream iStream, long numBytes, String errorMessage) throws IOException, WavFileException {
+        if (iStream.skip(numBytes) != numBytes) {
+            throw new WavFileException(errorMessage);
+        }
+        position += numBytes;
+    }
+
+    // Get little endian data from local buffer
+    // ----------------------------------------
+    static long getLE(byte[] buffer, int pos, int numBytes)
+    {
+        numBytes --;
+        pos += numBytes;
+
+        long val = buffer[pos] & 0xFF;
+        for (int b=0 ; b<numBytes ; b++) val = (val << 8) + (buffer[--pos] & 0xFF);
+
+        return val;
+    }
+}
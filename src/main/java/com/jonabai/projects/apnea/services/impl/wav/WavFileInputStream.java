@@ -5,27 +5,27 @@ import com.jonabai.projects.apnea.api.domain.WavFileIOState;
 import com.jonabai.projects.apnea.services.WavFile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * WavFile implementation based in a FileInputStream
+ * With a {@link DeviceReadScheduler} the samples are read into a large pooled buffer, one turn on the device at a
+ * time. Reads start small after opening or seeking and double while the file is read sequentially, so a few frames
+ * read around a seek do not cost a whole buffer.
  */
 public class WavFileInputStream implements WavFile, AutoCloseable {
     private static final int BUFFER_SIZE = 4096;
 
-    private static final int FMT_CHUNK_ID = 0x20746D66;
-    private static final int DATA_CHUNK_ID = 0x61746164;
-    private static final int RIFF_CHUNK_ID = 0x46464952;
-    private static final int RIFF_TYPE_ID = 0x45564157;
-    private static final int HEADER_INFO_SIZE = 16;
-
     private File file;						// File that will be read from or written to
     private WavFileIOState ioState;				// Specifies the IO State of the Wav File (used for sanity checking)
     private int bytesPerSample;			// Number of bytes required to store a single sample
     private long numFrames;					// Number of frames within the data section
+    private long dataOffset;				// Byte offset of the first sample within the file
     private FileOutputStream oStream;	// Output stream used for writing data
     private FileInputStream iStream;		// Input stream used for reading data
-    private double floatScale;				// Scaling factor used for int <-> float conversion
-    private double floatOffset;			// Offset factor used for int <-> float conversion
+    private PcmDecoder decoder;				// Converts the PCM samples into normalised values
+    private DeviceReadScheduler scheduler;	// Schedules the reads by device, null to read directly
+    private DeviceReadScheduler.Device device;	// Device the file is read from
 
     // Wav Header
     private int numChannels;				// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
@@ -36,13 +36,21 @@ public class WavFileInputStream implements WavFile, AutoCloseable {
 
     // Buffering
     private byte[] buffer;					// Local buffer used for IO
+    private ByteBuffer byteBuffer;			// Little endian view over the local buffer
     private int bufferPointer;				// Points to the current position in local buffer
     private int bytesRead;					// Bytes read after last read into local buffer
+    private int fillBytes;					// Bytes requested by the next read into local buffer
     private long frameCounter;				// Current number of frames read or written
 
     // Cannot instantiate WavFile directly, must either use newWavFile() or openWavFile()
     public WavFileInputStream(File file) throws WavFileException {
-        buffer = new byte[BUFFER_SIZE];
+        this(file, null);
+    }
+
+    /**
+     * @param scheduler schedules the reads by device, null to read directly in small blocks
+     */
+    public WavFileInputStream(File file, DeviceReadScheduler scheduler) throws WavFileException {
         this.file = file;
 
         // Create a new file input stream for reading file data
@@ -52,15 +60,39 @@ public class WavFileInputStream implements WavFile, AutoCloseable {
             throw new WavFileException("Error opening teh input stream!", e);
         }
 
-        // Read the first 12 bytes of the file
-        readWavFileHeader(file);
-
-        // Search for the Format and Data Chunks
+        // Read the RIFF header and search for the Format and Data Chunks
+        WavFileHeader header;
         try {
-            readWavFileMetadata();
-        } catch (IOException e) {
-            throw new WavFileException("Error reading the Format and Data Chunks!", e);
+            header = WavFileHeader.read(this.iStream, file);
+        } catch (WavFileException e) {
+            closeQuietly();
+            throw e;
+        }
+        this.numChannels = header.getNumChannels();
+        this.sampleRate = header.getSampleRate();
+        this.blockAlign = header.getBlockAlign();
+        this.validBits = header.getValidBits();
+        this.bytesPerSample = header.getBytesPerSample();
+        this.numFrames = header.getNumFrames();
+        this.dataOffset = header.getDataOffset();
+
+        // Select the block decoder for the sample format
+        this.decoder = PcmDecoder.forHeader(header);
+
+        // The local buffer always has to hold at least one whole frame
+        if (scheduler != null && scheduler.getReadBytes() >= Math.max(BUFFER_SIZE, 2 * this.blockAlign)) {
+            this.scheduler = scheduler;
+            this.device = scheduler.device(file);
+            this.buffer = scheduler.acquireBuffer();
+        } else {
+            this.buffer = new byte[Math.max(BUFFER_SIZE, 2 * this.blockAlign)];
         }
+        this.byteBuffer = PcmDecoder.littleEndian(this.buffer);
+        this.bufferPointer = 0;
+        this.bytesRead = 0;
+        this.fillBytes = initialFillBytes();
+        this.frameCounter = 0;
+        this.ioState = WavFileIOState.READING;
     }
 
     @Override
@@ -102,195 +134,55 @@ public class WavFileInputStream implements WavFile, AutoCloseable {
         return file;
     }
 
-    private void readWavFileMetadata() throws IOException, WavFileException {
-        long chunkSize;
-        boolean foundFormat = false;
-        while (true)
-        {
-            // Read the first 8 bytes of the chunk (ID and chunk size)
-            int bytesReadMetadata = this.iStream.read(this.buffer, 0, 8);
-            if (bytesReadMetadata == -1)
-                throw new WavFileException("Reached end of file without finding format chunk");
-            if (bytesReadMetadata != 8)
-                throw new WavFileException("Could not read chunk header");
-
-            // Extract the chunk ID and Size
-            long chunkID = getLE(this.buffer, 0, 4);
-            chunkSize = getLE(this.buffer, 4, 4);
-
-            // Word align the chunk size
-            // chunkSize specifies the number of bytes holding data. However,
-            // the data should be word aligned (2 bytes) so we need to calculate
-            // the actual number of bytes in the chunk
-            long numChunkBytes = (chunkSize%2 == 1) ? chunkSize+1 : chunkSize;
-
-            if (chunkID == FMT_CHUNK_ID)
-            {
-                // Flag that the format chunk has been found
-                foundFormat = true;
-                extractFormatChunkValues(numChunkBytes);
-            }
-            else if (chunkID == DATA_CHUNK_ID)
-            {
-                extractDataChunkID(chunkSize, foundFormat);
-                break;
-            }
-            else
-            {
-                // If an unknown chunk ID is found, just skip over the chunk data
-                if(this.iStream.skip(numChunkBytes) != numChunkBytes) {
-                    throw new WavFileException("Extract data chunk: Not enough bytes in the file!");
-                }
-            }
-        }
-
-        // Calculate the scaling factor for converting to a normalised double
-        calculateScalingFactor();
-
-        this.bufferPointer = 0;
-        this.bytesRead = 0;
-        this.frameCounter = 0;
-        this.ioState = WavFileIOState.READING;
-    }
-
-    private void calculateScalingFactor() {
-        if (this.validBits > 8)
-        {
-            // If more than 8 validBits, data is signed
-            // Conversion required dividing by magnitude of max negative value
-            this.floatOffset = 0;
-            this.floatScale = 1 << (this.validBits - 1);
-        }
-        else
-        {
-            // Else if 8 or less validBits, data is unsigned
-            // Conversion required dividing by max positive value
-            this.floatOffset = -1;
-            this.floatScale = 0.5 * ((1 << this.validBits) - 1);
-        }
+    /**
+     * Moves the bytes not yet decoded to the start of the local buffer and fills the rest of it
+     */
+    private void fillBuffer() throws IOException, WavFileException
+    {
+        int remaining = bytesRead - bufferPointer;
+        System.arraycopy(buffer, bufferPointer, buffer, 0, remaining);
+
+        int length = Math.min(fillBytes, buffer.length - remaining);
+        int read = device != null
+                ? device.read(iStream, buffer, remaining, length)
+                : iStream.read(buffer, remaining, length);
+        if (read == -1) throw new WavFileException("Not enough data available");
+
+        bytesRead = remaining + read;
+        bufferPointer = 0;
+        fillBytes = Math.min(buffer.length, 2 * fillBytes);
     }
 
-    private void extractDataChunkID(long chunkSize, boolean foundFormat) throws WavFileException {
-        // Check if we've found the format chunk,
-        // If not, throw an exception as we need the format information
-        // before we can read the data chunk
-        if (!foundFormat)
-            throw new WavFileException("Data chunk found before Format chunk");
-
-        // Check that the chunkSize (wav data length) is a multiple of the
-        // block align (bytes per frame)
-        if (chunkSize % this.blockAlign != 0)
-            throw new WavFileException("Data Chunk size is not multiple of Block Align");
-
-        // Calculate the number of frames
-        this.numFrames = chunkSize / this.blockAlign;
+    /**
+     * Size of the first read after opening or seeking: the whole local buffer unless it is a large scheduled one
+     */
+    private int initialFillBytes()
+    {
+        return device != null ? Math.max(BUFFER_SIZE, 2 * blockAlign) : buffer.length;
     }
 
-    private void readWavFileHeader(File file) throws WavFileException {
-        int bytesReadHeader;
+    // Double
+    // ------
+    @Override
+    public int readFrames(double[] sampleBuffer, int numFramesToRead) throws WavFileException
+    {
         try {
-            bytesReadHeader = this.iStream.read(this.buffer, 0, 12);
+            return readFrames(sampleBuffer, 0, numFramesToRead);
         } catch (IOException e) {
-            throw new WavFileException("Error reading the header of the file!", e);
-        }
-        if (bytesReadHeader != 12)
-            throw new WavFileException("Not enough wav file bytes for header");
-
-        // Extract parts from the header
-        long riffChunkID = getLE(this.buffer, 0, 4);
-        long chunkSize = getLE(this.buffer, 4, 4);
-        long riffTypeID = getLE(this.buffer, 8, 4);
-
-        // Check the header bytes contains the correct signature
-        if (riffChunkID != RIFF_CHUNK_ID)
-            throw new WavFileException("Invalid Wav Header data, incorrect riff chunk ID");
-        if (riffTypeID != RIFF_TYPE_ID)
-            throw new WavFileException("Invalid Wav Header data, incorrect riff type ID");
-
-        // Check that the file size matches the number of bytes listed in header
-        if (file.length() != chunkSize+8) {
-            throw new WavFileException("Header chunk size (" + chunkSize + ") does not match file size (" + file.length() + ")");
-        }
-    }
-
-    private void extractFormatChunkValues(long numChunkBytes) throws IOException, WavFileException {
-        // Read in the header info
-        if(this.iStream.read(this.buffer, 0, HEADER_INFO_SIZE) != HEADER_INFO_SIZE)
-            throw new WavFileException("Header is not long enough!");
-
-        // Check this is uncompressed data
-        int compressionCode = (int) getLE(this.buffer, 0, 2);
-        if (compressionCode != 1) throw new WavFileException("Compression Code " + compressionCode + " not supported");
-
-        // Extract the format information
-        this.numChannels = (int) getLE(this.buffer, 2, 2);
-        this.sampleRate = getLE(this.buffer, 4, 4);
-        this.blockAlign = (int) getLE(this.buffer, 12, 2);
-        this.validBits = (int) getLE(this.buffer, 14, 2);
-
-        if (this.numChannels == 0)
-            throw new WavFileException("Number of channels specified in header is equal to zero");
-        if (this.blockAlign == 0)
-            throw new WavFileException("Block Align specified in header is equal to zero");
-        if (this.validBits < 2)
-            throw new WavFileException("Valid Bits specified in header is less than 2");
-        if (this.validBits > 64)
-            throw new WavFileException("Valid Bits specified in header is greater than 64, this is greater than a long can hold");
-
-        // Calculate the number of bytes required to hold 1 sample
-        this.bytesPerSample = (this.validBits + 7) / 8;
-        if (this.bytesPerSample * this.numChannels != this.blockAlign)
-            throw new WavFileException("Block Align does not agree with bytes required for validBits and number of channels");
-
-        // Account for number of format bytes and then skip over
-        // any extra format bytes
-        numChunkBytes -= 16;
-        if(numChunkBytes > 0 && this.iStream.skip(numChunkBytes) != numChunkBytes) {
-            throw new WavFileException("Extract format: Not enough bytes in the file!");
+            throw new WavFileException("Error reading frames!", e);
         }
     }
 
-    // Get and Put little endian data from local buffer
-    // ------------------------------------------------
-    private static long getLE(byte[] buffer, int pos, int numBytes)
-    {
-        numBytes --;
-        pos += numBytes;
-
-        long val = buffer[pos] & 0xFF;
-        for (int b=0 ; b<numBytes ; b++) val = (val << 8) + (buffer[--pos] & 0xFF);
-
-        return val;
-    }
-
-    private long readSample() throws IOException, WavFileException
+    @Override
+    public int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
     {
-        long val = 0;
-
-        for (int b=0 ; b<bytesPerSample ; b++)
-        {
-            if (bufferPointer == bytesRead)
-            {
-                int read = iStream.read(buffer, 0, BUFFER_SIZE);
-                if (read == -1) throw new WavFileException("Not enough data available");
-                bytesRead = read;
-                bufferPointer = 0;
-            }
-
-            int v = buffer[bufferPointer];
-            if (b < bytesPerSample-1 || bytesPerSample == 1) v &= 0xFF;
-            val += v << (b * 8);
-
-            bufferPointer ++;
-        }
-
-        return val;
+        return readSamples(sampleBuffer, offset, numFramesToRead);
     }
 
-    // Double
-    // ------
+    // Float
+    // -----
     @Override
-    public int readFrames(double[] sampleBuffer, int numFramesToRead) throws WavFileException
+    public int readFrames(float[] sampleBuffer, int numFramesToRead) throws WavFileException
     {
         try {
             return readFrames(sampleBuffer, 0, numFramesToRead);
@@ -300,24 +192,59 @@ public class WavFileInputStream implements WavFile, AutoCloseable {
     }
 
     @Override
-    public int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+    public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+    {
+        return readSamples(sampleBuffer, offset, numFramesToRead);
+    }
+
+    // Raw
+    // ---
+    @Override
+    public int readFramesRaw(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+    {
+        return readSamples(sampleBuffer, offset, numFramesToRead);
+    }
+
+    private int readSamples(Object sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
     {
         if (ioState != WavFileIOState.READING) throw new IOException("Cannot read from WavFile instance");
 
-        for (int f=0 ; f<numFramesToRead ; f++)
+        int framesRead = 0;
+        while (framesRead < numFramesToRead && frameCounter < numFrames)
         {
-            if (frameCounter == numFrames) return f;
-
-            for (int c=0 ; c<numChannels ; c++)
+            int framesBuffered = (bytesRead - bufferPointer) / blockAlign;
+            if (framesBuffered == 0)
             {
-                sampleBuffer[offset] = floatOffset + (double) readSample() / floatScale;
-                offset ++;
+                fillBuffer();
+                continue;
             }
 
-            frameCounter ++;
+            // Decode as many whole frames as the local buffer holds in a single block
+            int frames = (int) Math.min(Math.min(numFramesToRead - framesRead, framesBuffered), numFrames - frameCounter);
+            int samples = frames * numChannels;
+            decoder.decodeInto(byteBuffer, bufferPointer, sampleBuffer, offset, samples);
+
+            offset += samples;
+            bufferPointer += frames * blockAlign;
+            framesRead += frames;
+            frameCounter += frames;
         }
 
-        return numFramesToRead;
+        return framesRead;
+    }
+
+    @Override
+    public void seekFrame(long frame) throws IOException
+    {
+        if (ioState != WavFileIOState.READING) throw new IOException("Cannot seek in WavFile instance");
+        if (frame < 0 || frame > numFrames) throw new IOException("Frame " + frame + " out of range");
+
+        // Reposition the underlying channel and discard the local buffer
+        iStream.getChannel().position(dataOffset + frame * blockAlign);
+        bufferPointer = 0;
+        bytesRead = 0;
+        fillBytes = initialFillBytes();
+        frameCounter = frame;
     }
 
     @Override
@@ -340,10 +267,25 @@ public class WavFileInputStream implements WavFile, AutoCloseable {
             oStream = null;
         }
 
+        // Give the pooled buffer back once
+        if (scheduler != null && ioState != WavFileIOState.CLOSED)
+        {
+            scheduler.releaseBuffer(buffer);
+        }
+
         // Flag that the stream is closed
         ioState = WavFileIOState.CLOSED;
     }
 
+    private void closeQuietly()
+    {
+        try {
+            iStream.close();
+        } catch (IOException ignored) {
+            // The header was invalid, nothing else to release
+        }
+    }
+
 
 }
 
@@ -0,0 +1,184 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.api.domain.WavFileIOState;
+import com.jonabai.projects.apnea.services.WavFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * WavFile implementation based in a memory mapped FileChannel.
+ * Samples are decoded straight from the mapped data chunk, so reading costs no read() syscalls
+ * and no copy into an intermediate buffer. The data chunk is mapped in windows of at most
+ * {@link #MAX_MAPPING_SIZE} bytes, which keeps files bigger than 2GB readable.
+ */
+public class WavFileMappedBuffer implements WavFile, AutoCloseable {
+
+    static final long MAX_MAPPING_SIZE = 1L << 30;
+
+    private final File file;
+    private final WavFileHeader header;
+    private final PcmDecoder decoder;			// Converts the PCM samples into normalised values
+    private final long framesPerMapping;		// Whole frames fitting in a single mapping window
+
+    private FileChannel channel;
+    private WavFileIOState ioState;
+    private MappedByteBuffer mapping;			// Current mapping window over the data chunk
+    private long mappingFirstFrame;			// First frame covered by the current mapping window
+    private long frameCounter;				// Current number of frames read
+
+    public WavFileMappedBuffer(File file) throws WavFileException {
+        this.file = file;
+
+        try (InputStream headerStream = new FileInputStream(file)) {
+            this.header = WavFileHeader.read(headerStream, file);
+        } catch (IOException e) {
+            throw new WavFileException("Error opening teh input stream!", e);
+        }
+
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new WavFileException("Error opening the file channel!", e);
+        }
+
+        this.decoder = PcmDecoder.forHeader(header);
+        this.framesPerMapping = Math.max(1, MAX_MAPPING_SIZE / header.getBlockAlign());
+        this.mappingFirstFrame = 0;
+        this.frameCounter = 0;
+        this.ioState = WavFileIOState.READING;
+    }
+
+    @Override
+    public int getNumChannels() {
+        return header.getNumChannels();
+    }
+
+    @Override
+    public long getNumFrames() {
+        return header.getNumFrames();
+    }
+
+    @Override
+    public long getSampleRate() {
+        return header.getSampleRate();
+    }
+
+    @Override
+    public int getValidBits() {
+        return header.getValidBits();
+    }
+
+    @Override
+    public int getBytesPerSample() {
+        return header.getBytesPerSample();
+    }
+
+    @Override
+    public int getBlockAlign() {
+        return header.getBlockAlign();
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public int readFrames(double[] sampleBuffer, int numFramesToRead) throws WavFileException {
+        try {
+            return readFrames(sampleBuffer, 0, numFramesToRead);
+        } catch (IOException e) {
+            throw new WavFileException("Error reading frames!", e);
+        }
+    }
+
+    @Override
+    public int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
+        return readSamples(sampleBuffer, offset, numFramesToRead);
+    }
+
+    @Override
+    public int readFrames(float[] sampleBuffer, int numFramesToRead) throws WavFileException {
+        try {
+            return readFrames(sampleBuffer, 0, numFramesToRead);
+        } catch (IOException e) {
+            throw new WavFileException("Error reading frames!", e);
+        }
+    }
+
+    @Override
+    public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
+        return readSamples(sampleBuffer, offset, numFramesToRead);
+    }
+
+    @Override
+    public int readFramesRaw(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
+        return readSamples(sampleBuffer, offset, numFramesToRead);
+    }
+
+    private int readSamples(Object sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
+        if (ioState != WavFileIOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+        var numChannels = header.getNumChannels();
+        var framesRead = 0;
+        while (framesRead < numFramesToRead && frameCounter < header.getNumFrames()) {
+            var data = mappingFor(frameCounter);
+            var dataIndex = (int) ((frameCounter - mappingFirstFrame) * header.getBlockAlign());
+            var framesAvailable = mappingFirstFrame + framesPerMapping - frameCounter;
+            var frames = (int) Math.min(numFramesToRead - framesRead,
+                    Math.min(framesAvailable, header.getNumFrames() - frameCounter));
+
+            var samples = frames * numChannels;
+            decoder.decodeInto(data, dataIndex, sampleBuffer, offset, samples);
+
+            offset += samples;
+            framesRead += frames;
+            frameCounter += frames;
+        }
+
+        return framesRead;
+    }
+
+    @Override
+    public void seekFrame(long frame) throws IOException {
+        if (ioState != WavFileIOState.READING) throw new IOException("Cannot seek in WavFile instance");
+        if (frame < 0 || frame > header.getNumFrames()) throw new IOException("Frame " + frame + " out of range");
+
+        frameCounter = frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapping = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+
+        // Flag that the file is closed
+        ioState = WavFileIOState.CLOSED;
+    }
+
+    /**
+     * Returns the mapping window containing the given frame.
+     * Windows always hold whole frames, so a frame never straddles two mappings.
+     */
+    private MappedByteBuffer mappingFor(long frame) throws IOException {
+        if (mapping == null || frame < mappingFirstFrame || frame >= mappingFirstFrame + framesPerMapping) {
+            mappingFirstFrame = (frame / framesPerMapping) * framesPerMapping;
+            var frames = Math.min(framesPerMapping, header.getNumFrames() - mappingFirstFrame);
+            var start = header.getDataOffset() + mappingFirstFrame * header.getBlockAlign();
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, frames * header.getBlockAlign());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mapping;
+    }
+}
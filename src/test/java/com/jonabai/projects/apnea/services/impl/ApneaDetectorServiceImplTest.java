@@ -1,23 +1,44 @@
 package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.CacheVerification;
+import com.jonabai.projects.apnea.api.domain.DedupMode;
+import com.jonabai.projects.apnea.api.domain.SilenceDetectionException;
 import com.jonabai.projects.apnea.services.ApneaDetectorService;
 import com.jonabai.projects.apnea.services.AudioFileSilenceDetectorService;
 import com.jonabai.projects.apnea.services.BreathingPauseClassificationService;
+import com.jonabai.projects.apnea.services.BreathingPauseOutput;
 import com.jonabai.projects.apnea.services.BreathingPauseOutputWriter;
+import com.jonabai.projects.apnea.services.BreathingPauseResultCache;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -33,6 +54,12 @@ class ApneaDetectorServiceImplTest {
     @Mock
     private BreathingPauseOutputWriter outputWriter;
 
+    @Mock
+    private BreathingPauseOutput output;
+
+    private final BreathingPauseResultCache noCache =
+            new BreathingPauseResultCacheImpl((Path) null, "", 0, CacheVerification.STAT, 0);
+
     private ApneaDetectorService apneaDetectorService;
 
     @BeforeEach
@@ -40,7 +67,17 @@ class ApneaDetectorServiceImplTest {
         apneaDetectorService = new ApneaDetectorServiceImpl(
                 audioFileSilenceDetectorService,
                 classificationService,
-                outputWriter);
+                outputWriter,
+                new BatchExecutorImpl(2, false),
+                noCache,
+                true,
+                false,
+                false,
+                1024,
+                2,
+                DedupMode.OFF,
+                false,
+                300);
     }
 
     @Nested
@@ -76,7 +113,8 @@ class ApneaDetectorServiceImplTest {
         @Test
         @DisplayName("Should process empty input file successfully")
         void processInputFileEmptyOk() {
-            // bad_input.csv has only header, no data rows, so no mocking needed
+            // bad_input.csv has only header, no data rows
+            when(outputWriter.openOutput(anyString())).thenReturn(output);
             assertDoesNotThrow(() ->
                     apneaDetectorService.process("target/test-classes/bad_input.csv", "some output file"));
         }
@@ -86,9 +124,328 @@ class ApneaDetectorServiceImplTest {
         void processInputFileOk() {
             when(audioFileSilenceDetectorService.processFile(anyString())).thenReturn(List.of());
             when(classificationService.classify(anyList())).thenReturn(List.of());
+            when(outputWriter.openOutput(anyString())).thenReturn(output);
 
             assertDoesNotThrow(() ->
                     apneaDetectorService.process("target/test-classes/good_input.csv", "some output file"));
+            verify(output).close();
+        }
+
+        @Test
+        @DisplayName("Should stream the pauses of every file to the output in input order")
+        void processStreamsEveryFile(@TempDir Path tempDir) throws Exception {
+            var pause = BreathingPause.unclassified("a.wav", 1, 0.0, 1.0);
+            when(audioFileSilenceDetectorService.processFile(anyString())).thenReturn(List.of(pause));
+            when(classificationService.classify(anyList())).thenReturn(List.of(pause));
+            var outputPath = tempDir.resolve("output.csv").toString();
+            when(outputWriter.openOutput(outputPath))
+                    .thenAnswer(inv -> new BreathingPauseOutputWriterImpl(2, 1, true).openOutput(outputPath));
+
+            apneaDetectorService.process("target/test-classes/good_input.csv", outputPath);
+
+            var lines = Files.readAllLines(Path.of(outputPath));
+            assertEquals(Files.readAllLines(Path.of("target/test-classes/good_input.csv")).size(), lines.size());
+            verify(outputWriter, never()).writeOutput(anyString(), anyList());
+        }
+
+        @Test
+        @DisplayName("Should fail instead of waiting forever when a file fails while the next ones wait for room")
+        void processFailingFileAbortsOutput(@TempDir Path tempDir) throws Exception {
+            var filePaths = IntStream.range(0, 12).mapToObj(i -> tempDir.resolve(i + ".wav").toString()).toList();
+            var inputPath = Files.writeString(tempDir.resolve("input.csv"),
+                    "FILE PATH\n" + String.join("\n", filePaths) + "\n");
+            var outputPath = tempDir.resolve("output.csv").toString();
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(4, false), noCache, true, false, false, 1024, 2,
+                    DedupMode.OFF, false, 300);
+            when(audioFileSilenceDetectorService.processFile(anyString())).thenAnswer(inv -> {
+                if (inv.getArgument(0).equals(filePaths.getFirst())) {
+                    // The later files fill the reorder buffer meanwhile
+                    Thread.sleep(300);
+                    throw new SilenceDetectionException("Unreadable " + filePaths.getFirst(), null);
+                }
+                return List.of();
+            });
+            lenient().when(classificationService.classify(anyList())).thenReturn(List.of());
+            when(outputWriter.openOutput(outputPath))
+                    .thenAnswer(inv -> new BreathingPauseOutputWriterImpl(4, 1, true).openOutput(outputPath));
+
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(SilenceDetectionException.class,
+                    () -> service.process(inputPath.toString(), outputPath)));
+        }
+    }
+
+    @Nested
+    @DisplayName("Planning Tests")
+    class PlanningTests {
+
+        @Test
+        @DisplayName("Should process and write the largest files first")
+        void processLargestFirst(@TempDir Path tempDir) throws Exception {
+            var small = silentFile(tempDir.resolve("small.wav"), 100);
+            var large = silentFile(tempDir.resolve("large.wav"), 1000);
+            var inputPath = Files.writeString(tempDir.resolve("input.csv"), "FILE PATH\n" + small + "\n" + large + "\n");
+            var outputPath = tempDir.resolve("output.csv").toString();
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(2, false), noCache, true, false, true, 1024, 2, DedupMode.OFF,
+                    false, 300);
+            when(audioFileSilenceDetectorService.processFile(anyString())).thenAnswer(inv ->
+                    List.of(BreathingPause.unclassified(inv.getArgument(0), 1, 0.0, 1.0)));
+            when(classificationService.classify(anyList())).thenAnswer(inv -> inv.getArgument(0));
+            when(outputWriter.openOutput(outputPath))
+                    .thenAnswer(inv -> new BreathingPauseOutputWriterImpl(2, 1, true).openOutput(outputPath));
+
+            service.process(inputPath.toString(), outputPath);
+
+            var lines = Files.readAllLines(Path.of(outputPath));
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(1).startsWith(large));
+            assertTrue(lines.get(2).startsWith(small));
+        }
+
+        @Test
+        @DisplayName("Should process the largest files first and write the whole output in input order")
+        void processAllInInputOrder(@TempDir Path tempDir) throws Exception {
+            var small = silentFile(tempDir.resolve("small.wav"), 100);
+            var large = silentFile(tempDir.resolve("large.wav"), 1000);
+            var inputPath = Files.writeString(tempDir.resolve("input.csv"), "FILE PATH\n" + small + "\n" + large + "\n");
+            var outputPath = tempDir.resolve("output.csv").toString();
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(2, false), noCache, false, false, true, 1024, 2,
+                    DedupMode.OFF, false, 300);
+            when(audioFileSilenceDetectorService.processFile(anyString())).thenAnswer(inv ->
+                    List.of(BreathingPause.unclassified(inv.getArgument(0), 1, 0.0, 1.0)));
+            when(classificationService.classify(anyList())).thenAnswer(inv -> inv.getArgument(0));
+
+            service.process(inputPath.toString(), outputPath);
+
+            verify(outputWriter).writeOutput(outputPath, List.of(BreathingPause.unclassified(small, 1, 0.0, 1.0),
+                    BreathingPause.unclassified(large, 1, 0.0, 1.0)));
+        }
+
+        /**
+         * Writes a silent 16 bit mono file at 8 kHz
+         */
+        private static String silentFile(Path target, int frames) throws Exception {
+            var data = ByteBuffer.allocate(44 + 2 * frames).order(ByteOrder.LITTLE_ENDIAN);
+            data.put("RIFF".getBytes()).putInt(36 + 2 * frames).put("WAVE".getBytes())
+                    .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                    .putInt(8000).putInt(16000)
+                    .putShort((short) 2).putShort((short) 16)
+                    .put("data".getBytes()).putInt(2 * frames);
+            Files.write(target, data.array());
+            return target.toString();
+        }
+    }
+
+    @Nested
+    @DisplayName("Deduplication Tests")
+    class DeduplicationTests {
+
+        @Test
+        @DisplayName("Should analyse a recording once and write it under every path")
+        void processCopiesOnce(@TempDir Path tempDir) throws Exception {
+            var original = Files.writeString(tempDir.resolve("a.wav"), "RIFF a recording").toString();
+            var copy = Files.copy(Path.of(original), tempDir.resolve("copy.wav")).toString();
+            var other = Files.writeString(tempDir.resolve("b.wav"), "RIFF another one").toString();
+            var inputPath = Files.writeString(tempDir.resolve("input.csv"),
+                    "FILE PATH\n" + original + "\n" + other + "\n" + copy + "\n");
+            var outputPath = tempDir.resolve("output.csv").toString();
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(2, false), noCache, true, false, false, 1024, 2,
+                    DedupMode.SAMPLED, false, 300);
+            when(audioFileSilenceDetectorService.processFile(anyString())).thenAnswer(inv ->
+                    List.of(BreathingPause.unclassified(inv.getArgument(0), 1, 0.0, 1.0)));
+            when(classificationService.classify(anyList())).thenAnswer(inv -> inv.getArgument(0));
+            when(outputWriter.openOutput(outputPath))
+                    .thenAnswer(inv -> new BreathingPauseOutputWriterImpl(4, 1, true).openOutput(outputPath));
+
+            service.process(inputPath.toString(), outputPath);
+
+            // Either copy may be analysed first, depending on the worker taking it
+            verify(audioFileSilenceDetectorService, times(2)).processFile(anyString());
+            verify(audioFileSilenceDetectorService, times(1)).processFile(other);
+            var lines = Files.readAllLines(Path.of(outputPath));
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(1).startsWith(original));
+            assertTrue(lines.get(2).startsWith(other));
+            assertTrue(lines.get(3).startsWith(copy));
+        }
+    }
+
+    @Nested
+    @DisplayName("Checkpoint Tests")
+    class CheckpointTests {
+
+        private static final String INPUT = "target/test-classes/good_input.csv";
+
+        @Test
+        @DisplayName("Should skip the files completed before an interruption")
+        void resumeSkipsCompletedFiles(@TempDir Path tempDir) throws Exception {
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(1, false), noCache, true, true, false, 1024, 2, DedupMode.OFF,
+                    false, 300);
+            var outputPath = tempDir.resolve("output.csv").toString();
+            when(outputWriter.openOutput(anyString(), anyLong(), any())).thenAnswer(inv ->
+                    new BreathingPauseOutputWriterImpl(2, 1, true)
+                            .openOutput(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+            when(classificationService.classify(anyList())).thenAnswer(inv -> inv.getArgument(0));
+            var first = BreathingPause.unclassified("./input/example-1.wav", 1, 0.0, 1.0);
+            var second = BreathingPause.unclassified("./input/example-2.wav", 1, 2.0, 3.0);
+            when(audioFileSilenceDetectorService.processFile("./input/example-1.wav")).thenReturn(List.of(first));
+            when(audioFileSilenceDetectorService.processFile("./input/example-2.wav"))
+                    .thenThrow(new IllegalStateException("Out of memory"))
+                    .thenReturn(List.of(second));
+
+            assertThrows(IllegalStateException.class, () -> service.process(INPUT, outputPath));
+            assertTrue(Files.exists(Path.of(outputPath + CheckpointJournal.SUFFIX)));
+            assertEquals(2, Files.readAllLines(Path.of(outputPath)).size());
+
+            service.process(INPUT, outputPath);
+
+            verify(audioFileSilenceDetectorService, times(1)).processFile("./input/example-1.wav");
+            verify(audioFileSilenceDetectorService, times(2)).processFile("./input/example-2.wav");
+            var lines = Files.readAllLines(Path.of(outputPath));
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(1).startsWith("./input/example-1.wav"));
+            assertTrue(lines.get(2).startsWith("./input/example-2.wav"));
+            assertFalse(Files.exists(Path.of(outputPath + CheckpointJournal.SUFFIX)));
+        }
+    }
+
+    @Nested
+    @DisplayName("Result Cache Tests")
+    class ResultCacheTests {
+
+        @Test
+        @DisplayName("Should serve unchanged files from the cache on the next run")
+        void rerunServesCachedFiles(@TempDir Path tempDir) throws Exception {
+            var wavPath = Files.writeString(tempDir.resolve("a.wav"), "RIFF");
+            var inputPath = Files.writeString(tempDir.resolve("input.csv"), "FILE PATH\n" + wavPath + "\n");
+            var cache = new BreathingPauseResultCacheImpl(tempDir.resolve("cache"), "config", 1 << 20,
+                    CacheVerification.STAT, 0);
+            var service = new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    outputWriter, new BatchExecutorImpl(1, false), cache, true, false, false, 1024, 2, DedupMode.OFF,
+                    false, 300);
+            var pause = BreathingPause.unclassified(wavPath.toString(), 1, 0.0, 1.0);
+            when(audioFileSilenceDetectorService.processFile(wavPath.toString())).thenReturn(List.of(pause));
+            when(classificationService.classify(anyList())).thenReturn(List.of(pause));
+            when(outputWriter.openOutput(anyString())).thenReturn(output);
+
+            service.process(inputPath.toString(), "first output");
+            service.process(inputPath.toString(), "second output");
+
+            verify(audioFileSilenceDetectorService, times(1)).processFile(wavPath.toString());
+            verify(output, times(2)).write(0, List.of(pause));
+        }
+    }
+
+    @Nested
+    @DisplayName("Shared Batch Tests")
+    class SharedBatchTests {
+
+        private ApneaDetectorServiceImpl sharedService() {
+            return new ApneaDetectorServiceImpl(audioFileSilenceDetectorService, classificationService,
+                    new BreathingPauseOutputWriterImpl(4, 1, true), new BatchExecutorImpl(2, false), noCache, true,
+                    false, false, 1024, 2, DedupMode.OFF, true, 300);
+        }
+
+        private List<String> givenInput(Path tempDir, int files) throws Exception {
+            var filePaths = IntStream.range(0, files).mapToObj(i -> "./input/file-" + i + ".wav").toList();
+            Files.writeString(tempDir.resolve("input.csv"), "FILE PATH\n" + String.join("\n", filePaths) + "\n");
+            lenient().when(audioFileSilenceDetectorService.processFile(anyString())).thenAnswer(inv ->
+                    List.of(BreathingPause.unclassified(inv.getArgument(0), 1, 0.0, 1.0)));
+            lenient().when(classificationService.classify(anyList())).thenAnswer(inv -> inv.getArgument(0));
+            return filePaths;
+        }
+
+        @Test
+        @DisplayName("Should process every file once across processes and merge the output in input order")
+        void processesShareTheFiles(@TempDir Path tempDir) throws Exception {
+            var filePaths = givenInput(tempDir, 12);
+            var inputPath = tempDir.resolve("input.csv").toString();
+            var outputPath = tempDir.resolve("output.csv");
+
+            try (var processes = Executors.newFixedThreadPool(2)) {
+                var first = processes.submit(() -> sharedService().process(inputPath, outputPath.toString()));
+                var second = processes.submit(() -> sharedService().process(inputPath, outputPath.toString()));
+                first.get();
+                second.get();
+            }
+
+            for (var filePath : filePaths) {
+                verify(audioFileSilenceDetectorService, times(1)).processFile(filePath);
+            }
+            var lines = Files.readAllLines(outputPath);
+            assertEquals(filePaths.size() + 1, lines.size());
+            for (int i = 0; i < filePaths.size(); i++) {
+                assertTrue(lines.get(i + 1).startsWith(filePaths.get(i) + ","));
+            }
+            assertFalse(Files.exists(Path.of(outputPath + SharedBatch.SUFFIX)));
+        }
+
+        @Test
+        @DisplayName("Should leave the merge to the holder of a lease, and take the lease over once it expires")
+        void expiredLeaseIsTakenOver(@TempDir Path tempDir) throws Exception {
+            var filePaths = givenInput(tempDir, 3);
+            var inputPath = tempDir.resolve("input.csv").toString();
+            var outputPath = tempDir.resolve("output.csv");
+            String identity;
+            try (var manifest = BatchManifest.open(inputPath, 1)) {
+                identity = manifest.getIdentity();
+            }
+            try (var other = SharedBatch.open(identity, outputPath, Duration.ofMinutes(5))) {
+                assertTrue(other.claim(1));
+            }
+
+            sharedService().process(inputPath, outputPath.toString());
+
+            verify(audioFileSilenceDetectorService, never()).processFile(filePaths.get(1));
+            assertFalse(Files.exists(outputPath));
+
+            // The other process died: its lease is no longer renewed
+            var lease = Path.of(outputPath + SharedBatch.SUFFIX, "claims", "1");
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 600_000));
+            sharedService().process(inputPath, outputPath.toString());
+
+            for (var filePath : filePaths) {
+                verify(audioFileSilenceDetectorService, times(1)).processFile(filePath);
+            }
+            var lines = Files.readAllLines(outputPath);
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(2).startsWith(filePaths.get(1) + ","));
+        }
+
+        @Test
+        @DisplayName("Should keep the files walked first when the input directory changes")
+        void changedDirectoryKeepsTheFiles(@TempDir Path tempDir) throws Exception {
+            givenInput(tempDir, 0);
+            var inputDir = Files.createDirectory(tempDir.resolve("recordings"));
+            var first = Files.createFile(inputDir.resolve("a.wav")).toString();
+            var third = Files.createFile(inputDir.resolve("c.wav")).toString();
+            var outputPath = tempDir.resolve("output.csv");
+            String identity;
+            try (var manifest = BatchManifest.open(inputDir.toString(), 1)) {
+                identity = manifest.getIdentity();
+            }
+            try (var other = SharedBatch.open(identity, outputPath, Duration.ofMinutes(5))) {
+                assertTrue(other.claim(1));
+            }
+            sharedService().process(inputDir.toString(), outputPath.toString());
+
+            // A new file takes the position of c.wav in the walk, then the other process dies
+            var added = Files.createFile(inputDir.resolve("b.wav")).toString();
+            var lease = Path.of(outputPath + SharedBatch.SUFFIX, "claims", "1");
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 600_000));
+            sharedService().process(inputDir.toString(), outputPath.toString());
+
+            verify(audioFileSilenceDetectorService, times(1)).processFile(first);
+            verify(audioFileSilenceDetectorService, times(1)).processFile(third);
+            verify(audioFileSilenceDetectorService, never()).processFile(added);
+            var lines = Files.readAllLines(outputPath);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(1).startsWith(first + ","));
+            assertTrue(lines.get(2).startsWith(third + ","));
         }
     }
 }
@@ -1,6 +1,8 @@
 package com.jonabai.projects.apnea.services.impl;
 
 import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.ChannelFusion;
+import com.jonabai.projects.apnea.api.domain.ChannelMode;
 import com.jonabai.projects.apnea.services.SilenceCheckerService;
 import com.jonabai.projects.apnea.services.WavFile;
 import com.jonabai.projects.apnea.services.WavFileFactory;
@@ -9,16 +11,23 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.ObjectProvider;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,8 +53,8 @@ class AudioFileSilenceDetectorServiceImplTest {
                 return silenceCheckerService;
             }
         };
-        audioFileSilenceDetectorService = new AudioFileSilenceDetectorServiceImpl(
-                silenceCheckerProvider, wavFileFactory, 2.0f);
+        audioFileSilenceDetectorService = new AudioFileSilenceDetectorServiceImpl(silenceCheckerProvider,
+                wavFileFactory, SilenceDetectorSettings.defaults());
     }
 
     @Test
@@ -62,7 +71,7 @@ class AudioFileSilenceDetectorServiceImplTest {
         WavFile wavFile = new WavFileInputStream(new File(filePath));
 
         when(wavFileFactory.newWavFile(any())).thenReturn(wavFile);
-        when(silenceCheckerService.isSilence(any())).thenReturn(true);
+        when(silenceCheckerService.isSilence(any(float[].class), anyInt(), anyInt())).thenReturn(true);
         when(silenceCheckerService.getCurrentThreshold()).thenReturn(0.00001);
 
         List<BreathingPause> pauses = audioFileSilenceDetectorService.processFile(filePath);
@@ -76,12 +85,13 @@ class AudioFileSilenceDetectorServiceImplTest {
         WavFile wavFile = new WavFileInputStream(new File(filePath));
 
         when(wavFileFactory.newWavFile(any())).thenReturn(wavFile);
-        when(silenceCheckerService.isSilence(any())).thenReturn(false);
+        when(silenceCheckerService.isSilence(any(float[].class), anyInt(), anyInt())).thenReturn(false);
         when(silenceCheckerService.getCurrentThreshold()).thenReturn(0.00001);
 
         audioFileSilenceDetectorService.processFile(filePath);
 
-        verify(silenceCheckerService).calibrate(any());
+        verify(silenceCheckerService, atLeastOnce()).addCalibrationSamples(any(float[].class), anyInt(), anyInt());
+        verify(silenceCheckerService).finishCalibration();
         verify(silenceCheckerService).reset();
     }
 
@@ -91,7 +101,7 @@ class AudioFileSilenceDetectorServiceImplTest {
         final String filePath = "target/test-classes/example-2.wav";
 
         when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(filePath)));
-        when(silenceCheckerService.isSilence(any())).thenReturn(false);
+        when(silenceCheckerService.isSilence(any(float[].class), anyInt(), anyInt())).thenReturn(false);
         when(silenceCheckerService.getCurrentThreshold()).thenReturn(0.00001);
 
         audioFileSilenceDetectorService.processFile(filePath);
@@ -100,4 +110,212 @@ class AudioFileSilenceDetectorServiceImplTest {
         // Should get a new instance for each file
         assertEquals(2, providerCallCount.get());
     }
+
+    @Test
+    @DisplayName("Should detect the same pauses in segmented mode as in a sequential pass")
+    void segmentedModeMatchesSequential() throws Exception {
+        final String filePath = "target/test-classes/example-2.wav";
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(filePath)));
+
+        var sequential = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults());
+        var segmented = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withSegments(1.5f));
+
+        var expected = sequential.processFile(filePath);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, segmented.processFile(filePath));
+    }
+
+    @Test
+    @DisplayName("Should detect the same pauses reading ahead as reading on the detecting thread")
+    void prefetchMatchesDirectRead() throws Exception {
+        final String filePath = "target/test-classes/example-2.wav";
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(filePath)));
+
+        var direct = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withPrefetch(0, 16384));
+        // Blocks unrelated to the analysis blocks
+        var prefetched = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withPrefetch(3, 1000));
+
+        var expected = direct.processFile(filePath);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, prefetched.processFile(filePath));
+    }
+
+    @Test
+    @DisplayName("Should move the threshold with the rolling noise floor")
+    void rollingNoiseFloorUpdatesThreshold() throws Exception {
+        final String filePath = "target/test-classes/example-2.wav";
+        SilenceCheckerService checker = new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return checker;
+            }
+        };
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(filePath)));
+
+        var rolling = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withSegments(1.5f).withRolling(0.1, 10f));
+        var pauses = rolling.processFile(filePath);
+
+        assertFalse(pauses.isEmpty());
+        var calibrated = new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+        try (var wavFile = new WavFileInputStream(new File(filePath))) {
+            var buffer = new float[(int) (2.0f * wavFile.getSampleRate()) * wavFile.getNumChannels()];
+            wavFile.readFrames(buffer, (int) (2.0f * wavFile.getSampleRate()));
+            calibrated.calibrate(buffer);
+        }
+        assertNotEquals(calibrated.getCurrentThreshold(), checker.getCurrentThreshold());
+    }
+
+    @Test
+    @DisplayName("Should detect the same pauses with overlapping time windows in segmented mode")
+    void windowedSegmentedModeMatchesSequential() throws Exception {
+        final String filePath = "target/test-classes/example-2.wav";
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(filePath)));
+
+        var sequential = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withWindow(50f, 10f));
+        var segmented = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withSegments(1.5f).withWindow(50f, 10f));
+
+        var expected = sequential.processFile(filePath);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, segmented.processFile(filePath));
+        for (int i = 1; i < expected.size(); i++) {
+            assertTrue(expected.get(i).start() >= expected.get(i - 1).end());
+        }
+    }
+
+    @Test
+    @DisplayName("Should refine the pause edges to the frames where the silence starts and ends")
+    void refinedEdges(@TempDir Path tempDir) throws Exception {
+        // Silence, tone from frame 20000 to 30000, silence to frame 50000, tone
+        var filePath = toneFile(tempDir.resolve("tones.wav"), 60000, 20000, 30000, 50000, 60000);
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(inv.getArgument(0)));
+
+        var coarse = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults())
+                .processFile(filePath);
+        var refined = new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withRefinement(1f))
+                .processFile(filePath);
+
+        assertEquals(2, coarse.size());
+        assertEquals(2, refined.size());
+        assertEquals(20000, refined.get(0).endFrame(), 8);
+        assertEquals(30000, refined.get(1).startFrame(), 8);
+        assertEquals(50000, refined.get(1).endFrame(), 8);
+        // The blocks only resolve 1024 frames
+        assertTrue(Math.abs(coarse.get(1).startFrame() - 30000) > 8);
+    }
+
+    @Test
+    @DisplayName("Should analyse every channel and fuse the decisions")
+    void perChannelFusion(@TempDir Path tempDir) throws Exception {
+        final String filePath = "target/test-classes/example-2.wav";
+        var copies = stereoFile(filePath, tempDir.resolve("copies.wav"), false);
+        var oneSilent = stereoFile(filePath, tempDir.resolve("one-silent.wav"), true);
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(inv.getArgument(0)));
+
+        var mono = channelDetector(ChannelMode.MIXED, ChannelFusion.ALL).processFile(filePath);
+        assertFalse(mono.isEmpty());
+
+        // Identical channels: every mode finds the pauses of the mono file
+        assertEquals(starts(mono), starts(channelDetector(ChannelMode.DOWNMIX, ChannelFusion.ALL).processFile(copies)));
+        assertEquals(starts(mono), starts(channelDetector(ChannelMode.PER_CHANNEL, ChannelFusion.ANY).processFile(copies)));
+
+        // Second channel silent: ALL and BEST_SNR follow the first channel, ANY sees one pause
+        assertEquals(starts(mono), starts(channelDetector(ChannelMode.PER_CHANNEL, ChannelFusion.ALL).processFile(oneSilent)));
+        assertEquals(starts(mono), starts(channelDetector(ChannelMode.PER_CHANNEL, ChannelFusion.BEST_SNR).processFile(oneSilent)));
+        assertEquals(1, channelDetector(ChannelMode.PER_CHANNEL, ChannelFusion.ANY).processFile(oneSilent).size());
+    }
+
+    private AudioFileSilenceDetectorServiceImpl channelDetector(ChannelMode mode, ChannelFusion fusion) {
+        ObjectProvider<SilenceCheckerService> realCheckerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        return new AudioFileSilenceDetectorServiceImpl(realCheckerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withChannels(mode, fusion));
+    }
+
+    private static List<Long> starts(List<BreathingPause> pauses) {
+        return pauses.stream().map(BreathingPause::startFrame).toList();
+    }
+
+    /**
+     * Writes a 16 bit stereo copy of a 16 bit mono file, the second channel a copy or silent
+     */
+    private static String stereoFile(String monoPath, Path target, boolean silentSecondChannel) throws Exception {
+        try (var mono = new WavFileInputStream(new File(monoPath))) {
+            var frames = (int) mono.getNumFrames();
+            var samples = new short[frames];
+            mono.readFramesRaw(samples, 0, frames);
+
+            var data = ByteBuffer.allocate(44 + 4 * frames).order(ByteOrder.LITTLE_ENDIAN);
+            data.put("RIFF".getBytes()).putInt(36 + 4 * frames).put("WAVE".getBytes())
+                    .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 2)
+                    .putInt((int) mono.getSampleRate()).putInt((int) mono.getSampleRate() * 4)
+                    .putShort((short) 4).putShort((short) 16)
+                    .put("data".getBytes()).putInt(4 * frames);
+            for (short sample : samples) {
+                data.putShort(sample).putShort(silentSecondChannel ? 0 : sample);
+            }
+            Files.write(target, data.array());
+        } catch (IOException e) {
+            fail(e);
+        }
+        return target.toString();
+    }
+
+    /**
+     * Writes a 16 bit mono file at 8 kHz, silent except for a tone between the given pairs of frames
+     */
+    private static String toneFile(Path target, int frames, int... tones) throws IOException {
+        var data = ByteBuffer.allocate(44 + 2 * frames).order(ByteOrder.LITTLE_ENDIAN);
+        data.put("RIFF".getBytes()).putInt(36 + 2 * frames).put("WAVE".getBytes())
+                .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(8000).putInt(16000)
+                .putShort((short) 2).putShort((short) 16)
+                .put("data".getBytes()).putInt(2 * frames);
+        for (int frame = 0; frame < frames; frame++) {
+            var tone = false;
+            for (int i = 0; i < tones.length; i += 2) {
+                tone |= frame >= tones[i] && frame < tones[i + 1];
+            }
+            data.putShort(tone ? (short) (8000 * Math.sin(frame * 0.3)) : 0);
+        }
+        Files.write(target, data.array());
+        return target.toString();
+    }
 }
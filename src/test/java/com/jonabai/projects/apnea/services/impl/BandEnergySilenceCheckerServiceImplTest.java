@@ -0,0 +1,119 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BandEnergySilenceCheckerService Tests")
+class BandEnergySilenceCheckerServiceImplTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int BLOCK = 1024;
+
+    private BandEnergySilenceCheckerServiceImpl checker;
+    private final SilenceCheckerServiceImpl fullBand = new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+    private final Random random = new Random(5);
+
+    @BeforeEach
+    void setUp() {
+        checker = new BandEnergySilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0, 150.0, 2000.0);
+        checker.setAudioFormat(SAMPLE_RATE, 1);
+    }
+
+    @Test
+    @DisplayName("Should measure white noise like the full band RMS")
+    void whiteNoiseMatchesFullBand() {
+        double power = 0;
+        int blocks = 40;
+        for (int b = 0; b < blocks; b++) {
+            var rms = checker.measureRms(noise(0.1f), 0, BLOCK);
+            power += rms * rms;
+        }
+
+        assertEquals(0.1, Math.sqrt(power / blocks), 0.01);
+    }
+
+    @Test
+    @DisplayName("Should ignore low frequency rumble")
+    void ignoresRumble() {
+        var rumble = tone(30, 0.5f, 1);
+        var breathing = tone(450, 0.05f, 1);
+
+        assertTrue(fullBand.measureRms(rumble, 0, BLOCK) > 0.3);
+        assertTrue(checker.measureRms(rumble, 0, BLOCK) < 1e-3);
+        assertTrue(checker.measureRms(breathing, 0, BLOCK) > 100 * checker.measureRms(rumble, 0, BLOCK));
+    }
+
+    @Test
+    @DisplayName("Should measure a tone the same wherever it falls in the band")
+    void tilesTheBand() {
+        // 1663 Hz lies between two log spaced probes (1382 and 2000 Hz) of a bank of 8 filters
+        var reference = checker.measureRms(tone(1382, 0.05f, 1), 0, BLOCK);
+        var between = checker.measureRms(tone(1663, 0.05f, 1), 0, BLOCK);
+
+        assertTrue(reference > 0.01);
+        assertEquals(reference, between, 0.02 * reference);
+        assertEquals(reference, checker.measureRms(tone(451.3, 0.05f, 1), 0, BLOCK), 0.02 * reference);
+    }
+
+    @Test
+    @DisplayName("Should downmix interleaved channels")
+    void downmixesChannels() {
+        var mono = tone(450, 0.05f, 1);
+        var stereo = tone(450, 0.05f, 2);
+        var reference = checker.measureRms(mono, 0, BLOCK);
+
+        checker.setAudioFormat(SAMPLE_RATE, 2);
+        assertEquals(reference, checker.measureRms(stereo, 0, 2 * BLOCK), 1e-9);
+    }
+
+    @Test
+    @DisplayName("Should calibrate on the band level and detect silence under rumble")
+    void calibratesOnBandLevel() {
+        var quiet = noise(0.001f);
+        checker.addCalibrationSamples(quiet, 0, BLOCK);
+        checker.addCalibrationSamples(noise(0.001f), 0, BLOCK);
+        checker.finishCalibration();
+        assertTrue(checker.isCalibrated());
+
+        // Loud rumble alone stays silence for the band checker
+        var rumble = tone(30, 0.5f, 1);
+        for (int i = 0; i < 10; i++) {
+            for (int s = 0; s < BLOCK; s++) {
+                rumble[s] += (float) random.nextGaussian() * 0.0005f;
+            }
+            checker.isSilence(rumble);
+        }
+        assertTrue(checker.isSilence(rumble));
+    }
+
+    @Test
+    @DisplayName("Should reject sliding windows, which measure the full band")
+    void rejectsFullBandLevels() {
+        assertTrue(checker.measuresBand());
+        assertThrows(IllegalArgumentException.class, () -> new LevelMeter(checker, new Windowing(80, 4), 0));
+        assertTrue(new LevelMeter(checker, new Windowing(80, 1), 0).isDirect());
+    }
+
+    private float[] noise(float sigma) {
+        var buffer = new float[BLOCK];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (float) random.nextGaussian() * sigma;
+        }
+        return buffer;
+    }
+
+    private static float[] tone(double frequency, float amplitude, int channels) {
+        var buffer = new float[BLOCK * channels];
+        for (int i = 0; i < BLOCK; i++) {
+            for (int c = 0; c < channels; c++) {
+                buffer[i * channels + c] = amplitude * (float) Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,109 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.DedupMode;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BatchDeduplicator Tests")
+class BatchDeduplicatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicInteger analysed = new AtomicInteger();
+
+    @Test
+    @DisplayName("Should analyse a copy once and give the pauses its own path")
+    void processCopyOnce() throws IOException {
+        var original = write("a.wav", 100_000, 0);
+        var copy = Files.copy(Path.of(original), tempDir.resolve("copy.wav")).toString();
+        var deduplicator = new BatchDeduplicator(DedupMode.SAMPLED);
+
+        var first = deduplicator.process(original, this::analyse);
+        var second = deduplicator.process(copy, this::analyse);
+
+        assertEquals(1, analysed.get());
+        assertEquals(1, deduplicator.getDuplicates());
+        assertEquals(original, first.getFirst().filePath());
+        assertEquals(copy, second.getFirst().filePath());
+        assertEquals(first.getFirst().endFrame(), second.getFirst().endFrame());
+    }
+
+    @Test
+    @DisplayName("Should only tell apart a change between the sampled blocks with the full hash")
+    void processFullHash() throws IOException {
+        // The 4 KiB sampled blocks start at multiples of a seventeenth of the size, byte 5000 is in none of them
+        var original = write("a.wav", 170_000, -1);
+        var changed = write("b.wav", 170_000, 5_000);
+
+        var sampled = new BatchDeduplicator(DedupMode.SAMPLED);
+        sampled.process(original, this::analyse);
+        sampled.process(changed, this::analyse);
+        assertEquals(1, analysed.get());
+
+        var full = new BatchDeduplicator(DedupMode.FULL);
+        full.process(original, this::analyse);
+        full.process(changed, this::analyse);
+        assertEquals(3, analysed.get());
+    }
+
+    @Test
+    @DisplayName("Should keep the pauses of the recordings used last only")
+    void processKeepsRecentRecordings() throws IOException {
+        var deduplicator = new BatchDeduplicator(DedupMode.SAMPLED, 2);
+        var first = write("a.wav", 100_000, 10);
+        var second = write("b.wav", 100_000, 20);
+        var third = write("c.wav", 100_000, 30);
+
+        deduplicator.process(first, this::analyse);
+        deduplicator.process(second, this::analyse);
+        deduplicator.process(third, this::analyse);
+        assertEquals(2, deduplicator.getKeptRecordings());
+
+        // The second and third are kept, the first was dropped and is analysed again
+        deduplicator.process(Files.copy(Path.of(third), tempDir.resolve("c-copy.wav")).toString(), this::analyse);
+        deduplicator.process(Files.copy(Path.of(second), tempDir.resolve("b-copy.wav")).toString(), this::analyse);
+        assertEquals(3, analysed.get());
+        deduplicator.process(Files.copy(Path.of(first), tempDir.resolve("a-copy.wav")).toString(), this::analyse);
+        assertEquals(4, analysed.get());
+        assertEquals(2, deduplicator.getKeptRecordings());
+    }
+
+    @Test
+    @DisplayName("Should analyse a file that cannot be fingerprinted")
+    void processMissingFile() {
+        var deduplicator = new BatchDeduplicator(DedupMode.SAMPLED);
+        var missing = tempDir.resolve("missing.wav").toString();
+
+        deduplicator.process(missing, this::analyse);
+        deduplicator.process(missing, this::analyse);
+
+        assertEquals(2, analysed.get());
+    }
+
+    private List<BreathingPause> analyse(String filePath) {
+        analysed.incrementAndGet();
+        return List.of(BreathingPause.unclassified(filePath, 1, 0.0, 1.5));
+    }
+
+    /**
+     * Writes a file of zeros, with a one at the given position if not negative
+     */
+    private String write(String name, int size, int changedByte) throws IOException {
+        var content = new byte[size];
+        if (changedByte >= 0) {
+            content[changedByte] = 1;
+        }
+        return Files.write(tempDir.resolve(name), content).toString();
+    }
+}
@@ -0,0 +1,133 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BatchExecutor Tests")
+class BatchExecutorImplTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    @DisplayName("Should return the results in the order of the items")
+    void keepsItemOrder(boolean virtualThreads) {
+        try (var executor = new BatchExecutorImpl(4, virtualThreads)) {
+            var items = IntStream.range(0, 100).boxed().toList();
+
+            var results = executor.map(items, item -> {
+                sleep(item % 3);
+                return item * 2;
+            });
+
+            assertEquals(IntStream.range(0, 100).map(item -> item * 2).boxed().toList(), results);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    @DisplayName("Should never run more items at the same time than the parallelism")
+    void boundsConcurrency(boolean virtualThreads) {
+        try (var executor = new BatchExecutorImpl(3, virtualThreads)) {
+            var running = new AtomicInteger();
+            var maxRunning = new AtomicInteger();
+
+            executor.map(IntStream.range(0, 30).boxed().toList(), item -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(2);
+                running.decrementAndGet();
+                return item;
+            });
+
+            assertTrue(maxRunning.get() <= 3, "Max running: " + maxRunning.get());
+            assertEquals(3, executor.getParallelism());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    @DisplayName("Should stop the batch and rethrow the failure of a task")
+    void rethrowsFailure(boolean virtualThreads) {
+        try (var executor = new BatchExecutorImpl(2, virtualThreads)) {
+            var processed = new AtomicInteger();
+
+            var exception = assertThrows(IllegalStateException.class, () ->
+                    executor.map(IntStream.range(0, 1000).boxed().toList(), item -> {
+                        if (item == 5) {
+                            throw new IllegalStateException("Broken item");
+                        }
+                        processed.incrementAndGet();
+                        return item;
+                    }));
+
+            assertEquals("Broken item", exception.getMessage());
+            assertTrue(processed.get() < 999);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    @DisplayName("Should process a lazy source while reading it, never far ahead of the workers")
+    void forEachReadsLazily(boolean virtualThreads) {
+        try (var executor = new BatchExecutorImpl(2, virtualThreads)) {
+            var read = new AtomicInteger();
+            var processed = new AtomicInteger();
+            var maxAhead = new AtomicInteger();
+            var source = IntStream.range(0, 200).peek(item -> {
+                maxAhead.accumulateAndGet(read.incrementAndGet() - processed.get(), Math::max);
+            }).iterator();
+
+            executor.forEach(source, item -> {
+                sleep(item % 2);
+                processed.incrementAndGet();
+            });
+
+            assertEquals(200, processed.get());
+            // The queue, the items being processed and the one being offered
+            assertTrue(maxAhead.get() <= 2 * 2 + 2 + 1, "Max ahead: " + maxAhead.get());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    @DisplayName("Should stop reading the source and rethrow the failure of a task")
+    void forEachRethrowsFailure(boolean virtualThreads) {
+        try (var executor = new BatchExecutorImpl(2, virtualThreads)) {
+            var read = new AtomicInteger();
+            var source = IntStream.range(0, 100_000).peek(item -> read.incrementAndGet()).iterator();
+
+            var exception = assertThrows(IllegalStateException.class, () ->
+                    executor.forEach(source, item -> {
+                        if (item == 5) {
+                            throw new IllegalStateException("Broken item");
+                        }
+                    }));
+
+            assertEquals("Broken item", exception.getMessage());
+            assertTrue(read.get() < 100_000);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, -1})
+    @DisplayName("Should default the parallelism to the available processors")
+    void defaultParallelism(int parallelism) {
+        try (var executor = new BatchExecutorImpl(parallelism, false)) {
+            assertEquals(Runtime.getRuntime().availableProcessors(), executor.getParallelism());
+            assertEquals(List.of(), executor.map(List.of(), item -> item));
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
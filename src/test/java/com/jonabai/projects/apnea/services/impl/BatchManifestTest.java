@@ -0,0 +1,82 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BatchManifest Tests")
+class BatchManifestTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Should read the first column of a CSV, skipping the header and blank paths")
+    void openCsv() throws IOException {
+        var input = Files.writeString(tempDir.resolve("input.csv"), "FILE PATH,NOTE\na.wav,x\n\" \",y\nb.wav,z\n");
+
+        try (var manifest = BatchManifest.open(input.toString(), 2)) {
+            assertEquals(List.of("a.wav", "b.wav"), paths(manifest));
+            assertTrue(manifest.getIdentity().startsWith(input.toAbsolutePath().toString()));
+        }
+    }
+
+    @Test
+    @DisplayName("Should walk a directory tree depth first in name order, wav files only")
+    void openDirectory() throws IOException {
+        for (var file : List.of("b.wav", "a.WAV", "notes.txt", "z/c.wav", "m/e.wav", "m/d.wav", "m/n/f.wav")) {
+            var path = tempDir.resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, "RIFF");
+        }
+        var expected = List.of("a.WAV", "b.wav", "m/d.wav", "m/e.wav", "m/n/f.wav", "z/c.wav").stream()
+                .map(file -> tempDir.resolve(file).toString())
+                .toList();
+
+        try (var manifest = BatchManifest.open(tempDir.toString(), 3)) {
+            assertEquals(expected, paths(manifest));
+        }
+        // Same order with a single lister
+        try (var manifest = BatchManifest.open(tempDir.toString(), 1)) {
+            assertEquals(expected, paths(manifest));
+        }
+    }
+
+    @Test
+    @DisplayName("Should list the files matching a glob pattern below its fixed prefix")
+    void openGlob() throws IOException {
+        for (var file : List.of("night-1/a.wav", "night-1/a.txt", "night-2/b.wav", "day/c.wav")) {
+            var path = tempDir.resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, "RIFF");
+        }
+
+        try (var manifest = BatchManifest.open(tempDir.resolve("night-*").resolve("*.wav").toString(), 2)) {
+            assertEquals(List.of(tempDir.resolve("night-1/a.wav").toString(), tempDir.resolve("night-2/b.wav").toString()),
+                    paths(manifest));
+            assertNotNull(manifest.getIdentity());
+        }
+    }
+
+    @Test
+    @DisplayName("Should throw exception when the CSV does not exist")
+    void openMissingCsv() {
+        assertThrows(ApneaDetectorServiceException.class,
+                () -> BatchManifest.open(tempDir.resolve("missing.csv").toString(), 2));
+    }
+
+    private static List<String> paths(BatchManifest manifest) {
+        List<String> paths = new ArrayList<>();
+        manifest.forEachRemaining(paths::add);
+        return paths;
+    }
+}
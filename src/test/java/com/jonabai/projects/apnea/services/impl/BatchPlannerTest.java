@@ -0,0 +1,70 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BatchPlanner Tests")
+class BatchPlannerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Should schedule the largest files first, unreadable headers before them")
+    void planLongestFirst() throws IOException {
+        var filePaths = List.of(
+                silentFile("small.wav", 100, 1),
+                silentFile("large.wav", 1000, 1),
+                tempDir.resolve("missing.wav").toString(),
+                silentFile("stereo.wav", 300, 2),
+                silentFile("same.wav", 100, 1));
+
+        var plan = BatchPlanner.plan(filePaths, List.of(0, 1, 2, 3, 4), 2);
+
+        assertEquals(List.of(2, 1, 3, 0, 4), plan.order());
+        assertEquals(1800, plan.totalSamples());
+        assertEquals(1000, plan.largestSamples());
+        assertEquals(1, plan.unreadable());
+        assertEquals(1000, plan.estimatedMakespan());
+    }
+
+    @Test
+    @DisplayName("Should plan only the given files")
+    void planSubset() throws IOException {
+        var filePaths = List.of(
+                silentFile("a.wav", 100, 1),
+                silentFile("b.wav", 200, 1),
+                silentFile("c.wav", 300, 1));
+
+        var plan = BatchPlanner.plan(filePaths, List.of(0, 1), 4);
+
+        assertEquals(List.of(1, 0), plan.order());
+        assertEquals(300, plan.totalSamples());
+    }
+
+    /**
+     * Writes a silent 16 bit file at 8 kHz
+     */
+    private String silentFile(String name, int frames, int channels) throws IOException {
+        var dataBytes = 2 * channels * frames;
+        var data = ByteBuffer.allocate(44 + dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+        data.put("RIFF".getBytes()).putInt(36 + dataBytes).put("WAVE".getBytes())
+                .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(8000).putInt(16000 * channels)
+                .putShort((short) (2 * channels)).putShort((short) 16)
+                .put("data".getBytes()).putInt(dataBytes);
+        var target = tempDir.resolve(name);
+        Files.write(target, data.array());
+        return target.toString();
+    }
+}
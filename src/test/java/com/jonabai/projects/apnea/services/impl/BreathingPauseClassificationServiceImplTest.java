@@ -96,6 +96,20 @@ class BreathingPauseClassificationServiceImplTest {
                     () -> assertEquals(BreathingPauseType.SEVERE_APNEA, result.get(4).type())
             );
         }
+
+        @Test
+        @DisplayName("Should classify pauses days into a recording from their exact frames")
+        void classifyLateInLongRecording() {
+            // Three days into a 44.1 kHz recording, past the int frame range
+            var start = 3L * 24 * 3600 * 44100;
+            var pause = BreathingPause.unclassified("long.wav", 1, start, start + 10 * 44100 - 1, 44100);
+
+            var result = classificationService.classify(List.of(pause));
+
+            assertEquals(BreathingPauseType.HYPOPNEA, result.getFirst().type());
+            assertEquals(start, result.getFirst().startFrame());
+            assertEquals(10.0 - 1.0 / 44100, result.getFirst().duration(), 1e-12);
+        }
     }
 
     @Nested
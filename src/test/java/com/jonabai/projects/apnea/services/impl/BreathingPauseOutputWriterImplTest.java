@@ -12,6 +12,7 @@ import org.junit.jupiter.api.io.TempDir;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,7 +28,7 @@ class BreathingPauseOutputWriterImplTest {
 
     @BeforeEach
     void setUp() {
-        outputWriter = new BreathingPauseOutputWriterImpl();
+        outputWriter = new BreathingPauseOutputWriterImpl(64, 1000, true);
     }
 
     @Test
@@ -82,4 +83,161 @@ class BreathingPauseOutputWriterImplTest {
         assertTrue(lines.get(2).contains("MILD_APNEA"));
         assertTrue(lines.get(3).contains("SEVERE_APNEA"));
     }
+
+    @Test
+    @DisplayName("Should stream the pauses in input order whatever the completion order")
+    void openOutputKeepsInputOrder() throws Exception {
+        var outputPath = tempDir.resolve("ordered.csv");
+        var streamingWriter = new BreathingPauseOutputWriterImpl(4, 3, true);
+
+        try (var output = streamingWriter.openOutput(outputPath.toString())) {
+            var threads = new ArrayList<Thread>();
+            for (int sequence = 19; sequence >= 0; sequence--) {
+                var file = sequence;
+                threads.add(Thread.ofPlatform().start(() -> output.write(file, pauses("file-" + file, file % 3))));
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+        }
+
+        var lines = Files.readAllLines(outputPath);
+        var files = lines.stream().skip(1).map(line -> line.split(",")[0]).distinct().toList();
+        assertEquals(1 + 19, lines.size());
+        assertEquals(List.of("file-1", "file-2", "file-4", "file-5", "file-7", "file-8", "file-10", "file-11",
+                "file-13", "file-14", "file-16", "file-17", "file-19"), files);
+    }
+
+    @Test
+    @DisplayName("Should block a file a whole buffer ahead of the next one to write")
+    void openOutputBoundsBuffer() throws Exception {
+        var outputPath = tempDir.resolve("bounded.csv");
+        var streamingWriter = new BreathingPauseOutputWriterImpl(2, 1000, true);
+
+        try (var output = streamingWriter.openOutput(outputPath.toString())) {
+            var ahead = Thread.ofPlatform().start(() -> output.write(2, pauses("file-2", 1)));
+            ahead.join(200);
+            assertTrue(ahead.isAlive(), "File 2 should wait for files 0 and 1");
+
+            output.write(1, pauses("file-1", 1));
+            output.write(0, pauses("file-0", 1));
+            ahead.join();
+        }
+
+        var lines = Files.readAllLines(outputPath);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(1).startsWith("file-0"));
+        assertTrue(lines.get(3).startsWith("file-2"));
+    }
+
+    @Test
+    @DisplayName("Should write the files as they complete when the order is not kept")
+    void openOutputInCompletionOrder() throws Exception {
+        var outputPath = tempDir.resolve("unordered.csv");
+        var streamingWriter = new BreathingPauseOutputWriterImpl(1, 1, false);
+
+        try (var output = streamingWriter.openOutput(outputPath.toString())) {
+            output.write(5, pauses("file-5", 2));
+            output.write(0, pauses("file-0", 1));
+        }
+
+        var lines = Files.readAllLines(outputPath);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(1).startsWith("file-5"));
+        assertTrue(lines.get(3).startsWith("file-0"));
+    }
+
+    @Test
+    @DisplayName("Should throw exception opening an output in an inaccessible directory")
+    void openOutputToNotAccessibleFolderThrowsException() {
+        assertThrows(SilenceDetectionException.class, () -> outputWriter.openOutput("/not_exists/failed.csv"));
+    }
+
+    @Test
+    @DisplayName("Should report flushes at file boundaries and resume an output from a reported size")
+    void openOutputResumesFromFlush() throws Exception {
+        var outputPath = tempDir.resolve("resumed.csv");
+        var writer = new BreathingPauseOutputWriterImpl(4, 1, true);
+        List<Integer> flushed = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+
+        try (var output = writer.openOutput(outputPath.toString(), 0, (sequences, outputSize) -> {
+            flushed.addAll(sequences);
+            sizes.add(outputSize);
+        })) {
+            output.write(0, pauses("file-0", 2));
+            output.write(1, List.of());
+            output.write(2, pauses("file-2", 1));
+        }
+        assertEquals(List.of(0, 1, 2), flushed);
+        assertEquals(Files.size(outputPath), sizes.getLast());
+
+        // Resume after the first file, the rest is discarded
+        var firstSize = sizes.getFirst();
+        try (var output = writer.openOutput(outputPath.toString(), firstSize, null)) {
+            output.write(0, pauses("file-3", 1));
+        }
+
+        var lines = Files.readAllLines(outputPath);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("File Path"));
+        assertTrue(lines.get(2).startsWith("file-0"));
+        assertTrue(lines.get(3).startsWith("file-3"));
+    }
+
+    @Test
+    @DisplayName("Should report the sequences given by the callers when not keeping the order")
+    void openOutputUnorderedReportsSequences() {
+        var outputPath = tempDir.resolve("unordered.csv");
+        List<Integer> flushed = new ArrayList<>();
+
+        try (var output = new BreathingPauseOutputWriterImpl(4, 1, false)
+                .openOutput(outputPath.toString(), 0, (sequences, outputSize) -> flushed.addAll(sequences))) {
+            output.write(7, pauses("file-7", 1));
+            output.write(3, pauses("file-3", 1));
+        }
+
+        assertEquals(List.of(7, 3), flushed);
+    }
+
+    @Test
+    @DisplayName("Should merge partial outputs in label order, keeping the rows of the owner of every label")
+    void mergePartialOutputsKeepsOwnedRows() throws Exception {
+        var first = tempDir.resolve("first.csv").toString();
+        var second = tempDir.resolve("second.csv").toString();
+        var outputPath = tempDir.resolve("merged.csv");
+
+        // Labels 0 and 3 in the first output, 1 and 2 in the second; label 2 was also written to the first one
+        try (var output = outputWriter.openPartialOutput(first, sequence -> List.of(0, 2, 3).get(sequence), null)) {
+            output.write(0, pauses("file-0", 2));
+            output.write(1, pauses("file-2", 1));
+            output.write(2, pauses("file-3", 1));
+        }
+        try (var output = outputWriter.openPartialOutput(second, sequence -> sequence + 1, null)) {
+            output.write(0, pauses("file-1", 1));
+            output.write(1, pauses("file-2", 1));
+        }
+        // A torn row left by a process dying while writing
+        Files.writeString(Path.of(second), "4,\"file-4", StandardOpenOption.APPEND);
+
+        outputWriter.mergePartialOutputs(List.of(first, second),
+                label -> label == 1 || label == 2 ? second : first, outputPath.toString());
+
+        var lines = Files.readAllLines(outputPath);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).startsWith("File Path"));
+        assertTrue(lines.get(1).startsWith("file-0,1,"));
+        assertTrue(lines.get(2).startsWith("file-0,2,"));
+        assertTrue(lines.get(3).startsWith("file-1,1,"));
+        assertTrue(lines.get(4).startsWith("file-2,1,"));
+        assertTrue(lines.get(5).startsWith("file-3,1,"));
+    }
+
+    private static List<BreathingPause> pauses(String filePath, int count) {
+        var pauses = new ArrayList<BreathingPause>();
+        for (int i = 0; i < count; i++) {
+            pauses.add(new BreathingPause(filePath, i + 1, i, i + 0.5, BreathingPauseType.NORMAL));
+        }
+        return pauses;
+    }
 }
@@ -0,0 +1,141 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.api.domain.BreathingPauseType;
+import com.jonabai.projects.apnea.api.domain.CacheVerification;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BreathingPauseResultCache Tests")
+class BreathingPauseResultCacheImplTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path cacheDir;
+    private String wavPath;
+    private List<BreathingPause> pauses;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDir = tempDir.resolve("cache");
+        wavPath = Files.write(tempDir.resolve("a.wav"), new byte[64 * 1024]).toString();
+        pauses = List.of(
+                new BreathingPause(wavPath, 1, 8_000, 120_000, 8_000, BreathingPauseType.MILD_APNEA),
+                new BreathingPause(wavPath, 2, 200_000, 210_000, 8_000, BreathingPauseType.NORMAL));
+    }
+
+    @Test
+    @DisplayName("Should serve the stored pauses of an unchanged file")
+    void getReturnsStoredPauses() {
+        var cache = new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.STAT, 4);
+        assertEquals(Optional.empty(), cache.get(wavPath));
+
+        cache.put(wavPath, pauses);
+
+        assertEquals(Optional.of(pauses), cache.get(wavPath));
+    }
+
+    @Test
+    @DisplayName("Should miss when the configuration changed")
+    void getWithOtherConfigurationMisses() {
+        new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.STAT, 4).put(wavPath, pauses);
+
+        var cache = new BreathingPauseResultCacheImpl(cacheDir, "other", 1 << 20, CacheVerification.STAT, 4);
+        assertEquals(Optional.empty(), cache.get(wavPath));
+    }
+
+    @Test
+    @DisplayName("Should miss when the file was modified")
+    void getModifiedFileMisses() throws IOException {
+        var cache = new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.STAT, 4);
+        cache.put(wavPath, pauses);
+
+        Files.setLastModifiedTime(Path.of(wavPath), FileTime.fromMillis(0));
+
+        assertEquals(Optional.empty(), cache.get(wavPath));
+    }
+
+    @Test
+    @DisplayName("Should detect content changed in a sampled block with the same size and time")
+    void getSampledDetectsRewrite() throws IOException {
+        var stat = new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.STAT, 1);
+        var sampled = new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.SAMPLED, 1);
+        sampled.put(wavPath, pauses);
+        assertEquals(Optional.of(pauses), sampled.get(wavPath));
+
+        // Rewrite the middle of the file, where the single sampled block is, keeping its time
+        var path = Path.of(wavPath);
+        var modified = Files.getLastModifiedTime(path);
+        var content = Files.readAllBytes(path);
+        content[content.length / 2] = 1;
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, modified);
+
+        assertEquals(Optional.of(pauses), stat.get(wavPath));
+        assertEquals(Optional.empty(), sampled.get(wavPath));
+    }
+
+    @Test
+    @DisplayName("Should evict the least recently used entries over the size limit")
+    void putEvictsLeastRecentlyUsed() throws IOException {
+        var otherPath = Files.write(tempDir.resolve("b.wav"), new byte[16]).toString();
+        var thirdPath = Files.write(tempDir.resolve("c.wav"), new byte[16]).toString();
+        var unbounded = new BreathingPauseResultCacheImpl(cacheDir, "config", 1 << 20, CacheVerification.STAT, 0);
+        unbounded.put(wavPath, pauses);
+        unbounded.put(otherPath, List.of());
+        long entrySize;
+        try (var entries = Files.list(cacheDir)) {
+            entrySize = entries.mapToLong(path -> path.toFile().length()).max().orElseThrow();
+        }
+        // Make the first entry the most recently used
+        try (var entries = Files.list(cacheDir)) {
+            entries.forEach(path -> path.toFile().setLastModified(0));
+        }
+        assertTrue(unbounded.get(wavPath).isPresent());
+
+        // Room for two entries: the one not used since is evicted
+        var cache = new BreathingPauseResultCacheImpl(cacheDir, "config", 2 * entrySize, CacheVerification.STAT, 0);
+        cache.put(thirdPath, List.of());
+
+        assertTrue(cache.get(wavPath).isPresent());
+        assertTrue(cache.get(thirdPath).isPresent());
+        assertEquals(Optional.empty(), cache.get(otherPath));
+    }
+
+    @Test
+    @DisplayName("Should fingerprint only the properties changing the pauses")
+    void configFingerprintIgnoresOperationalProperties() {
+        var environment = new MockEnvironment()
+                .withProperty("apnea.silence.checker.threshold", "0.00001")
+                .withProperty("apnea.batch.parallelism", "4");
+        var fingerprint = BreathingPauseResultCacheImpl.configFingerprint(environment);
+
+        assertEquals(fingerprint, BreathingPauseResultCacheImpl.configFingerprint(
+                environment.withProperty("apnea.batch.parallelism", "8")));
+        assertNotEquals(fingerprint, BreathingPauseResultCacheImpl.configFingerprint(
+                environment.withProperty("apnea.classification.mild.threshold", "12.0")));
+    }
+
+    @Test
+    @DisplayName("Should do nothing without a cache directory")
+    void disabledCacheNeverHits() {
+        var cache = new BreathingPauseResultCacheImpl((Path) null, "config", 1 << 20, CacheVerification.STAT, 4);
+        cache.put(wavPath, pauses);
+
+        assertEquals(Optional.empty(), cache.get(wavPath));
+        assertFalse(Files.exists(cacheDir));
+    }
+}
@@ -0,0 +1,97 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("CheckpointJournal Tests")
+class CheckpointJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final String INPUT = "input.csv\t100\t1";
+
+    private Path outputPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        outputPath = Files.writeString(tempDir.resolve("output.csv"), "x".repeat(100));
+    }
+
+    @Test
+    @DisplayName("Should resume the files recorded for the same input")
+    void reopenResumesCompletedFiles() {
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            assertEquals(0, journal.getOutputOffset());
+            journal.append(List.of("a.wav", "b.wav", "a.wav"), 60);
+        }
+
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            assertEquals(60, journal.getOutputOffset());
+            assertEquals(3, journal.getCompletedCount());
+            assertTrue(journal.claim("b.wav"));
+            assertFalse(journal.claim("b.wav"));
+            assertFalse(journal.claim("c.wav"));
+            assertTrue(journal.claim("a.wav"));
+            assertTrue(journal.claim("a.wav"));
+            assertFalse(journal.claim("a.wav"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should ignore a line torn by a crash and what follows it")
+    void reopenStopsAtTornLine() throws IOException {
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            journal.append(List.of("a.wav"), 40);
+            journal.append(List.of("b.wav"), 80);
+        }
+        var journalPath = tempDir.resolve("output.csv" + CheckpointJournal.SUFFIX);
+        var lines = Files.readAllLines(journalPath);
+        Files.write(journalPath, List.of(lines.get(0), lines.get(1), lines.get(2).substring(0, lines.get(2).length() - 1)));
+
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            assertEquals(40, journal.getOutputOffset());
+            assertEquals(1, journal.getCompletedCount());
+            journal.append(List.of("b.wav"), 90);
+        }
+
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            assertEquals(90, journal.getOutputOffset());
+            assertEquals(2, journal.getCompletedCount());
+        }
+    }
+
+    @Test
+    @DisplayName("Should start over when the input changed")
+    void reopenWithChangedInputStartsOver() {
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            journal.append(List.of("a.wav"), 40);
+        }
+
+        try (var journal = CheckpointJournal.open("input.csv\t120\t2", outputPath)) {
+            assertEquals(0, journal.getOutputOffset());
+            assertEquals(0, journal.getCompletedCount());
+        }
+    }
+
+    @Test
+    @DisplayName("Should start over when the output is shorter than recorded")
+    void reopenWithTruncatedOutputStartsOver() {
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            journal.append(List.of("a.wav"), 400);
+        }
+
+        try (var journal = CheckpointJournal.open(INPUT, outputPath)) {
+            assertEquals(0, journal.getOutputOffset());
+        }
+    }
+}
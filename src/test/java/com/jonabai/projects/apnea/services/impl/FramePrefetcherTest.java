@@ -0,0 +1,82 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.services.WavFile;
+import com.jonabai.projects.apnea.services.impl.wav.WavFileInputStream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("FramePrefetcher Tests")
+class FramePrefetcherTest {
+
+    private static final File EXAMPLE_FILE = new File("target/test-classes/example-2.wav");
+
+    @Test
+    @DisplayName("Should hand over every frame of the file in order, recycling the blocks of the ring")
+    void prefetchReadsWholeFile() throws Exception {
+        try (var expectedFile = new WavFileInputStream(EXAMPLE_FILE);
+             var wavFile = new WavFileInputStream(EXAMPLE_FILE)) {
+            var channels = wavFile.getNumChannels();
+            var expected = new float[(int) expectedFile.getNumFrames() * channels];
+            expectedFile.readFrames(expected, 0, (int) expectedFile.getNumFrames());
+
+            var actual = new float[expected.length];
+            var offset = 0;
+            Set<float[]> blocks = Collections.newSetFromMap(new IdentityHashMap<>());
+            try (var prefetcher = new FramePrefetcher(wavFile, 1000, 2)) {
+                FramePrefetcher.Block block;
+                while ((block = prefetcher.take()) != null) {
+                    blocks.add(block.samples());
+                    System.arraycopy(block.samples(), 0, actual, offset, block.frames() * channels);
+                    offset += block.frames() * channels;
+                    prefetcher.release(block);
+                }
+                assertNull(prefetcher.take());
+            }
+
+            assertEquals(expected.length, offset);
+            assertTrue(Arrays.equals(expected, actual));
+            assertEquals(2, blocks.size());
+        }
+    }
+
+    @Test
+    @DisplayName("Should throw the read failure to the consumer")
+    void prefetchReportsFailure() throws Exception {
+        var wavFile = mock(WavFile.class);
+        when(wavFile.getNumChannels()).thenReturn(1);
+        when(wavFile.getFile()).thenReturn(EXAMPLE_FILE);
+        when(wavFile.readFrames(any(float[].class), anyInt(), anyInt())).thenThrow(new IOException("Disk error"));
+
+        try (var prefetcher = new FramePrefetcher(wavFile, 16, 2)) {
+            var e = assertThrows(WavFileException.class, prefetcher::take);
+            assertInstanceOf(IOException.class, e.getCause());
+            assertNull(prefetcher.take());
+        }
+    }
+
+    @Test
+    @DisplayName("Should stop a reader waiting for free blocks when closed early")
+    void closeStopsReader() throws Exception {
+        try (var wavFile = new WavFileInputStream(EXAMPLE_FILE)) {
+            var prefetcher = new FramePrefetcher(wavFile, 16, 1);
+            assertNotNull(prefetcher.take());
+
+            assertTimeoutPreemptively(Duration.ofSeconds(5), prefetcher::close);
+        }
+    }
+}
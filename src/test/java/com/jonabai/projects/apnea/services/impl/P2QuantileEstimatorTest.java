@@ -0,0 +1,76 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("P2QuantileEstimator Tests")
+class P2QuantileEstimatorTest {
+
+    @ParameterizedTest(name = "quantile {0}")
+    @ValueSource(doubles = {0.05, 0.1, 0.5, 0.9})
+    @DisplayName("Should approximate the exact quantile of a large sample")
+    void approximatesExactQuantile(double quantile) {
+        var random = new Random(7);
+        var values = new double[50_000];
+        var estimator = new P2QuantileEstimator(quantile);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian());
+            estimator.add(values[i]);
+        }
+
+        Arrays.sort(values);
+        var exact = values[(int) (quantile * (values.length - 1))];
+        assertEquals(exact, estimator.getQuantile(), exact * 0.02);
+        assertEquals(values.length, estimator.getCount());
+    }
+
+    @Test
+    @DisplayName("Should be exact with fewer than five values and restart after reset")
+    void exactForFewValuesAndReset() {
+        var estimator = new P2QuantileEstimator(0.5);
+        assertTrue(Double.isNaN(estimator.getQuantile()));
+
+        estimator.add(3);
+        estimator.add(1);
+        estimator.add(2);
+        assertEquals(2, estimator.getQuantile());
+
+        estimator.reset();
+        assertEquals(0, estimator.getCount());
+        estimator.add(10);
+        assertEquals(10, estimator.getQuantile());
+    }
+
+    @Test
+    @DisplayName("Should reject quantiles outside (0, 1)")
+    void rejectsInvalidQuantile() {
+        assertThrows(IllegalArgumentException.class, () -> new P2QuantileEstimator(1.0));
+    }
+
+    @Test
+    @DisplayName("Rolling noise floor should follow a level change within one horizon")
+    void rollingNoiseFloorFollowsDrift() {
+        var random = new Random(3);
+        var noiseFloor = new RollingNoiseFloor(0.1, 1000);
+        assertFalse(noiseFloor.isReady());
+
+        for (int i = 0; i < 2000; i++) {
+            noiseFloor.add(0.001 * (1 + random.nextDouble()));
+        }
+        assertTrue(noiseFloor.isReady());
+        assertEquals(0.0011, noiseFloor.getNoiseFloor(), 0.0001);
+
+        // Background noise rises ten times (e.g. ventilation switching on)
+        for (int i = 0; i < 1000; i++) {
+            noiseFloor.add(0.01 * (1 + random.nextDouble()));
+        }
+        assertEquals(0.011, noiseFloor.getNoiseFloor(), 0.001);
+    }
+}
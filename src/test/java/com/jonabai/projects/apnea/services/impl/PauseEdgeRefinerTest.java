@@ -0,0 +1,109 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.services.impl.wav.WavFileInputStream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("PauseEdgeRefiner Tests")
+class PauseEdgeRefinerTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FINE_FRAMES = 16;
+    private static final int RADIUS_FRAMES = 4096;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Should move coarse edges to the sub-block where the silence starts and ends")
+    void refinesEdgesToSubBlocks() throws Exception {
+        // Tone, silence from frame 10000 to 30000, tone
+        var file = monoFile(40000, 10000, 30000);
+        var checker = calibratedChecker();
+
+        try (var wavFile = new WavFileInputStream(file.toFile())) {
+            var refiner = new PauseEdgeRefiner(wavFile, checker, FINE_FRAMES, RADIUS_FRAMES, false);
+            var coarse = BreathingPause.unclassified("a.wav", 1, 11264, 32768, SAMPLE_RATE);
+
+            var refined = refiner.refine(List.of(coarse)).getFirst();
+
+            assertEquals(10000, refined.startFrame(), FINE_FRAMES);
+            assertEquals(30000, refined.endFrame(), FINE_FRAMES);
+            assertEquals(1, refined.index());
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep the coarse edges with no loud sub-block around them")
+    void keepsEdgesWithoutSound() throws Exception {
+        var file = monoFile(40000, 0, 40000);
+        var checker = calibratedChecker();
+
+        try (var wavFile = new WavFileInputStream(file.toFile())) {
+            var refiner = new PauseEdgeRefiner(wavFile, checker, FINE_FRAMES, RADIUS_FRAMES, false);
+            var coarse = BreathingPause.unclassified("a.wav", 1, 8000, 24000, SAMPLE_RATE);
+
+            assertEquals(List.of(coarse), refiner.refine(List.of(coarse)));
+        }
+    }
+
+    @Test
+    @DisplayName("Should never move an edge across the neighbouring pauses")
+    void doesNotOverlapNeighbours() throws Exception {
+        // Two silences separated by a short tone
+        var file = monoFile(40000, 8000, 20000, 20400, 32000);
+        var checker = calibratedChecker();
+
+        try (var wavFile = new WavFileInputStream(file.toFile())) {
+            var refiner = new PauseEdgeRefiner(wavFile, checker, FINE_FRAMES, RADIUS_FRAMES, false);
+            var pauses = List.of(
+                    BreathingPause.unclassified("a.wav", 1, 9216, 20480, SAMPLE_RATE),
+                    BreathingPause.unclassified("a.wav", 2, 21504, 33792, SAMPLE_RATE));
+
+            var refined = refiner.refine(pauses);
+
+            assertEquals(2, refined.size());
+            assertEquals(20000, refined.get(0).endFrame(), FINE_FRAMES);
+            assertEquals(20400, refined.get(1).startFrame(), FINE_FRAMES);
+            assertTrue(refined.get(1).startFrame() >= refined.get(0).endFrame());
+        }
+    }
+
+    private static SilenceCheckerServiceImpl calibratedChecker() {
+        var checker = new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+        checker.setCurrentThreshold(0.001);
+        return checker;
+    }
+
+    /**
+     * Writes a 16 bit mono file holding a tone except between the given pairs of frames
+     */
+    private Path monoFile(int frames, int... silences) throws Exception {
+        var data = ByteBuffer.allocate(44 + 2 * frames).order(ByteOrder.LITTLE_ENDIAN);
+        data.put("RIFF".getBytes()).putInt(36 + 2 * frames).put("WAVE".getBytes())
+                .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2)
+                .putShort((short) 2).putShort((short) 16)
+                .put("data".getBytes()).putInt(2 * frames);
+        for (int frame = 0; frame < frames; frame++) {
+            var silent = false;
+            for (int i = 0; i < silences.length; i += 2) {
+                silent |= frame >= silences[i] && frame < silences[i + 1];
+            }
+            data.putShort(silent ? 0 : (short) (8000 * Math.sin(frame * 0.3)));
+        }
+        var file = tempDir.resolve("refine-" + frames + "-" + silences.length + ".wav");
+        Files.write(file, data.array());
+        return file;
+    }
+}
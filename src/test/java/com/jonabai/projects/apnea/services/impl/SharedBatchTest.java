@@ -0,0 +1,96 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.ApneaDetectorServiceException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("SharedBatch Tests")
+class SharedBatchTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final String INPUT = "input.csv\t100\t1";
+    private static final Duration LEASE = Duration.ofMinutes(5);
+
+    @Test
+    @DisplayName("Should give every file to a single process")
+    void claimIsExclusive() {
+        var outputPath = tempDir.resolve("output.csv");
+        try (var first = SharedBatch.open(INPUT, outputPath, LEASE);
+             var second = SharedBatch.open(INPUT, outputPath, LEASE)) {
+            assertTrue(first.claim(0));
+            assertFalse(second.claim(0));
+            assertTrue(second.claim(1));
+            assertFalse(first.claim(1));
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep the rows of the first process completing a file")
+    void firstCompletionWins() {
+        var outputPath = tempDir.resolve("output.csv");
+        try (var first = SharedBatch.open(INPUT, outputPath, LEASE);
+             var second = SharedBatch.open(INPUT, outputPath, LEASE)) {
+            assertTrue(first.claim(0));
+            assertNull(first.owner(0));
+
+            first.completed(List.of(0), first.partialPath(0));
+            second.completed(List.of(0), second.partialPath(0));
+
+            assertEquals(first.partialPath(0).toString(), second.owner(0));
+            assertEquals(1, second.getDoneCount());
+            assertFalse(second.claim(0));
+        }
+    }
+
+    @Test
+    @DisplayName("Should take over a lease no longer renewed")
+    void expiredLeaseIsTakenOver() throws IOException {
+        var outputPath = tempDir.resolve("output.csv");
+        try (var first = SharedBatch.open(INPUT, outputPath, LEASE);
+             var second = SharedBatch.open(INPUT, outputPath, LEASE)) {
+            assertTrue(first.claim(0));
+            first.close();
+            Files.setLastModifiedTime(tempDir.resolve("output.csv" + SharedBatch.SUFFIX).resolve("claims/0"),
+                    FileTime.fromMillis(System.currentTimeMillis() - LEASE.toMillis() - 60_000));
+
+            assertTrue(second.claim(0));
+            assertFalse(first.claim(0));
+        }
+    }
+
+    @Test
+    @DisplayName("Should let a single process merge and remove the work directory")
+    void singleMerge() {
+        var outputPath = tempDir.resolve("output.csv");
+        try (var first = SharedBatch.open(INPUT, outputPath, LEASE);
+             var second = SharedBatch.open(INPUT, outputPath, LEASE)) {
+            assertTrue(first.claimMerge());
+            assertFalse(second.claimMerge());
+
+            first.delete();
+        }
+        assertFalse(Files.exists(tempDir.resolve("output.csv" + SharedBatch.SUFFIX)));
+    }
+
+    @Test
+    @DisplayName("Should refuse a work directory left by another input")
+    void otherInputIsRefused() {
+        var outputPath = tempDir.resolve("output.csv");
+        SharedBatch.open(INPUT, outputPath, LEASE).close();
+
+        assertThrows(ApneaDetectorServiceException.class,
+                () -> SharedBatch.open("input.csv\t120\t2", outputPath, LEASE));
+    }
+}
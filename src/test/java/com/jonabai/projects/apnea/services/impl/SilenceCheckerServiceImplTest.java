@@ -30,7 +30,7 @@ class SilenceCheckerServiceImplTest {
         @Test
         @DisplayName("Should return false for null array")
         void isSilenceForNullArrayReturnsFalse() {
-            var isSilence = silenceCheckerService.isSilence(null);
+            var isSilence = silenceCheckerService.isSilence((double[]) null);
             assertFalse(isSilence);
         }
 
@@ -49,6 +49,41 @@ class SilenceCheckerServiceImplTest {
             assertFalse(isSilence);
         }
 
+        @Test
+        @DisplayName("Should return false for empty single precision array")
+        void isSilenceForEmptyFloatArrayReturnsFalse() {
+            var isSilence = silenceCheckerService.isSilence(new float[]{});
+            assertFalse(isSilence);
+        }
+
+        @Test
+        @DisplayName("Should compute the same RMS in single and double precision")
+        void volumeRmsSameInSingleAndDoublePrecision() {
+            var floatBuffer = new float[]{0.25f, -0.5f, 0.125f, 0.75f, -0.0625f};
+            var doubleBuffer = new double[floatBuffer.length];
+            for (int i = 0; i < floatBuffer.length; i++) {
+                doubleBuffer[i] = floatBuffer[i];
+            }
+
+            assertEquals(silenceCheckerService.volumeRMS(doubleBuffer),
+                    silenceCheckerService.volumeRMS(floatBuffer), 1e-12);
+        }
+
+        @Test
+        @DisplayName("Should only check the requested range of the buffer")
+        void isSilenceChecksOnlyRange() {
+            var buffer = new float[]{0.5f, -0.5f, 0f, 0f, 0f, 0f, 0.5f, -0.5f};
+            assertTrue(silenceCheckerService.isSilence(buffer, 2, 4));
+        }
+
+        @Test
+        @DisplayName("Should compute the RMS around the mean despite a large DC offset")
+        void volumeRmsWithDcOffset() {
+            var buffer = new double[]{1000.001, 999.999, 1000.001, 999.999};
+            assertEquals(0.001, silenceCheckerService.volumeRMS(buffer), 1e-9);
+            assertEquals(0.0, silenceCheckerService.volumeRMS(new double[]{0.3, 0.3, 0.3}));
+        }
+
         @Test
         @DisplayName("Should return true for silence")
         void isSilenceForSilentAudioReturnsTrue() {
@@ -146,6 +181,35 @@ class SilenceCheckerServiceImplTest {
             // Threshold should be at least the base threshold
             assertTrue(silenceCheckerService.getCurrentThreshold() >= SILENCE_THRESHOLD);
         }
+
+        @Test
+        @DisplayName("Should calibrate incrementally to the same threshold as a single buffer")
+        void incrementalCalibrationMatchesSingleBuffer() {
+            var buffer = new float[3000];
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = 0.3f + 0.01f * (float) Math.sin(i * 0.37);
+            }
+            var reference = new SilenceCheckerServiceImpl(
+                    SILENCE_THRESHOLD, HYSTERESIS_MULTIPLIER, SMOOTHING_WINDOW, CALIBRATION_MULTIPLIER);
+            reference.calibrate(buffer);
+
+            for (int offset = 0; offset < buffer.length; offset += 1024) {
+                silenceCheckerService.addCalibrationSamples(buffer, offset, Math.min(1024, buffer.length - offset));
+            }
+            assertFalse(silenceCheckerService.isCalibrated());
+            silenceCheckerService.finishCalibration();
+
+            assertTrue(silenceCheckerService.isCalibrated());
+            assertEquals(reference.getCurrentThreshold(), silenceCheckerService.getCurrentThreshold(), 1e-12);
+            assertEquals(2 * silenceCheckerService.volumeRMS(buffer), silenceCheckerService.getCurrentThreshold(), 1e-9);
+        }
+
+        @Test
+        @DisplayName("Should not calibrate when no samples were fed")
+        void finishCalibrationWithoutSamples() {
+            silenceCheckerService.finishCalibration();
+            assertFalse(silenceCheckerService.isCalibrated());
+        }
     }
 
     @Nested
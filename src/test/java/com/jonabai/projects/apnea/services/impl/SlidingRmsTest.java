@@ -0,0 +1,70 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.services.impl.simd.SampleKernels;
+import com.jonabai.projects.apnea.services.impl.simd.ScalarSampleKernels;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("SlidingRms Tests")
+class SlidingRmsTest {
+
+    // Scalar kernels, so the sliding window is held to double precision with the simd profile too
+    private final SampleKernels reference = new ScalarSampleKernels();
+
+    @Test
+    @DisplayName("Should match the RMS of the samples covered by the window")
+    void matchesDirectRms() {
+        var samples = new float[4000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 0.5f + (float) Math.sin(i * 0.05) * (i < 2000 ? 0.01f : 0.2f);
+        }
+        var hop = 100;
+        var slidingRms = new SlidingRms(4, 0);
+
+        for (int start = 0; start < samples.length; start += hop) {
+            var rms = slidingRms.add(samples, start, hop);
+            var windowStart = Math.max(0, start - 3 * hop);
+            var expected = reference.volumeRms(samples, windowStart, start + hop - windowStart);
+            assertEquals(expected, rms, 1e-9);
+        }
+    }
+
+    @Test
+    @DisplayName("Should agree exactly with a pass from the start when started at a merge boundary")
+    void warmupMatchesFullPass() {
+        var samples = new float[20_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 0.3f + (float) Math.sin(i * 0.013) * 0.05f + (float) Math.cos(i * 0.7) * 0.01f;
+        }
+        var hop = 100;
+        var windowing = new Windowing(hop, 4);
+        var full = new SlidingRms(4, 0);
+        var levels = new double[samples.length / hop];
+        for (int block = 0; block < levels.length; block++) {
+            levels[block] = full.add(samples, block * hop, hop);
+        }
+
+        for (long firstNeeded : new long[]{0, 2, 3, 57, 130}) {
+            var warmupBlock = windowing.warmupBlock(firstNeeded);
+            var window = new SlidingRms(4, warmupBlock);
+            for (var block = (int) warmupBlock; block < levels.length; block++) {
+                var rms = window.add(samples, block * hop, hop);
+                if (block >= firstNeeded) {
+                    assertEquals(levels[block], rms, 0.0, "block " + block);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should start a new window after reset")
+    void resetClearsWindow() {
+        var slidingRms = new SlidingRms(3, 0);
+        slidingRms.add(new float[]{1f, -1f, 1f, -1f}, 0, 4);
+        slidingRms.reset();
+
+        assertEquals(0, slidingRms.add(new float[]{0.3f, 0.3f}, 0, 2), 1e-12);
+    }
+}
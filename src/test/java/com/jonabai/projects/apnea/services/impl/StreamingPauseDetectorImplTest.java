@@ -0,0 +1,127 @@
+package com.jonabai.projects.apnea.services.impl;
+
+import com.jonabai.projects.apnea.api.domain.BreathingPause;
+import com.jonabai.projects.apnea.services.PauseListener;
+import com.jonabai.projects.apnea.services.SilenceCheckerService;
+import com.jonabai.projects.apnea.services.WavFileFactory;
+import com.jonabai.projects.apnea.services.impl.wav.WavFileInputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("StreamingPauseDetector Tests")
+class StreamingPauseDetectorImplTest {
+
+    private static final String FILE_PATH = "target/test-classes/example-2.wav";
+
+    private AudioFileSilenceDetectorServiceImpl detectorService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ObjectProvider<SilenceCheckerService> checkerProvider = new ObjectProvider<>() {
+            @Override
+            public SilenceCheckerService getObject() {
+                return new SilenceCheckerServiceImpl(0.00001, 5.0, 5, 2.0);
+            }
+        };
+        var wavFileFactory = mock(WavFileFactory.class);
+        when(wavFileFactory.newWavFile(any())).thenAnswer(inv -> new WavFileInputStream(new File(FILE_PATH)));
+        detectorService = new AudioFileSilenceDetectorServiceImpl(checkerProvider, wavFileFactory,
+                SilenceDetectorSettings.defaults().withWindow(50f, 10f));
+    }
+
+    @Test
+    @DisplayName("Should find the same pauses as the file processing whatever the chunk sizes")
+    void chunkSizesDoNotChangeThePauses() throws Exception {
+        var expected = detectorService.processFile(FILE_PATH);
+        assertFalse(expected.isEmpty());
+
+        var listener = new RecordingListener();
+        try (var wavFile = new WavFileInputStream(new File(FILE_PATH))) {
+            var detector = detectorService.newStreamingDetector("example-2.wav", wavFile.getSampleRate(),
+                    wavFile.getNumChannels(), listener);
+            var samples = new float[(int) wavFile.getNumFrames()];
+            wavFile.readFrames(samples, samples.length);
+
+            var random = new Random(42);
+            var offset = 0;
+            while (offset < samples.length) {
+                var length = Math.min(samples.length - offset, 1 + random.nextInt(3000));
+                detector.accept(samples, offset, length);
+                offset += length;
+            }
+            detector.finish();
+
+            assertEquals(wavFile.getNumFrames(), detector.getFramesAccepted());
+        }
+
+        assertEquals(expected, listener.pauses);
+        assertEquals(expected.size(), listener.starts.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).startFrame(), listener.starts.get(i));
+        }
+    }
+
+    @Test
+    @DisplayName("Should report a pause as soon as the sound comes back")
+    void reportsPausesWhileStreaming() throws Exception {
+        var listener = new RecordingListener();
+        var detector = detectorService.newStreamingDetector("live", 8000, 1, listener);
+
+        // Calibration noise, then a tone
+        var random = new Random(7);
+        var chunk = new float[800];
+        for (int i = 0; i < 30; i++) {
+            for (int j = 0; j < chunk.length; j++) {
+                chunk[j] = (float) (random.nextGaussian() * 0.001);
+            }
+            detector.accept(chunk, 0, chunk.length);
+        }
+        for (int j = 0; j < chunk.length; j++) {
+            chunk[j] = (float) (0.5 * Math.sin(j * 0.3));
+        }
+        detector.accept(chunk, 0, chunk.length);
+
+        assertEquals(1, listener.starts.size());
+        assertEquals(1, listener.pauses.size());
+        assertEquals(0, listener.pauses.getFirst().startFrame());
+        assertEquals(24000, listener.pauses.getFirst().endFrame(), 400);
+    }
+
+    @Test
+    @DisplayName("Should reject samples once finished")
+    void rejectsSamplesAfterFinish() {
+        var detector = detectorService.newStreamingDetector("live", 8000, 2, new RecordingListener());
+        detector.accept(new float[5], 0, 5);
+        detector.finish();
+
+        assertEquals(2, detector.getFramesAccepted());
+        assertThrows(IllegalStateException.class, () -> detector.accept(new float[2], 0, 2));
+    }
+
+    private static final class RecordingListener implements PauseListener {
+        private final List<Long> starts = new ArrayList<>();
+        private final List<BreathingPause> pauses = new ArrayList<>();
+
+        @Override
+        public void pauseStarted(long startFrame) {
+            starts.add(startFrame);
+        }
+
+        @Override
+        public void pauseEnded(BreathingPause pause) {
+            pauses.add(pause);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.jonabai.projects.apnea.services.impl.simd;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the selected kernels against the scalar ones. With the default build both are scalar,
+ * with the simd profile the vectorised kernels are exercised.
+ */
+@DisplayName("SampleKernels Tests")
+class SampleKernelsTest {
+
+    private final SampleKernels kernels = SampleKernels.get();
+    private final SampleKernels scalar = new ScalarSampleKernels();
+    private final Random random = new Random(42);
+
+    @Test
+    @DisplayName("Should match the scalar RMS within the documented tolerance")
+    void volumeRmsMatchesScalar() {
+        var buffer = new float[10_007];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = 0.25f + (float) random.nextGaussian() * 0.01f;
+        }
+
+        for (int length : new int[]{1, 7, 1024, 5000, buffer.length - 3}) {
+            var expected = scalar.volumeRms(buffer, 3, length);
+            var actual = kernels.volumeRms(buffer, 3, length);
+            assertEquals(expected, actual, expected * SampleKernels.RMS_RELATIVE_TOLERANCE + 1e-12);
+        }
+    }
+
+    @Test
+    @DisplayName("Should match the scalar RMS of quiet noise after a transient first sample")
+    void volumeRmsWithOutlierFirstSample() {
+        var buffer = new float[1024];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (float) random.nextGaussian() * 0.001f;
+        }
+        buffer[0] = 0.5f;
+
+        var expected = scalar.volumeRms(buffer, 0, buffer.length);
+        assertEquals(expected, kernels.volumeRms(buffer, 0, buffer.length),
+                expected * SampleKernels.RMS_RELATIVE_TOLERANCE);
+    }
+
+    @Test
+    @DisplayName("Should convert 16 bit PCM exactly like the scalar kernels")
+    void decodePcm16MatchesScalar() {
+        var numSamples = 9_001;
+        var bytes = ByteBuffer.allocate(2 * numSamples + 6).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < bytes.capacity(); i++) {
+            bytes.put(i, (byte) random.nextInt());
+        }
+        var scale = 1f / 32768f;
+
+        var expected = new float[numSamples + 1];
+        var actual = new float[numSamples + 1];
+        scalar.decodePcm16(bytes, 6, expected, 1, numSamples, scale);
+        kernels.decodePcm16(bytes, 6, actual, 1, numSamples, scale);
+
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,102 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("DeviceReadScheduler Tests")
+class DeviceReadSchedulerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Should limit the reads running at the same time on a device")
+    void readsPerDeviceAreLimited() throws Exception {
+        var scheduler = new DeviceReadScheduler(2, 1024, 4);
+        var first = Files.writeString(tempDir.resolve("first.wav"), "RIFF").toFile();
+        var second = Files.writeString(tempDir.resolve("second.wav"), "RIFF").toFile();
+        var device = scheduler.device(first);
+        assertSame(device, scheduler.device(second));
+
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        try (var readers = Executors.newFixedThreadPool(8)) {
+            List<Future<Integer>> reads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                reads.add(readers.submit(() -> device.read(slowStream(running, maxRunning), new byte[1024], 0, 1024)));
+            }
+            for (var read : reads) {
+                assertEquals(1024, read.get());
+            }
+        }
+
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    @DisplayName("Should fill the requested length and report the end of the stream")
+    void readFillsUntilEnd() throws Exception {
+        var scheduler = new DeviceReadScheduler(1, 16, 1);
+        var device = scheduler.device(new File("."));
+        var in = new ByteArrayInputStream(new byte[20]) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                // Short reads, as a network mount may give
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        var buffer = new byte[16];
+
+        assertEquals(16, device.read(in, buffer, 0, 16));
+        assertEquals(4, device.read(in, buffer, 0, 16));
+        assertEquals(-1, device.read(in, buffer, 0, 16));
+    }
+
+    @Test
+    @DisplayName("Should reuse released buffers")
+    void buffersArePooled() {
+        var scheduler = new DeviceReadScheduler(1, 64, 1);
+        var buffer = scheduler.acquireBuffer();
+        assertEquals(64, buffer.length);
+        assertNotSame(buffer, scheduler.acquireBuffer());
+
+        scheduler.releaseBuffer(buffer);
+
+        assertSame(buffer, scheduler.acquireBuffer());
+    }
+
+    private static InputStream slowStream(AtomicInteger running, AtomicInteger maxRunning) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return len;
+            }
+        };
+    }
+}
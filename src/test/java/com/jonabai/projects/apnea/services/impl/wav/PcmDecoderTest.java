@@ -0,0 +1,51 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("PcmDecoder Tests")
+class PcmDecoderTest {
+
+    private static final int NUM_SAMPLES = 4096;
+
+    @ParameterizedTest
+    @DisplayName("Should decode every sample width exactly like the byte by byte conversion")
+    @ValueSource(ints = {8, 12, 16, 20, 24, 32})
+    void decodeMatchesReferenceConversion(int validBits) {
+        var bytesPerSample = (validBits + 7) / 8;
+        var floatScale = validBits > 8 ? 1 << (validBits - 1) : 0.5 * ((1 << validBits) - 1);
+        var floatOffset = validBits > 8 ? 0 : -1;
+
+        var bytes = new byte[NUM_SAMPLES * bytesPerSample + 3];
+        new Random(validBits).nextBytes(bytes);
+        var decoder = PcmDecoder.forFormat(bytesPerSample, floatScale, floatOffset);
+
+        // Decode from an unaligned index to check the absolute indexing
+        var decoded = new double[NUM_SAMPLES + 1];
+        decoder.decode(PcmDecoder.littleEndian(bytes), 3, decoded, 1, NUM_SAMPLES);
+
+        var decodedFloat = new float[NUM_SAMPLES];
+        decoder.decode(PcmDecoder.littleEndian(bytes), 3, decodedFloat, 0, NUM_SAMPLES);
+
+        for (int s = 0; s < NUM_SAMPLES; s++) {
+            var expected = floatOffset + referenceSample(bytes, 3 + s * bytesPerSample, bytesPerSample) / floatScale;
+            assertEquals(expected, decoded[s + 1], "sample " + s);
+            assertEquals((float) expected, decodedFloat[s], "float sample " + s);
+        }
+    }
+
+    private static double referenceSample(byte[] bytes, int pos, int bytesPerSample) {
+        long val = 0;
+        for (int b = 0; b < bytesPerSample; b++) {
+            int v = bytes[pos + b];
+            if (b < bytesPerSample - 1 || bytesPerSample == 1) v &= 0xFF;
+            val += (long) v << (b * 8);
+        }
+        return val;
+    }
+}
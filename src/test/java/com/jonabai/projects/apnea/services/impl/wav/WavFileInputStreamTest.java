@@ -41,4 +41,59 @@ class WavFileInputStreamTest {
 
         assertTrue(numFrames > 0);
     }
+
+    @Test
+    @DisplayName("Should read the same samples in single precision")
+    void readFramesSinglePrecision() throws Exception {
+        try (var floatWavFile = new WavFileInputStream(new File("target/test-classes/example-2.wav"))) {
+            var expected = new double[1024];
+            var actual = new float[1024];
+
+            var numFrames = wavFile.readFrames(expected, 1024);
+            assertEquals(numFrames, floatWavFile.readFrames(actual, 1024));
+
+            for (int i = 0; i < numFrames; i++) {
+                assertEquals((float) expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should read raw 16 bit samples")
+    void readFramesRaw() throws Exception {
+        try (var rawWavFile = new WavFileInputStream(new File("target/test-classes/example-2.wav"))) {
+            var expected = new double[1024];
+            var actual = new short[1024];
+
+            var numFrames = wavFile.readFrames(expected, 1024);
+            assertEquals(numFrames, rawWavFile.readFramesRaw(actual, 0, 1024));
+
+            for (int i = 0; i < numFrames; i++) {
+                assertEquals(expected[i] * 32768, actual[i]);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should read the same samples through the device read scheduler, also after seeking")
+    void readFramesScheduled() throws Exception {
+        var scheduler = new DeviceReadScheduler(1, 64 * 1024, 1);
+        try (var scheduled = new WavFileInputStream(new File("target/test-classes/example-2.wav"), scheduler)) {
+            var expected = new float[4096];
+            var actual = new float[4096];
+            int numFrames;
+            while ((numFrames = wavFile.readFrames(expected, 0, 4096)) > 0) {
+                assertEquals(numFrames, scheduled.readFrames(actual, 0, 4096));
+                assertArrayEquals(expected, actual);
+            }
+            assertEquals(0, scheduled.readFrames(actual, 0, 4096));
+
+            var frame = wavFile.getNumFrames() / 3;
+            wavFile.seekFrame(frame);
+            scheduled.seekFrame(frame);
+            numFrames = wavFile.readFrames(expected, 0, 4096);
+            assertEquals(numFrames, scheduled.readFrames(actual, 0, 4096));
+            assertArrayEquals(expected, actual);
+        }
+    }
 }
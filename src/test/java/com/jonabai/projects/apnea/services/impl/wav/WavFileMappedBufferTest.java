@@ -0,0 +1,70 @@
+package com.jonabai.projects.apnea.services.impl.wav;
+
+import com.jonabai.projects.apnea.api.domain.WavFileException;
+import com.jonabai.projects.apnea.services.WavFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("WavFileMappedBuffer Tests")
+class WavFileMappedBufferTest {
+
+    private static final File EXAMPLE_FILE = new File("target/test-classes/example-2.wav");
+
+    private WavFile wavFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        wavFile = new WavFileMappedBuffer(EXAMPLE_FILE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        wavFile.close();
+    }
+
+    @Test
+    @DisplayName("Should throw exception for non-existing file")
+    void openWavFileWrongFileThrowsException() {
+        assertThrows(WavFileException.class,
+                () -> new WavFileMappedBuffer(new File("not exists")));
+    }
+
+    @Test
+    @DisplayName("Should expose the same header as the stream implementation")
+    void sameHeaderAsInputStream() throws Exception {
+        try (var streamWavFile = new WavFileInputStream(EXAMPLE_FILE)) {
+            assertAll(
+                    () -> assertEquals(streamWavFile.getNumChannels(), wavFile.getNumChannels()),
+                    () -> assertEquals(streamWavFile.getNumFrames(), wavFile.getNumFrames()),
+                    () -> assertEquals(streamWavFile.getSampleRate(), wavFile.getSampleRate()),
+                    () -> assertEquals(streamWavFile.getValidBits(), wavFile.getValidBits()),
+                    () -> assertEquals(streamWavFile.getBlockAlign(), wavFile.getBlockAlign())
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Should decode the same samples as the stream implementation")
+    void sameSamplesAsInputStream() throws Exception {
+        try (var streamWavFile = new WavFileInputStream(EXAMPLE_FILE)) {
+            var expected = new double[1000 * wavFile.getNumChannels()];
+            var actual = new double[1000 * wavFile.getNumChannels()];
+            long totalFrames = 0;
+
+            int framesRead;
+            while ((framesRead = wavFile.readFrames(actual, 1000)) > 0) {
+                assertEquals(framesRead, streamWavFile.readFrames(expected, 1000));
+                assertArrayEquals(expected, actual);
+                totalFrames += framesRead;
+            }
+
+            assertEquals(wavFile.getNumFrames(), totalFrames);
+        }
+    }
+}